@@ -49,6 +49,27 @@ public interface ICache <K, V>
    */
   long getNumberOfEntries ();
 
+  /**
+   * Check if the cache is still loading its index. The cache can be used while
+   * it loads, but the entries that have not been loaded are not found.
+   *
+   * @return true if the index is being loaded
+   */
+  default boolean isLoading ()
+  {
+    return false;
+  }
+
+  /**
+   * Get how much of the index has been loaded.
+   *
+   * @return the part that is loaded, from 0 to 1
+   */
+  default double getLoadProgress ()
+  {
+    return 1;
+  }
+
   /**
    * Get the CacheEntry assosiated with given object.
    *
@@ -0,0 +1,212 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A checkpoint of the cache index, all the entries in age order in a compact
+ * binary form. The checkpoint holds every change up to the start of its
+ * journal generation, journals from that generation and later are replayed on
+ * top of it.
+ * <p>
+ * The entries are written while the index is in use, so the checkpoint may
+ * also hold some of the changes of its own journal generation, replaying them
+ * again gives the same index. The number of entries is not known until all
+ * of them are written, it is stored after the entries.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+final class Checkpoint
+{
+  private static final int MAGIC = 0x52434b50; // RCKP
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // magic, version, generation and file number
+  private static final int HEADER_SIZE = 24;
+  // number of entries and checksum
+  private static final int TRAILER_SIZE = 8;
+
+  private final long generation;
+  private final long fileNo;
+  private final int count;
+
+  Checkpoint (final long generation, final long fileNo, final int count)
+  {
+    this.generation = generation;
+    this.fileNo = fileNo;
+    this.count = count;
+  }
+
+  /**
+   * Get the first journal generation that is not part of this checkpoint.
+   *
+   * @return the journal generation
+   */
+  public long getGeneration ()
+  {
+    return generation;
+  }
+
+  /**
+   * Get the next free file number at the time of the checkpoint.
+   *
+   * @return the file number
+   */
+  public long getFileNo ()
+  {
+    return fileNo;
+  }
+
+  /**
+   * Get the number of entries in the checkpoint.
+   *
+   * @return the number of entries
+   */
+  public int getCount ()
+  {
+    return count;
+  }
+
+  /**
+   * Check if a file is a checkpoint, older versions wrote the cache index as
+   * serialized objects.
+   *
+   * @param file
+   *        the file to check
+   * @return true if the file starts like a checkpoint
+   * @throws IOException
+   *         if the file can not be read
+   */
+  public static boolean isCheckpoint (final File file) throws IOException
+  {
+    try (final DataInputStream is = new DataInputStream (new FileInputStream (file)))
+    {
+      return file.length () >= 4 && is.readInt () == MAGIC;
+    }
+  }
+
+  /**
+   * Write a checkpoint. The checkpoint is written to a temporary file that
+   * replaces the old checkpoint once it is safely on disk.
+   *
+   * @param file
+   *        the checkpoint file
+   * @param generation
+   *        the first journal generation that is not part of the checkpoint
+   * @param fileNo
+   *        the next free file number
+   * @param entries
+   *        the entries, oldest first
+   * @throws IOException
+   *         if the checkpoint can not be written
+   */
+  public static void write (final File file,
+                            final long generation,
+                            final long fileNo,
+                            final Iterable <? extends NCacheData <?, ?>> entries) throws IOException
+  {
+    final File tmp = new File (file.getPath () + ".tmp");
+    try (final FileOutputStream fos = new FileOutputStream (tmp))
+    {
+      final CheckedOutputStream cos = new CheckedOutputStream (new BufferedOutputStream (fos, BUFFER_SIZE),
+                                                               new CRC32 ());
+      final DataOutputStream os = new DataOutputStream (cos);
+      os.writeInt (MAGIC);
+      os.writeInt (VERSION);
+      os.writeLong (generation);
+      os.writeLong (fileNo);
+      int written = 0;
+      for (final NCacheData <?, ?> data : entries)
+      {
+        IndexRecord.write (os, data);
+        written++;
+      }
+      os.writeInt (written);
+      os.writeInt ((int) cos.getChecksum ().getValue ());
+      os.flush ();
+      fos.getChannel ().force (false);
+    }
+    Files.move (tmp.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read the header of a checkpoint.
+   *
+   * @param file
+   *        the checkpoint file
+   * @return the Checkpoint that was read
+   * @throws IOException
+   *         if the checkpoint can not be read
+   */
+  public static Checkpoint readHeader (final File file) throws IOException
+  {
+    try (final DataInputStream is = new DataInputStream (new FileInputStream (file)))
+    {
+      return readHeader (is, file);
+    }
+  }
+
+  private static Checkpoint readHeader (final DataInputStream is, final File file) throws IOException
+  {
+    if (is.readInt () != MAGIC)
+      throw new IOException ("Not a cache checkpoint: " + file);
+    final int version = is.readInt ();
+    if (version != VERSION)
+      throw new IOException ("Unknown cache checkpoint version: " + version + ", file: " + file);
+    final long generation = is.readLong ();
+    final long fileNo = is.readLong ();
+    final long entriesSize = file.length () - HEADER_SIZE - TRAILER_SIZE;
+    if (entriesSize < 0 || entriesSize % IndexRecord.SIZE != 0)
+      throw new IOException ("Cache checkpoint has a bad size: " + file + ", size: " + file.length ());
+    return new Checkpoint (generation, fileNo, (int) (entriesSize / IndexRecord.SIZE));
+  }
+
+  /**
+   * Read a checkpoint. If the checkpoint turns out to be broken the entries
+   * read before the problem was found have already been given to the sink.
+   *
+   * @param <K>
+   *        the key type of the cache
+   * @param <V>
+   *        the value type of the cache
+   * @param file
+   *        the checkpoint file
+   * @param cache
+   *        the NCache that the checkpoint belongs to
+   * @param sink
+   *        the IndexSink that gets the entries
+   * @return the Checkpoint that was read
+   * @throws IOException
+   *         if the checkpoint can not be read or is broken
+   */
+  public static <K, V> Checkpoint read (final File file,
+                                        final NCache <K, V> cache,
+                                        final IndexSink <K, V> sink) throws IOException
+  {
+    try (final FileInputStream fis = new FileInputStream (file))
+    {
+      final CheckedInputStream cis = new CheckedInputStream (new BufferedInputStream (fis, BUFFER_SIZE), new CRC32 ());
+      final DataInputStream is = new DataInputStream (cis);
+      final Checkpoint cp = readHeader (is, file);
+      for (int i = 0; i < cp.count; i++)
+        sink.add (IndexRecord.read (is, cache));
+      if (is.readInt () != cp.count)
+        throw new IOException ("Wrong number of entries in cache checkpoint: " + file);
+      final int crc = (int) cis.getChecksum ().getValue ();
+      if (is.readInt () != crc)
+        throw new IOException ("Bad checksum for cache checkpoint: " + file);
+      return cp;
+    }
+  }
+}
@@ -17,8 +17,33 @@ class FiledKey <K> extends FileData <K>
 
   protected int hashCode; // the hashCode for the contained object.
   private long id;
+  private Fingerprint fingerprint;
   protected transient NCache <K, ?> cache;
 
+  /** Create an empty FiledKey, use storeKey to give it a key. */
+  public FiledKey ()
+  {}
+
+  /**
+   * Create a FiledKey for a key that is already stored.
+   *
+   * @param cache
+   *        the cache the key is stored in
+   * @param id
+   *        the id of the cache entry
+   * @param hashCode
+   *        the hashCode of the key object
+   * @param fingerprint
+   *        the Fingerprint of the key
+   */
+  public FiledKey (final NCache <K, ?> cache, final long id, final int hashCode, final Fingerprint fingerprint)
+  {
+    this.cache = cache;
+    this.id = id;
+    this.hashCode = hashCode;
+    this.fingerprint = fingerprint;
+  }
+
   protected String getExtension ()
   {
     return "key";
@@ -36,6 +61,7 @@ class FiledKey <K> extends FileData <K>
   {
     setCache (cache);
     hashCode = key.hashCode ();
+    fingerprint = cache.getFingerprint (key);
     this.id = id;
     return writeData (getFileName (), cache.getKeyFileHandler (), key);
   }
@@ -67,31 +93,41 @@ class FiledKey <K> extends FileData <K>
     return id;
   }
 
-  /** Check if the given object is equal to the contained key. */
+  /**
+   * Get the fingerprint of the key.
+   *
+   * @return the Fingerprint or null if this key was stored by an older version
+   *         and the fingerprint has not been set yet
+   */
+  public Fingerprint getFingerprint ()
+  {
+    return fingerprint;
+  }
+
+  /**
+   * Set the fingerprint of a key that was stored without one.
+   *
+   * @param fingerprint
+   *        the Fingerprint of the key
+   */
+  protected void setFingerprint (final Fingerprint fingerprint)
+  {
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Check if the given object is a key with the same fingerprint, the stored
+   * keys are not read.
+   */
   @Override
-  public boolean equals (Object data)
+  public boolean equals (final Object data)
   {
     if (data == this)
       return true;
-    if (data == null || !getClass ().equals (data.getClass ()))
+    if (!(data instanceof FiledKey))
       return false;
-    try
-    {
-      final K myData = getData ();
-      if (data instanceof FiledKey)
-      {
-        data = ((FiledKey) data).getData ();
-      }
-      if (myData != null)
-      {
-        return myData.equals (data);
-      }
-      return data == null;
-    }
-    catch (final IOException e)
-    {
-      throw new RuntimeException ("Failed to read contents", e);
-    }
+    final FiledKey <?> fk = (FiledKey <?>) data;
+    return fingerprint != null && fingerprint.equals (fk.fingerprint);
   }
 
   /** Get the hashCode for the contained key object. */
@@ -104,6 +140,6 @@ class FiledKey <K> extends FileData <K>
   @Override
   public String toString ()
   {
-    return "FiledKey: " + hashCode + ", " + getFileName ();
+    return "FiledKey: " + hashCode + ", " + fingerprint + ", " + getFileName ();
   }
 }
@@ -0,0 +1,101 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A 128 bit fingerprint of a normalized cache key. The fingerprint is the
+ * first half of the SHA-256 digest of the key, so keys that differ get
+ * different fingerprints unless someone finds a collision in SHA-256.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+final class Fingerprint implements Serializable
+{
+  private static final long serialVersionUID = 20261018;
+
+  private final long high;
+  private final long low;
+
+  Fingerprint (final long high, final long low)
+  {
+    this.high = high;
+    this.low = low;
+  }
+
+  /**
+   * Get the fingerprint of a normalized key.
+   *
+   * @param normalizedKey
+   *        the key, in a form where equal keys give equal strings
+   * @return the Fingerprint of the key
+   */
+  public static Fingerprint of (final String normalizedKey)
+  {
+    final byte [] digest;
+    try
+    {
+      final MessageDigest md = MessageDigest.getInstance ("SHA-256");
+      digest = md.digest (normalizedKey.getBytes (StandardCharsets.UTF_8));
+    }
+    catch (final NoSuchAlgorithmException e)
+    {
+      // every jvm must have SHA-256
+      throw new IllegalStateException ("No SHA-256 available", e);
+    }
+    return new Fingerprint (getLong (digest, 0), getLong (digest, 8));
+  }
+
+  /**
+   * Get the first 64 bits of the fingerprint.
+   *
+   * @return the high bits
+   */
+  public long getHigh ()
+  {
+    return high;
+  }
+
+  /**
+   * Get the last 64 bits of the fingerprint.
+   *
+   * @return the low bits
+   */
+  public long getLow ()
+  {
+    return low;
+  }
+
+  private static long getLong (final byte [] b, final int offset)
+  {
+    long l = 0;
+    for (int i = 0; i < 8; i++)
+      l = (l << 8) | (b[offset + i] & 0xff);
+    return l;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (!(o instanceof Fingerprint))
+      return false;
+    final Fingerprint f = (Fingerprint) o;
+    return high == f.high && low == f.low;
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return (int) (low ^ (low >>> 32));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return String.format ("%016x%016x", Long.valueOf (high), Long.valueOf (low));
+  }
+}
@@ -0,0 +1,107 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A NCacheIndex that keeps the cache data as objects on the java heap.
+ *
+ * @param <K>
+ *        the key type of the cache
+ * @param <V>
+ *        the value type of the cache
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class HeapIndex <K, V> implements NCacheIndex <K, V>
+{
+  // The number of entries in each step of a walk.
+  private static final int WALK_STEP = 4096;
+
+  // The entries, oldest first.
+  private final Map <Fingerprint, NCacheData <K, V>> htab;
+
+  /**
+   * Create a new HeapIndex.
+   *
+   * @param expectedSize
+   *        the number of entries the index is expected to hold
+   */
+  public HeapIndex (final int expectedSize)
+  {
+    htab = new LinkedHashMap<> ((int) (expectedSize * 1.4) + 16);
+  }
+
+  public NCacheData <K, V> get (final Fingerprint fp)
+  {
+    return htab.get (fp);
+  }
+
+  public void put (final Fingerprint fp, final NCacheData <K, V> data)
+  {
+    htab.put (fp, data);
+  }
+
+  public NCacheData <K, V> remove (final Fingerprint fp)
+  {
+    return htab.remove (fp);
+  }
+
+  public int size ()
+  {
+    return htab.size ();
+  }
+
+  public Fingerprint getOldest ()
+  {
+    final Iterator <Fingerprint> it = htab.keySet ().iterator ();
+    return it.hasNext () ? it.next () : null;
+  }
+
+  public List <NCacheData <K, V>> getExpired (final long now)
+  {
+    final List <NCacheData <K, V>> ret = new ArrayList<> ();
+    for (final NCacheData <K, V> data : htab.values ())
+      if (data.getExpires () < now)
+        ret.add (data);
+    return ret;
+  }
+
+  /**
+   * Walk over a copy of the references to the entries, the entries themselves
+   * are already on the heap.
+   */
+  public IndexWalk <K, V> walk ()
+  {
+    final List <NCacheData <K, V>> entries = new ArrayList<> (htab.values ());
+    return new IndexWalk <K, V> ()
+    {
+      private int start = 0;
+      private int end = 0;
+
+      public int next ()
+      {
+        start = end;
+        end = Math.min (entries.size (), start + WALK_STEP);
+        return end - start;
+      }
+
+      public NCacheData <K, V> get (final int i)
+      {
+        return entries.get (start + i);
+      }
+
+      public void close ()
+      {
+        entries.clear ();
+      }
+    };
+  }
+
+  public Iterator <NCacheData <K, V>> iterator ()
+  {
+    return htab.values ().iterator ();
+  }
+}
@@ -0,0 +1,385 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.helger.rabbit.cache.utils.CacheUtils;
+import com.helger.rabbit.io.FileHelper;
+
+/**
+ * Rebuilds a lost cache index from the files in the cache directory. The
+ * numbered directories are scanned in parallel, one fork/join task for each
+ * directory. An entry is only used if its data file is there and its key, and
+ * its hook if it has one, can be read. The files that do not make up a valid
+ * entry are removed, as are the files in the temp directory that were left by
+ * an earlier run.
+ * <p>
+ * The time an entry was cached is not stored in its files, so the time the
+ * data file was written is used and the entry gets the default cache time.
+ *
+ * @param <K>
+ *        the key type of the cache
+ * @param <V>
+ *        the value type of the cache
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class IndexRebuilder <K, V>
+{
+  private static final int DATA = 1;
+  private static final int KEY = 2;
+  private static final int HOOK = 4;
+
+  private final NCache <K, V> cache;
+  private final File dir;
+  private final long firstFreeId;
+  private final long cacheTime;
+  private final BooleanSupplier stopped;
+  private final Logger logger;
+  private final AtomicLong removedFiles = new AtomicLong ();
+  private final List <NCacheData <K, V>> replaced = new ArrayList<> ();
+
+  /**
+   * Create a new IndexRebuilder.
+   *
+   * @param cache
+   *        the NCache that the files belong to
+   * @param dir
+   *        the cache directory
+   * @param firstFreeId
+   *        the first id that was not in use when the cache was started, files
+   *        with this id or higher are left alone
+   * @param cacheTime
+   *        the time, in millis, that the rebuilt entries are valid
+   * @param stopped
+   *        tells if the rebuild should stop
+   */
+  public IndexRebuilder (final NCache <K, V> cache,
+                         final File dir,
+                         final long firstFreeId,
+                         final long cacheTime,
+                         final BooleanSupplier stopped)
+  {
+    this.cache = cache;
+    this.dir = dir;
+    this.firstFreeId = firstFreeId;
+    this.cacheTime = cacheTime;
+    this.stopped = stopped;
+    logger = cache.getLogger ();
+  }
+
+  /**
+   * Get the id of a cache file from its name.
+   *
+   * @param name
+   *        the file name, with or without an extension
+   * @return the id or -1 if the name is not the name of a cache file
+   */
+  static long getId (final String name)
+  {
+    final int dot = name.indexOf ('.');
+    final String id = dot == -1 ? name : name.substring (0, dot);
+    if (id.isEmpty ())
+      return -1;
+    for (int i = 0; i < id.length (); i++)
+      if (id.charAt (i) < '0' || id.charAt (i) > '9')
+        return -1;
+    try
+    {
+      return Long.parseLong (id);
+    }
+    catch (final NumberFormatException e)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Get the first id after all the cache files. Only the last of the numbered
+   * directories and the temp directory are listed.
+   *
+   * @param dir
+   *        the cache directory
+   * @return the first free id, 0 if there are no cache files
+   */
+  static long getFreeId (final File dir)
+  {
+    long last = -1;
+    final String [] dirs = dir.list ();
+    if (dirs != null)
+    {
+      for (final String d : dirs)
+        if (d.indexOf ('.') == -1)
+          last = Math.max (last, getId (d));
+    }
+    long ret = 0;
+    if (last >= 0)
+    {
+      ret = last * CacheUtils.FILES_PER_DIR;
+      ret = Math.max (ret, getFreeId (new File (dir, Long.toString (last)).list ()));
+    }
+    return Math.max (ret, getFreeId (new File (dir, CacheUtils.TEMPDIR).list ()));
+  }
+
+  private static long getFreeId (final String [] names)
+  {
+    long ret = 0;
+    if (names != null)
+    {
+      for (final String n : names)
+      {
+        final long id = getId (n);
+        if (id >= 0)
+          ret = Math.max (ret, id + 1);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Scan the cache directory.
+   *
+   * @return the valid entries, the oldest first
+   * @throws InterruptedIOException
+   *         if the rebuild was stopped
+   */
+  public List <NCacheData <K, V>> rebuild () throws InterruptedIOException
+  {
+    final List <File> dirs = new ArrayList<> ();
+    final String [] names = dir.list ();
+    if (names != null)
+    {
+      for (final String d : names)
+      {
+        final File f = new File (dir, d);
+        if (getId (d) >= 0 && d.indexOf ('.') == -1 && f.isDirectory ())
+          dirs.add (f);
+      }
+    }
+    final long started = System.currentTimeMillis ();
+    final ForkJoinPool pool = new ForkJoinPool (Runtime.getRuntime ().availableProcessors ());
+    final List <NCacheData <K, V>> found;
+    try
+    {
+      found = pool.invoke (new Scan (dirs));
+    }
+    finally
+    {
+      pool.shutdown ();
+    }
+    if (stopped.getAsBoolean ())
+      throw new InterruptedIOException ("Cache index rebuild stopped");
+    final List <NCacheData <K, V>> ret = removeDuplicates (found);
+    logger.info ("Rebuilt the cache index from " +
+                 dirs.size () +
+                 " directories in " +
+                 (System.currentTimeMillis () - started) +
+                 " ms, " +
+                 ret.size () +
+                 " entries, " +
+                 removedFiles.get () +
+                 " stray files removed");
+    return ret;
+  }
+
+  /**
+   * Get the entries that were found but that were replaced by a newer entry
+   * for the same key.
+   *
+   * @return the replaced entries, their files have not been removed
+   */
+  public List <NCacheData <K, V>> getReplaced ()
+  {
+    return replaced;
+  }
+
+  /** Keep the newest entry for each key and sort the entries by age. */
+  private List <NCacheData <K, V>> removeDuplicates (final List <NCacheData <K, V>> found)
+  {
+    final Map <Fingerprint, NCacheData <K, V>> newest = new HashMap<> (found.size () * 2);
+    for (final NCacheData <K, V> data : found)
+    {
+      final NCacheData <K, V> other = newest.put (data.getKey ().getFingerprint (), data);
+      if (other != null)
+      {
+        if (other.getID () > data.getID ())
+        {
+          newest.put (data.getKey ().getFingerprint (), other);
+          replaced.add (data);
+        }
+        else
+        {
+          replaced.add (other);
+        }
+      }
+    }
+    final List <NCacheData <K, V>> ret = new ArrayList<> (newest.values ());
+    Collections.sort (ret, (a, b) -> {
+      final int c = Long.compare (a.getCacheTime (), b.getCacheTime ());
+      return c != 0 ? c : Long.compare (a.getID (), b.getID ());
+    });
+    return ret;
+  }
+
+  /** Scans all the directories, and cleans the temp directory. */
+  private class Scan extends RecursiveTask <List <NCacheData <K, V>>>
+  {
+    private static final long serialVersionUID = 20261018;
+
+    private final List <File> dirs;
+
+    public Scan (final List <File> dirs)
+    {
+      this.dirs = dirs;
+    }
+
+    @Override
+    protected List <NCacheData <K, V>> compute ()
+    {
+      final List <DirScan> tasks = new ArrayList<> (dirs.size ());
+      for (final File d : dirs)
+        tasks.add (new DirScan (d));
+      invokeAll (tasks);
+      cleanTempDir ();
+      final List <NCacheData <K, V>> ret = new ArrayList<> ();
+      for (final DirScan t : tasks)
+        ret.addAll (t.join ());
+      return ret;
+    }
+  }
+
+  private void cleanTempDir ()
+  {
+    final File tempdir = new File (dir, CacheUtils.TEMPDIR);
+    final String [] names = tempdir.list ();
+    if (names == null)
+      return;
+    for (final String n : names)
+    {
+      final long id = getId (n);
+      if (id >= 0 && id < firstFreeId)
+        delete (new File (tempdir, n));
+    }
+  }
+
+  /** Scans one of the numbered directories. */
+  private class DirScan extends RecursiveTask <List <NCacheData <K, V>>>
+  {
+    private static final long serialVersionUID = 20261018;
+
+    private final File d;
+
+    public DirScan (final File d)
+    {
+      this.d = d;
+    }
+
+    @Override
+    protected List <NCacheData <K, V>> compute ()
+    {
+      final List <NCacheData <K, V>> ret = new ArrayList<> ();
+      final String [] names = d.list ();
+      if (names == null || stopped.getAsBoolean ())
+        return ret;
+      final Map <Long, Integer> files = new HashMap<> ();
+      for (final String n : names)
+      {
+        final long id = getId (n);
+        if (id < 0 || id >= firstFreeId)
+          continue;
+        final int type;
+        if (n.indexOf ('.') == -1)
+          type = DATA;
+        else
+          if (n.endsWith (".key"))
+            type = KEY;
+          else
+            if (n.endsWith (".hook"))
+              type = HOOK;
+            else
+              continue;
+        files.merge (Long.valueOf (id), Integer.valueOf (type), (a, b) -> Integer.valueOf (a.intValue () | b.intValue ()));
+      }
+      for (final Map.Entry <Long, Integer> me : files.entrySet ())
+      {
+        final long id = me.getKey ().longValue ();
+        final int types = me.getValue ().intValue ();
+        final NCacheData <K, V> data = (types & (DATA | KEY)) == (DATA | KEY) ? read (id, (types & HOOK) != 0) : null;
+        if (data != null)
+        {
+          ret.add (data);
+        }
+        else
+        {
+          if ((types & DATA) != 0)
+            delete (cache.getEntryName (id, true, null));
+          if ((types & KEY) != 0)
+            delete (cache.getEntryName (id, true, "key"));
+          if ((types & HOOK) != 0)
+            delete (cache.getEntryName (id, true, "hook"));
+        }
+      }
+      // new entries may still be added to the last directories
+      final String [] left = d.list ();
+      if (left != null && left.length == 0 && (getId (d.getName ()) + 1) * CacheUtils.FILES_PER_DIR <= firstFreeId)
+        delete (d);
+      return ret;
+    }
+  }
+
+  /** Read and check the key and, if there is one, the hook of an entry. */
+  private NCacheData <K, V> read (final long id, final boolean hasHook)
+  {
+    final File data = cache.getEntryName (id, true, null);
+    final File keyFile = cache.getEntryName (id, true, "key");
+    final File hookFile = cache.getEntryName (id, true, "hook");
+    try
+    {
+      final K key = new FiledKey<> (cache, id, 0, null).getData ();
+      if (key == null)
+        return null;
+      final FiledHook <V> hook = hasHook ? new FiledHook<> () : null;
+      if (hook != null && hook.readData (hookFile, cache.getHookFileHandler ()) == null)
+        return null;
+      final FiledKey <K> fk = new FiledKey<> (cache, id, key.hashCode (), cache.getFingerprint (key));
+      final long cachetime = data.lastModified ();
+      return new NCacheData<> (id,
+                               cachetime,
+                               cachetime + cacheTime,
+                               data.length (),
+                               fk,
+                               keyFile.length (),
+                               hook,
+                               hook != null ? hookFile.length () : 0);
+    }
+    catch (final IOException | RuntimeException e)
+    {
+      logger.log (Level.FINE, "Broken cache entry: " + id, e);
+      return null;
+    }
+  }
+
+  private void delete (final File f)
+  {
+    try
+    {
+      FileHelper.delete (f);
+      removedFiles.incrementAndGet ();
+    }
+    catch (final IOException e)
+    {
+      logger.log (Level.WARNING, "Failed to remove stray cache file: " + f, e);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary form of one cache index entry, as it is stored in the
+ * checkpoints and the journal.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+final class IndexRecord
+{
+  /** The number of bytes of one entry. */
+  public static final int SIZE = 68;
+
+  private IndexRecord ()
+  {}
+
+  /**
+   * Write an entry.
+   *
+   * @param out
+   *        the DataOutput to write to
+   * @param data
+   *        the entry to write
+   * @throws IOException
+   *         if writing fails
+   */
+  public static void write (final DataOutput out, final NCacheData <?, ?> data) throws IOException
+  {
+    final FiledKey <?> key = data.getKey ();
+    final Fingerprint fp = key.getFingerprint ();
+    out.writeLong (fp.getHigh ());
+    out.writeLong (fp.getLow ());
+    out.writeLong (data.getID ());
+    out.writeInt (key.hashCode ());
+    out.writeLong (data.getCacheTime ());
+    out.writeLong (data.getExpires ());
+    out.writeLong (data.getSize ());
+    out.writeLong (data.getKeySize ());
+    out.writeLong (data.getDataHook () == null ? -1 : data.getHookSize ());
+  }
+
+  /**
+   * Read an entry.
+   *
+   * @param <K>
+   *        the key type of the cache
+   * @param <V>
+   *        the value type of the cache
+   * @param in
+   *        the DataInput to read from
+   * @param cache
+   *        the NCache the entry belongs to
+   * @return the entry
+   * @throws IOException
+   *         if reading fails
+   */
+  public static <K, V> NCacheData <K, V> read (final DataInput in, final NCache <K, V> cache) throws IOException
+  {
+    final Fingerprint fp = new Fingerprint (in.readLong (), in.readLong ());
+    final long id = in.readLong ();
+    final FiledKey <K> key = new FiledKey<> (cache, id, in.readInt (), fp);
+    final long cachetime = in.readLong ();
+    final long expires = in.readLong ();
+    final long size = in.readLong ();
+    final long keySize = in.readLong ();
+    final long hookSize = in.readLong ();
+    final FiledHook <V> hook = hookSize < 0 ? null : new FiledHook<> ();
+    return new NCacheData<> (id, cachetime, expires, size, key, keySize, hook, Math.max (0, hookSize));
+  }
+}
@@ -0,0 +1,38 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.io.IOException;
+
+/**
+ * Receives the entries and removals when a cache index is loaded from a
+ * checkpoint and the journals.
+ *
+ * @param <K>
+ *        the key type of the cache
+ * @param <V>
+ *        the value type of the cache
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+interface IndexSink <K, V>
+{
+  /**
+   * Add or update an entry.
+   *
+   * @param data
+   *        the entry
+   * @throws IOException
+   *         if the loading should stop
+   */
+  void add (NCacheData <K, V> data) throws IOException;
+
+  /**
+   * Remove an entry, if it is still the entry with the given id.
+   *
+   * @param fp
+   *        the Fingerprint of the entry
+   * @param id
+   *        the id of the entry
+   * @throws IOException
+   *         if the loading should stop
+   */
+  void remove (Fingerprint fp, long id) throws IOException;
+}
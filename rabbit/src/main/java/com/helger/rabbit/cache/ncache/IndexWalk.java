@@ -0,0 +1,38 @@
+package com.helger.rabbit.cache.ncache;
+
+/**
+ * A walk over the entries of a cache index, oldest first, that is done in
+ * steps while the index is in use. The lock of the cache is held for each
+ * step but not between the steps. Every entry that is in the index during the
+ * whole walk is seen once, entries that are added, changed or removed during
+ * the walk may or may not be seen.
+ *
+ * @param <K>
+ *        the key type of the cache
+ * @param <V>
+ *        the value type of the cache
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+interface IndexWalk <K, V>
+{
+  /**
+   * Copy the next entries, the caller must hold the lock of the cache.
+   *
+   * @return the number of entries copied, 0 when the walk is done
+   */
+  int next ();
+
+  /**
+   * Get one of the entries that the last step copied, no lock is needed.
+   *
+   * @param i
+   *        the index of the entry in the step
+   * @return the entry
+   */
+  NCacheData <K, V> get (int i);
+
+  /**
+   * End the walk, the caller must hold the lock of the cache.
+   */
+  void close ();
+}
@@ -0,0 +1,313 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.helger.rabbit.io.FileHelper;
+
+/**
+ * An append only journal of the changes to the cache index. Each record is
+ * written to the file when it is added, so a crash of the proxy loses
+ * nothing, the records are forced to the disk when sync is called or for
+ * every record if the journal is not synced by time.
+ * <p>
+ * The journals are numbered by generation, a new generation is started for
+ * each checkpoint so that the older journals can be removed once the
+ * checkpoint has been written.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class Journal
+{
+  private static final String PREFIX = "cache.journal.";
+  private static final int MAGIC = 0x524a4e4c; // RJNL
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+  private static final int REMOVE_SIZE = 24;
+
+  private final long generation;
+  private final boolean syncEach;
+  private final FileOutputStream fos;
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream (1 + IndexRecord.SIZE + 4);
+  private final DataOutputStream ros = new DataOutputStream (record);
+  private final CRC32 crc = new CRC32 ();
+  private long records = 0;
+  private boolean dirty = false;
+
+  /**
+   * Create a new journal.
+   *
+   * @param dir
+   *        the cache directory
+   * @param generation
+   *        the generation of the journal
+   * @param syncEach
+   *        if true every record is forced to disk when it is added
+   * @throws IOException
+   *         if the journal can not be created
+   */
+  public Journal (final File dir, final long generation, final boolean syncEach) throws IOException
+  {
+    this.generation = generation;
+    this.syncEach = syncEach;
+    fos = new FileOutputStream (getFile (dir, generation));
+    ros.writeInt (MAGIC);
+    ros.writeInt (VERSION);
+    ros.writeLong (generation);
+    fos.write (record.toByteArray ());
+    record.reset ();
+    fos.getChannel ().force (true);
+  }
+
+  private static File getFile (final File dir, final long generation)
+  {
+    return new File (dir, PREFIX + generation);
+  }
+
+  /**
+   * Get the generation of this journal.
+   *
+   * @return the generation number
+   */
+  public long getGeneration ()
+  {
+    return generation;
+  }
+
+  /**
+   * Get the number of records added to this journal.
+   *
+   * @return the number of records
+   */
+  public synchronized long getRecords ()
+  {
+    return records;
+  }
+
+  /**
+   * Record that an entry was added or changed.
+   *
+   * @param data
+   *        the new state of the entry
+   * @throws IOException
+   *         if the record can not be written
+   */
+  public synchronized void add (final NCacheData <?, ?> data) throws IOException
+  {
+    ros.writeByte (ADD);
+    IndexRecord.write (ros, data);
+    append ();
+  }
+
+  /**
+   * Record that an entry was removed.
+   *
+   * @param fp
+   *        the Fingerprint of the entry
+   * @param id
+   *        the id of the entry
+   * @throws IOException
+   *         if the record can not be written
+   */
+  public synchronized void remove (final Fingerprint fp, final long id) throws IOException
+  {
+    ros.writeByte (REMOVE);
+    ros.writeLong (fp.getHigh ());
+    ros.writeLong (fp.getLow ());
+    ros.writeLong (id);
+    append ();
+  }
+
+  private void append () throws IOException
+  {
+    crc.reset ();
+    crc.update (record.toByteArray (), 0, record.size ());
+    ros.writeInt ((int) crc.getValue ());
+    try
+    {
+      fos.write (record.toByteArray ());
+    }
+    finally
+    {
+      record.reset ();
+    }
+    records++;
+    if (syncEach)
+      fos.getChannel ().force (false);
+    else
+      dirty = true;
+  }
+
+  /**
+   * Force the records that have been added to the disk.
+   *
+   * @throws IOException
+   *         if the journal can not be synced
+   */
+  public synchronized void sync () throws IOException
+  {
+    if (dirty)
+    {
+      dirty = false;
+      fos.getChannel ().force (false);
+    }
+  }
+
+  /**
+   * Sync and close this journal.
+   *
+   * @throws IOException
+   *         if the journal can not be synced
+   */
+  public synchronized void close () throws IOException
+  {
+    try
+    {
+      sync ();
+    }
+    finally
+    {
+      fos.close ();
+    }
+  }
+
+  /**
+   * Get the generations of the journals in the directory.
+   *
+   * @param dir
+   *        the cache directory
+   * @return the generations, lowest first
+   */
+  public static List <Long> getGenerations (final File dir)
+  {
+    final List <Long> ret = new ArrayList<> ();
+    final String [] files = dir.list ();
+    if (files == null)
+      return ret;
+    for (final String f : files)
+    {
+      if (!f.startsWith (PREFIX))
+        continue;
+      try
+      {
+        ret.add (Long.valueOf (f.substring (PREFIX.length ())));
+      }
+      catch (final NumberFormatException e)
+      {
+        // not a journal
+      }
+    }
+    Collections.sort (ret);
+    return ret;
+  }
+
+  /**
+   * Remove the journals of older generations.
+   *
+   * @param dir
+   *        the cache directory
+   * @param generation
+   *        the first generation to keep
+   * @throws IOException
+   *         if a journal can not be removed
+   */
+  public static void removeBefore (final File dir, final long generation) throws IOException
+  {
+    for (final Long g : getGenerations (dir))
+      if (g.longValue () < generation)
+        FileHelper.delete (getFile (dir, g.longValue ()));
+  }
+
+  /**
+   * Give the records of a journal to a sink. A record that was not fully
+   * written, by a crash, ends the journal and is cut off.
+   *
+   * @param <K>
+   *        the key type of the cache
+   * @param <V>
+   *        the value type of the cache
+   * @param dir
+   *        the cache directory
+   * @param generation
+   *        the generation of the journal
+   * @param sink
+   *        the IndexSink that gets the records
+   * @param cache
+   *        the NCache the entries belong to
+   * @return the number of records that were read
+   * @throws IOException
+   *         if the journal can not be read
+   */
+  public static <K, V> long replay (final File dir,
+                                    final long generation,
+                                    final IndexSink <K, V> sink,
+                                    final NCache <K, V> cache) throws IOException
+  {
+    final File f = getFile (dir, generation);
+    if (f.length () < HEADER_SIZE)
+      return 0;
+    long records = 0;
+    long good = HEADER_SIZE;
+    final byte [] buf = new byte [1 + IndexRecord.SIZE];
+    final CRC32 crc = new CRC32 ();
+    try (final DataInputStream is = new DataInputStream (new BufferedInputStream (new FileInputStream (f),
+                                                                                 64 * 1024)))
+    {
+      if (is.readInt () != MAGIC || is.readInt () != VERSION || is.readLong () != generation)
+        throw new IOException ("Not a cache journal for generation " + generation + ": " + f);
+      while (true)
+      {
+        final int type = is.read ();
+        if (type == -1)
+          return records;
+        final int size;
+        if (type == ADD)
+          size = IndexRecord.SIZE;
+        else
+          if (type == REMOVE)
+            size = REMOVE_SIZE;
+          else
+            break;
+        buf[0] = (byte) type;
+        is.readFully (buf, 1, size);
+        crc.reset ();
+        crc.update (buf, 0, 1 + size);
+        if (is.readInt () != (int) crc.getValue ())
+          break;
+        final DataInputStream rs = new DataInputStream (new ByteArrayInputStream (buf, 1, size));
+        if (type == ADD)
+          sink.add (IndexRecord.read (rs, cache));
+        else
+          sink.remove (new Fingerprint (rs.readLong (), rs.readLong ()), rs.readLong ());
+        records++;
+        good += 1 + size + 4;
+      }
+    }
+    catch (final EOFException e)
+    {
+      // a partly written record
+    }
+    cache.getLogger ().warning ("Cache journal ends with a broken record, cutting it at: " + good + ", file: " + f);
+    try (final RandomAccessFile raf = new RandomAccessFile (f, "rw"))
+    {
+      raf.setLength (good);
+    }
+    return records;
+  }
+}
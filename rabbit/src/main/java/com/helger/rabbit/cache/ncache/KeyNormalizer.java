@@ -0,0 +1,24 @@
+package com.helger.rabbit.cache.ncache;
+
+/**
+ * An object that gives the identity of cache keys as strings. The cache keeps
+ * a fingerprint of the normalized key in memory, so lookups do not have to
+ * read the stored keys to compare them.
+ *
+ * @param <K>
+ *        the type of keys to normalize
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public interface KeyNormalizer <K>
+{
+  /**
+   * Get the normalized form of the key. Two keys that are equal must give the
+   * same normalized key and keys that are not equal should give different
+   * normalized keys.
+   *
+   * @param key
+   *        the key to normalize
+   * @return the normalized key
+   */
+  String normalize (K key);
+}
@@ -2,24 +2,24 @@ package com.helger.rabbit.cache.ncache;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import com.helger.commons.url.SMap;
 import com.helger.rabbit.cache.ICacheConfiguration;
@@ -34,6 +34,16 @@ import com.helger.rabbit.io.FileHelper;
  * The NCache is like a Map in lookup/insert/delete The NCache is persistent
  * over sessions (saves itself to disk). The NCache is selfcleaning, that is it
  * removes old stuff.
+ * <p>
+ * The entries are found by a fingerprint of the normalized key, so lookups do
+ * not read the stored keys. If verify_keys is set, or if no KeyNormalizer is
+ * given, the stored key of a found entry is read and compared to the wanted
+ * key. With index=offheap the index is kept outside of the java heap, see
+ * OffHeapIndex, which is useful for caches with many millions of entries.
+ * <p>
+ * The index is loaded in the background by default, the cache is used while
+ * it loads and entries that have not been loaded yet are simply not found. If
+ * the index is lost it is rebuilt from the files, see IndexRebuilder.
  *
  * @param <K>
  *        the key type of the cache
@@ -46,18 +56,30 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
   private static final String DIR = "/tmp/rabbit/cache"; // standard dir.
   private static final String DEFAULT_CLEAN_LOOP = "60"; // 1 minute
 
-  private static final String CACHEINDEX = "cache.index"; // the indexfile.
+  private static final String DEFAULT_JOURNAL_SYNC = "1"; // 1 second
+  private static final String DEFAULT_CHECKPOINT_RECORDS = "100000";
+
+  private static final String CACHEINDEX = "cache.index"; // the checkpoint.
 
   private final Configuration configuration = new Configuration ();
-  private boolean changed = false; // have we changed?
   private Thread cleaner = null; // remover of old stuff.
   private int cleanLoopTime = 60 * 1000; // sleeptime between cleanups.
 
+  private volatile Journal journal = null;
+  private long journalGeneration = 0;
+  private long replayedRecords = 0;
+  private int journalSyncTime = 1000; // max time before journal is on disk.
+  private long checkpointRecords = 100000;
+  private final Object checkpointLock = new Object ();
+
   private long fileNo = 0;
   private long currentSize = 0;
   private File dir = null;
-  private Map <FiledKey <K>, NCacheData <K, V>> htab = null;
-  private List <NCacheData <K, V>> vec = null;
+  private NCacheIndex <K, V> index = null;
+  private boolean offHeapIndex = false;
+  private boolean backgroundLoad = true;
+  private volatile Loader loader = null; // set until the index is loaded.
+  private boolean loadStopped = false; // the index was only partly loaded.
 
   private File tempdir = null;
   private final Object dirLock = new Object ();
@@ -70,6 +92,8 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
 
   private final FileHandler <K> fhk;
   private final FileHandler <V> fhv;
+  private final KeyNormalizer <K> normalizer;
+  private boolean verifyKeys = false;
 
   private volatile boolean running = true;
 
@@ -87,11 +111,34 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
    *         if the cache file directory can not be configured
    */
   public NCache (final SMap props, final FileHandler <K> fhk, final FileHandler <V> fhv) throws IOException
+  {
+    this (props, fhk, fhv, null);
+  }
+
+  /**
+   * Create a cache that finds entries by the fingerprint of the normalized
+   * key. Note that you must call start to have the cache fully up.
+   *
+   * @param props
+   *        the configuration of the cache
+   * @param fhk
+   *        the FileHandler for the cache keys
+   * @param fhv
+   *        the FileHandler for the cache values
+   * @param normalizer
+   *        the KeyNormalizer for the keys, if null the hashCode of the keys is
+   *        used and the stored keys are always verified
+   * @throws IOException
+   *         if the cache file directory can not be configured
+   */
+  public NCache (final SMap props,
+                 final FileHandler <K> fhk,
+                 final FileHandler <V> fhv,
+                 final KeyNormalizer <K> normalizer) throws IOException
   {
     this.fhk = fhk;
     this.fhv = fhv;
-    htab = new HashMap<> ();
-    vec = new ArrayList<> ();
+    this.normalizer = normalizer;
     setup (props);
   }
 
@@ -142,57 +189,78 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
      */
     private void setCacheDir (final String newDir) throws IOException
     {
-      w.lock ();
-      try
+      // the loader needs the write lock
+      cancelLoader ();
+      // take the locks in the same order as writeCheckpoint
+      synchronized (checkpointLock)
       {
-        // save old cachedir.
-        if (dir != null)
-          writeCacheIndex ();
-
-        // does new dir exist?
-        dir = new File (newDir);
-        final File dirtest = dir;
-        boolean readCache = true;
-        if (!dirtest.exists ())
+        w.lock ();
+        try
         {
-          FileHelper.mkdirs (dirtest);
-          if (!dirtest.exists ())
+          // save old cachedir.
+          if (dir != null)
           {
-            logger.warning ("could not create cachedir: " + dirtest);
+            writeCheckpoint ();
+            closeJournal ();
           }
-          readCache = false;
-        }
-        else
-          if (dirtest.isFile ())
+          loadStopped = false;
+
+          // does new dir exist?
+          dir = new File (newDir);
+          final File dirtest = dir;
+          boolean readCache = true;
+          if (!dirtest.exists ())
           {
-            logger.warning ("Cachedir: " + dirtest + " is a file");
+            FileHelper.mkdirs (dirtest);
+            if (!dirtest.exists ())
+            {
+              logger.warning ("could not create cachedir: " + dirtest);
+            }
+            readCache = false;
           }
+          else
+            if (dirtest.isFile ())
+            {
+              logger.warning ("Cachedir: " + dirtest + " is a file");
+            }
 
-        synchronized (dirLock)
-        {
-          tempdir = new File (dirtest, CacheUtils.TEMPDIR);
-          if (!tempdir.exists ())
+          synchronized (dirLock)
           {
-            FileHelper.mkdirs (tempdir);
+            tempdir = new File (dirtest, CacheUtils.TEMPDIR);
             if (!tempdir.exists ())
             {
-              logger.warning ("could not create cache tempdir: " + tempdir);
+              FileHelper.mkdirs (tempdir);
+              if (!tempdir.exists ())
+              {
+                logger.warning ("could not create cache tempdir: " + tempdir);
+              }
             }
+            else
+              if (tempdir.isFile ())
+              {
+                logger.warning ("Cache temp dir is a file: " + tempdir);
+              }
           }
+          if (readCache)
+                        // move to new dir.
+                        readCacheIndex ();
           else
-            if (tempdir.isFile ())
-            {
-              logger.warning ("Cache temp dir is a file: " + tempdir);
-            }
+          {
+            index = createIndex (0);
+            journalGeneration = 0;
+            replayedRecords = 0;
+            loader = null;
+          }
+          openJournal ();
+        }
+        finally
+        {
+          w.unlock ();
         }
-        if (readCache)
-                      // move to new dir.
-                      readCacheIndex ();
-      }
-      finally
-      {
-        w.unlock ();
       }
+      final Loader l = loader;
+      if (l != null)
+        l.start ();
     }
   }
 
@@ -245,7 +313,7 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     r.lock ();
     try
     {
-      return htab.size ();
+      return index.size ();
     }
     finally
     {
@@ -253,6 +321,17 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     }
   }
 
+  public boolean isLoading ()
+  {
+    return loader != null;
+  }
+
+  public double getLoadProgress ()
+  {
+    final Loader l = loader;
+    return l == null ? 1 : l.getProgress ();
+  }
+
   /**
    * Check that the data hook exists.
    *
@@ -295,6 +374,30 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     return getEntry (cacheEntry);
   }
 
+  /**
+   * Get the fingerprint of a key.
+   *
+   * @param k
+   *        the key
+   * @return the Fingerprint of the normalized key
+   */
+  Fingerprint getFingerprint (final K k)
+  {
+    if (normalizer == null)
+      return Fingerprint.of (Integer.toString (k.hashCode ()));
+    return Fingerprint.of (normalizer.normalize (k));
+  }
+
+  /**
+   * Check if found entries are verified against the stored key.
+   *
+   * @return true if the stored keys are read and compared
+   */
+  public boolean getVerifyKeys ()
+  {
+    return verifyKeys || normalizer == null;
+  }
+
   public File getEntryName (final long id, final boolean real, final String extension)
   {
     return CacheUtils.getEntryName (dir, id, real, extension);
@@ -380,16 +483,14 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     try
     {
       remove (ent.getKey ());
-      htab.put (data.getKey (), data);
+      index.put (data.getKey ().getFingerprint (), data);
       currentSize += data.getSize () + data.getKeySize () + data.getHookSize ();
-      vec.add (data);
+      journalAdd (data);
     }
     finally
     {
       w.unlock ();
     }
-
-    changed = true;
   }
 
   private void ensureCacheDirIsValid (final File f)
@@ -429,33 +530,79 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     {
       data.updateExpireAndSize (ent);
       final long id = ent.getID ();
+      final Fingerprint oldFingerprint = data.getKey ().getFingerprint ();
       final FiledWithSize <FiledKey <K>> fkws = storeKey (newKey, id);
       data.setKey (fkws.t, fkws.size);
       final FiledWithSize <FiledHook <V>> fhws = storeHook (newHook, id);
       data.setDataHook (fhws.t, fhws.size);
+      final Fingerprint newFingerprint = fkws.t.getFingerprint ();
+      // the index may hold a copy of the data, so always put it back
+      w.lock ();
+      try
+      {
+        touch (oldFingerprint);
+        touch (newFingerprint);
+        final NCacheData <K, V> current = index.get (oldFingerprint);
+        if (current != null && current.getID () == id)
+        {
+          if (!newFingerprint.equals (oldFingerprint))
+          {
+            index.remove (oldFingerprint);
+            journalRemove (oldFingerprint, id);
+          }
+          index.put (newFingerprint, data);
+          journalAdd (data);
+        }
+      }
+      finally
+      {
+        w.unlock ();
+      }
     }
     catch (final IOException e)
     {
       throw new CacheException ("Failed to update entry: entry: " + ent + ", newKey: " + newKey, e);
     }
-    finally
-    {
-      changed = true;
-    }
   }
 
   private NCacheData <K, V> getCurrentData (final K key)
   {
-    final MemoryKey <K> mkey = new MemoryKey<> (key);
+    final Fingerprint fp = getFingerprint (key);
+    NCacheData <K, V> data;
     r.lock ();
     try
     {
-      return htab.get (mkey);
+      data = index.get (fp);
     }
     finally
     {
       r.unlock ();
     }
+    if (data != null && getVerifyKeys () && !verify (key, data))
+      return null;
+    return data;
+  }
+
+  /**
+   * Check that the stored key of the entry really is equal to the given key.
+   */
+  private boolean verify (final K key, final NCacheData <K, V> data)
+  {
+    final FiledKey <K> fk = data.getKey ();
+    fk.setCache (this);
+    try
+    {
+      final K stored = fk.getData ();
+      if (key.equals (stored))
+        return true;
+      logger.info ("Cache key fingerprint matched but key did not, wanted: " + key + ", found: " + fk);
+      return false;
+    }
+    catch (final IOException e)
+    {
+      logWarning ("Failed to read key: " + fk, e);
+      return false;
+    }
   }
 
   private void removeHook (final File base, final String extension) throws IOException
@@ -474,25 +621,41 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
    *        the key for the CacheEntry.
    */
   public void remove (final K k) throws CacheException
+  {
+    if (k == null)
+    {
+      // Odd, but seems to happen. Probably removed
+      // by someone else before enumeration gets to it.
+      return;
+    }
+    remove (getFingerprint (k), null);
+  }
+
+  /**
+   * Remove the entry with the given fingerprint.
+   *
+   * @param fp
+   *        the Fingerprint of the key
+   * @param expected
+   *        if not null only remove the entry if it is this entry
+   */
+  private void remove (final Fingerprint fp, final NCacheData <K, V> expected) throws CacheException
   {
     NCacheData <K, V> r;
     w.lock ();
     try
     {
-      if (k == null)
+      touch (fp);
+      r = index.get (fp);
+      if (r != null && (expected == null || r.getID () == expected.getID ()))
       {
-        // Odd, but seems to happen. Probably removed
-        // by someone else before enumeration gets to it.
-        return;
+        currentSize -= (r.getSize () + r.getKeySize () + r.getHookSize ());
+        index.remove (fp);
+        journalRemove (fp, r.getID ());
       }
-      final FiledKey <K> fk = new MemoryKey<> (k);
-      r = htab.get (fk);
-      if (r != null)
+      else
       {
-        // remove entries while it is still in htab.
-        vec.remove (r);
-        currentSize -= (r.getSize () + r.getKeySize () + r.getHookSize ());
-        htab.remove (fk);
+        r = null;
       }
     }
     finally
@@ -502,61 +665,65 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
 
     if (r != null)
     {
-      // this removes the key => htab.remove can not work..
-      final File entryName = getEntryName (r.getID (), true, null);
       try
       {
-        removeHook (entryName, ".hook");
-        removeHook (entryName, ".key");
-        r.setDataHook (null, 0);
-        final File cfile = entryName;
-        if (cfile.exists ())
-        {
-          final File p = cfile.getParentFile ();
-          FileHelper.delete (cfile);
-          // Until NT does rename in a nice manner check for tempdir.
-          synchronized (dirLock)
-          {
-            if (p.exists () && !p.equals (tempdir))
-            {
-              final String ls[] = p.list ();
-              if (ls != null && ls.length == 0)
-                FileHelper.delete (p);
-            }
-          }
-        }
+        deleteFiles (r);
       }
       catch (final IOException e)
       {
-        throw new CacheException ("Failed to remove file, key: " + k, e);
+        throw new CacheException ("Failed to remove file, key: " + fp, e);
       }
     }
   }
 
   /**
-   * Clear the Cache from files.
+   * Remove the files of an entry that is no longer in the index.
    */
-  public void clear () throws CacheException
+  private void deleteFiles (final NCacheData <K, V> r) throws IOException
   {
-    ArrayList <FiledKey <K>> ls;
-    w.lock ();
-    try
+    // this removes the key => index.remove can not work..
+    final File entryName = getEntryName (r.getID (), true, null);
+    removeHook (entryName, ".hook");
+    removeHook (entryName, ".key");
+    r.setDataHook (null, 0);
+    final File cfile = entryName;
+    if (cfile.exists ())
     {
-      ls = new ArrayList<> (htab.keySet ());
-      for (final FiledKey <K> k : ls)
+      final File p = cfile.getParentFile ();
+      FileHelper.delete (cfile);
+      // Until NT does rename in a nice manner check for tempdir.
+      synchronized (dirLock)
       {
-        try
+        if (p.exists () && !p.equals (tempdir))
         {
-          remove (k.getData ());
-        }
-        catch (final IOException e)
-        {
-          throw new CacheException ("Failed to remove entry, key: " + k, e);
+          final String ls[] = p.list ();
+          if (ls != null && ls.length == 0)
+            FileHelper.delete (p);
         }
       }
-      vec.clear (); // just to be safe.
+    }
+  }
+
+  /** Note that an entry is changed while the index loads, hold the write lock. */
+  private void touch (final Fingerprint fp)
+  {
+    final Loader l = loader;
+    if (l != null)
+      l.touched.add (fp);
+  }
+
+  /**
+   * Clear the Cache from files.
+   */
+  public void clear () throws CacheException
+  {
+    w.lock ();
+    try
+    {
+      Fingerprint fp;
+      while ((fp = index.getOldest ()) != null)
+        remove (fp, null);
       currentSize = 0;
-      changed = true;
     }
     finally
     {
@@ -576,7 +743,7 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     r.lock ();
     try
     {
-      return new NCacheIterator (htab.values ());
+      return new NCacheIterator (index);
     }
     finally
     {
@@ -588,9 +755,12 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
   {
     private final Iterator <NCacheData <K, V>> dataIterator;
 
-    public NCacheIterator (final Collection <NCacheData <K, V>> c)
+    public NCacheIterator (final Iterable <NCacheData <K, V>> c)
     {
-      dataIterator = new ArrayList<> (c).iterator ();
+      final List <NCacheData <K, V>> ls = new ArrayList<> ();
+      for (final NCacheData <K, V> data : c)
+        ls.add (data);
+      dataIterator = ls.iterator ();
     }
 
     public Iterator <NCacheEntry <K, V>> iterator ()
@@ -622,17 +792,24 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
   }
 
   /**
-   * Read the info from an old cache.
+   * Find the info of an old cache, the last checkpoint and the journals written
+   * after it, and set up the Loader for it. Only the header of the checkpoint
+   * is read here, the journals and the directory names are read to find the
+   * ids that are in use. Without a checkpoint, or a first journal, the index
+   * is rebuilt from the files.
    */
   private void readCacheIndex ()
   {
+    final File indexFile = new File (dir, CACHEINDEX);
+    Checkpoint cp = null;
+    boolean legacy = false;
     try
     {
-      final File index = new File (dir, CACHEINDEX);
-      if (index.exists ())
-        readCacheIndex (index);
-      else
-        logger.info ("No cache index found: " + index + ", treating as empty cache");
+      if (indexFile.exists ())
+      {
+        legacy = !Checkpoint.isCheckpoint (indexFile);
+        cp = legacy ? readOldCacheIndexHeader (indexFile) : Checkpoint.readHeader (indexFile);
+      }
     }
     catch (final IOException e)
     {
@@ -643,39 +820,447 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
                   ". This is bad (but not serius).\nTreating as empty. ",
                   e);
     }
-    catch (final ClassNotFoundException e)
+
+    final List <Long> allGenerations = Journal.getGenerations (dir);
+    final long firstGeneration = cp == null ? 0 : cp.getGeneration ();
+    final int count = cp == null ? 0 : cp.getCount ();
+    long generation = firstGeneration;
+    long records = 0;
+    final List <Long> generations = new ArrayList<> ();
+    final IdScanner scanner = new IdScanner ();
+    for (final Long g : allGenerations)
     {
-      logger.log (Level.SEVERE, "Couldn't find classes", e);
+      // older journals are left from a crash during a checkpoint
+      if (g.longValue () < firstGeneration)
+        continue;
+      try
+      {
+        records += Journal.replay (dir, g.longValue (), scanner, this);
+        generations.add (g);
+      }
+      catch (final IOException e)
+      {
+        logWarning ("Failed to replay cache journal: " + g, e);
+      }
+      generation = g.longValue () + 1;
+    }
+
+    final long filesFreeId = IndexRebuilder.getFreeId (dir);
+    // the journals hold all the changes if the first one is still there
+    final boolean rebuild = cp == null &&
+                            filesFreeId > 0 &&
+                            (allGenerations.isEmpty () || allGenerations.get (0).longValue () != 0);
+    if (cp == null)
+      logger.info ("No cache index found: " + indexFile + (rebuild ? ", rebuilding it" : ", treating as empty cache"));
+
+    fileNo = Math.max (Math.max (cp == null ? 0 : cp.getFileNo (), scanner.nextId), filesFreeId);
+    currentSize = 0;
+    index = createIndex (count);
+    journalGeneration = generation;
+    replayedRecords = records;
+    if (cp == null && !rebuild && generations.isEmpty ())
+      loader = null;
+    else
+      loader = new Loader (cp == null ? null : indexFile, legacy, rebuild, generations, fileNo, count + records);
+  }
+
+  /** Finds the next free id from the journals, without changing the index. */
+  private class IdScanner implements IndexSink <K, V>
+  {
+    private long nextId = 0;
+
+    public void add (final NCacheData <K, V> data)
+    {
+      nextId = Math.max (nextId, data.getID () + 1);
+    }
+
+    public void remove (final Fingerprint fp, final long id)
+    {
+      // the id was added before
     }
   }
 
+  /**
+   * Read the start of a cache index that was written by an older version.
+   */
+  private static Checkpoint readOldCacheIndexHeader (final File indexFile) throws IOException
+  {
+    final FileInputStream fis = new FileInputStream (indexFile);
+    try (final ObjectInputStream is = new ObjectInputStream (new GZIPInputStream (fis)))
+    {
+      final long fileNo = is.readLong ();
+      // the current size, it is counted again
+      is.readLong ();
+      return new Checkpoint (0, fileNo, is.readInt ());
+    }
+  }
+
+  /**
+   * Read a cache index that was written by an older version, as serialized
+   * objects.
+   */
   @SuppressWarnings ("unchecked")
-  private void readCacheIndex (final File index) throws IOException, ClassNotFoundException
+  private void readOldCacheIndex (final File indexFile,
+                                  final IndexSink <K, V> sink) throws IOException, ClassNotFoundException
+  {
+    final FileInputStream fis = new FileInputStream (indexFile);
+    try (final ObjectInputStream is = new ObjectInputStream (new GZIPInputStream (fis)))
+    {
+      is.readLong ();
+      is.readLong ();
+      final int size = is.readInt ();
+      NCacheIndex <K, V> index = createIndex (size);
+      for (int i = 0; i < size; i++)
+      {
+        // the key is also held by the entry
+        is.readObject ();
+        final NCacheData <K, V> entry = (NCacheData <K, V>) is.readObject ();
+        final FiledKey <K> fk = entry.getKey ();
+        fk.setCache (this);
+        if (fk.getFingerprint () == null)
+        {
+          // stored before keys had fingerprints
+          final K key = fk.getData ();
+          if (key == null)
+            continue;
+          fk.setFingerprint (getFingerprint (key));
+        }
+        index.put (fk.getFingerprint (), entry);
+      }
+      // Some versions wrote the entries in any order and the age order as a
+      // list, others wrote the entries in age order and an empty list.
+      final List <NCacheData <K, V>> vec = (List <NCacheData <K, V>>) is.readObject ();
+      if (!vec.isEmpty ())
+      {
+        index = createIndex (size);
+        for (final NCacheData <K, V> entry : vec)
+        {
+          final Fingerprint fp = entry.getKey ().getFingerprint ();
+          if (fp != null)
+            index.put (fp, entry);
+        }
+      }
+      for (final NCacheData <K, V> entry : index)
+        sink.add (entry);
+    }
+  }
+
+  /**
+   * Loads the entries of the checkpoint and the journals into the index while
+   * the cache is used. The entries that are changed while loading are
+   * touched, the loaded data for a touched entry is older than what the index
+   * has so it is skipped and its files are removed when the load is done.
+   */
+  private class Loader implements IndexSink <K, V>, Runnable
   {
-    long fileNo;
-    long currentSize;
-    final FileInputStream fis = new FileInputStream (index);
-    final ObjectInputStream is = new ObjectInputStream (new GZIPInputStream (fis));
-    fileNo = is.readLong ();
-    currentSize = is.readLong ();
-    final int size = is.readInt ();
-    final Map <FiledKey <K>, NCacheData <K, V>> htab = new HashMap<> ((int) (size * 1.2));
-    for (int i = 0; i < size; i++)
+    private final File checkpoint;
+    private final boolean legacy;
+    private boolean rebuild;
+    private final List <Long> generations;
+    private final long firstFreeId;
+    private volatile long expected;
+    private final long started = System.currentTimeMillis ();
+    // guarded by the write lock
+    private final Set <Fingerprint> touched = new HashSet<> ();
+    private final Map <Long, NCacheData <K, V>> stale = new HashMap<> ();
+    private volatile long loaded = 0;
+    private volatile boolean cancelled = false;
+    private volatile Thread thread = null;
+
+    public Loader (final File checkpoint,
+                   final boolean legacy,
+                   final boolean rebuild,
+                   final List <Long> generations,
+                   final long firstFreeId,
+                   final long expected)
     {
-      final FiledKey <K> fk = (FiledKey <K>) is.readObject ();
-      fk.setCache (this);
-      final NCacheData <K, V> entry = (NCacheData <K, V>) is.readObject ();
-      htab.put (fk, entry);
+      this.checkpoint = checkpoint;
+      this.legacy = legacy;
+      this.rebuild = rebuild;
+      this.generations = generations;
+      this.firstFreeId = firstFreeId;
+      this.expected = expected;
     }
-    final List <NCacheData <K, V>> vec = (List <NCacheData <K, V>>) is.readObject ();
-    is.close ();
 
-    // Only set internal state if we managed to get it all.
-    this.fileNo = fileNo;
-    this.currentSize = currentSize;
-    this.htab = htab;
-    this.vec = vec;
+    /**
+     * Start loading, on a thread of its own or, if background_load is off, in
+     * the calling thread.
+     */
+    public void start ()
+    {
+      if (!backgroundLoad)
+      {
+        run ();
+        return;
+      }
+      thread = new Thread (this, NCache.this.getClass ().getName () + ".loader");
+      thread.setDaemon (true);
+      thread.start ();
+    }
+
+    /** Stop the loading and wait for the loader thread. */
+    public void cancel ()
+    {
+      cancelled = true;
+      final Thread t = thread;
+      if (t == null || t == Thread.currentThread ())
+        return;
+      try
+      {
+        t.join ();
+      }
+      catch (final InterruptedException e)
+      {
+        // ignore
+      }
+    }
 
+    public double getProgress ()
+    {
+      if (expected == 0)
+        return 0;
+      return Math.min (1, loaded / (double) expected);
+    }
+
+    public void run ()
+    {
+      try
+      {
+        if (checkpoint != null && !readCheckpoint ())
+          rebuild = true;
+        if (rebuild)
+          rebuildIndex ();
+        for (final Long g : generations)
+        {
+          try
+          {
+            Journal.replay (dir, g.longValue (), this, NCache.this);
+          }
+          catch (final InterruptedIOException e)
+          {
+            throw e;
+          }
+          catch (final IOException e)
+          {
+            logWarning ("Failed to replay cache journal: " + g, e);
+          }
+        }
+      }
+      catch (final InterruptedIOException e)
+      {
+        logger.info ("Cache index loading stopped after " + loaded + " of " + expected + " records");
+        w.lock ();
+        try
+        {
+          if (loader == this)
+          {
+            loader = null;
+            loadStopped = true;
+          }
+        }
+        finally
+        {
+          w.unlock ();
+        }
+        return;
+      }
+      finish ();
+    }
+
+    private boolean readCheckpoint () throws InterruptedIOException
+    {
+      try
+      {
+        if (legacy)
+          readOldCacheIndex (checkpoint, this);
+        else
+          Checkpoint.read (checkpoint, NCache.this, this);
+        return true;
+      }
+      catch (final InterruptedIOException e)
+      {
+        throw e;
+      }
+      catch (final IOException e)
+      {
+        logWarning ("Couldnt read " + checkpoint + ". This is bad (but not serius).\nRebuilding the index. ", e);
+      }
+      catch (final ClassNotFoundException e)
+      {
+        logger.log (Level.SEVERE, "Couldn't find classes", e);
+      }
+      return false;
+    }
+
+    /**
+     * Add the entries found in the files. Entries that are already in the
+     * index, from a part of a broken checkpoint, are kept.
+     */
+    private void rebuildIndex () throws InterruptedIOException
+    {
+      final IndexRebuilder <K, V> rebuilder = new IndexRebuilder<> (NCache.this,
+                                                                    dir,
+                                                                    firstFreeId,
+                                                                    configuration.getCacheTime (),
+                                                                    () -> cancelled || !running);
+      final List <NCacheData <K, V>> entries = rebuilder.rebuild ();
+      expected += entries.size ();
+      for (final NCacheData <K, V> data : entries)
+      {
+        checkCancelled ();
+        final Fingerprint fp = data.getKey ().getFingerprint ();
+        w.lock ();
+        try
+        {
+          final NCacheData <K, V> current = index.get (fp);
+          if (current == null && !touched.contains (fp))
+          {
+            index.put (fp, data);
+            currentSize += data.getSize () + data.getKeySize () + data.getHookSize ();
+          }
+          else
+            if (current == null || current.getID () != data.getID ())
+              stale.put (Long.valueOf (data.getID ()), data);
+        }
+        finally
+        {
+          w.unlock ();
+        }
+        loaded++;
+      }
+      w.lock ();
+      try
+      {
+        for (final NCacheData <K, V> data : rebuilder.getReplaced ())
+          stale.put (Long.valueOf (data.getID ()), data);
+      }
+      finally
+      {
+        w.unlock ();
+      }
+    }
+
+    private void checkCancelled () throws InterruptedIOException
+    {
+      if (cancelled || !running)
+        throw new InterruptedIOException ("Cache index loading stopped");
+    }
+
+    public void add (final NCacheData <K, V> data) throws IOException
+    {
+      checkCancelled ();
+      // the journals may be older than the files after a rebuild
+      if (rebuild && !getEntryName (data.getID (), true, null).exists ())
+      {
+        loaded++;
+        return;
+      }
+      final Fingerprint fp = data.getKey ().getFingerprint ();
+      final Long id = Long.valueOf (data.getID ());
+      w.lock ();
+      try
+      {
+        fileNo = Math.max (fileNo, data.getID () + 1);
+        stale.remove (id);
+        if (touched.contains (fp))
+        {
+          final NCacheData <K, V> current = index.get (fp);
+          if (current == null || current.getID () != data.getID ())
+            stale.put (id, data);
+        }
+        else
+        {
+          final NCacheData <K, V> old = index.get (fp);
+          if (old != null)
+          {
+            currentSize -= old.getSize () + old.getKeySize () + old.getHookSize ();
+            if (old.getID () != data.getID ())
+              stale.put (Long.valueOf (old.getID ()), old);
+          }
+          index.put (fp, data);
+          currentSize += data.getSize () + data.getKeySize () + data.getHookSize ();
+        }
+      }
+      finally
+      {
+        w.unlock ();
+      }
+      loaded++;
+    }
+
+    public void remove (final Fingerprint fp, final long id) throws IOException
+    {
+      checkCancelled ();
+      w.lock ();
+      try
+      {
+        final NCacheData <K, V> current = touched.contains (fp) ? null : index.get (fp);
+        if (current != null && current.getID () == id)
+        {
+          index.remove (fp);
+          currentSize -= current.getSize () + current.getKeySize () + current.getHookSize ();
+        }
+      }
+      finally
+      {
+        w.unlock ();
+      }
+      loaded++;
+    }
+
+    private void finish ()
+    {
+      final List <NCacheData <K, V>> skipped;
+      w.lock ();
+      try
+      {
+        skipped = new ArrayList<> ();
+        for (final NCacheData <K, V> data : stale.values ())
+        {
+          // a part of a broken checkpoint may have kept an older entry
+          final NCacheData <K, V> current = index.get (data.getKey ().getFingerprint ());
+          if (current == null || current.getID () != data.getID ())
+            skipped.add (data);
+        }
+        loader = null;
+      }
+      finally
+      {
+        w.unlock ();
+      }
+      for (final NCacheData <K, V> data : skipped)
+      {
+        try
+        {
+          deleteFiles (data);
+        }
+        catch (final IOException e)
+        {
+          logWarning ("Failed to remove files of replaced entry: " + data.getID (), e);
+        }
+      }
+      logger.info ("Loaded " +
+                   loaded +
+                   " cache index records in " +
+                   (System.currentTimeMillis () - started) +
+                   " ms, " +
+                   skipped.size () +
+                   " replaced while loading");
+    }
+  }
+
+  private void cancelLoader ()
+  {
+    final Loader l = loader;
+    if (l != null)
+      l.cancel ();
+  }
+
+  NCacheIndex <K, V> createIndex (final int expectedSize)
+  {
+    if (offHeapIndex)
+      return new OffHeapIndex<> (this, expectedSize);
+    return new HeapIndex<> (expectedSize);
   }
 
   /**
@@ -683,43 +1268,197 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
    */
   public void flush ()
   {
-    writeCacheIndex ();
+    writeCheckpoint ();
   }
 
   /**
-   * Store the cache to disk so we can reuse it later.
+   * Write a checkpoint of the index and start a new journal generation. The
+   * index is walked in steps, the lock is only held while a step copies the
+   * next entries.
    */
-  private void writeCacheIndex ()
+  private void writeCheckpoint ()
   {
-    try
+    synchronized (checkpointLock)
     {
-      final String name = dir + File.separator + CACHEINDEX;
-
-      final FileOutputStream fos = new FileOutputStream (name);
-      final ObjectOutputStream os = new ObjectOutputStream (new GZIPOutputStream (fos));
-
+      final File cacheDir;
+      final long generation;
+      final long fileNo;
+      final IndexWalk <K, V> walk;
       r.lock ();
       try
       {
-        os.writeLong (fileNo);
-        os.writeLong (currentSize);
-        os.writeInt (htab.size ());
-        for (final Map.Entry <FiledKey <K>, NCacheData <K, V>> me : htab.entrySet ())
+        if (dir == null)
+          return;
+        if (loader != null || loadStopped)
         {
-          os.writeObject (me.getKey ());
-          os.writeObject (me.getValue ());
+          // the index is not complete, the journal has all the changes
+          syncJournal ();
+          return;
         }
-        os.writeObject (vec);
+        cacheDir = dir;
+        fileNo = this.fileNo;
+        walk = index.walk ();
+        // the writers are locked out, so the new journal starts where
+        // the walk starts.
+        closeJournal ();
+        journalGeneration++;
+        generation = journalGeneration;
+        replayedRecords = 0;
+        openJournal ();
       }
       finally
       {
         r.unlock ();
       }
-      os.close ();
+
+      try
+      {
+        final Iterable <NCacheData <K, V>> entries = () -> new WalkIterator (walk);
+        Checkpoint.write (new File (cacheDir, CACHEINDEX), generation, fileNo, entries);
+        Journal.removeBefore (cacheDir, generation);
+      }
+      catch (final IOException e)
+      {
+        logWarning ("Couldnt write " + cacheDir + File.separator + CACHEINDEX + ", This is serious!\n", e);
+      }
+      finally
+      {
+        r.lock ();
+        try
+        {
+          walk.close ();
+        }
+        finally
+        {
+          r.unlock ();
+        }
+      }
+    }
+  }
+
+  /** Iterates over an IndexWalk, takes the lock for each step. */
+  private class WalkIterator implements Iterator <NCacheData <K, V>>
+  {
+    private final IndexWalk <K, V> walk;
+    private int count = 0;
+    private int pos = 0;
+
+    public WalkIterator (final IndexWalk <K, V> walk)
+    {
+      this.walk = walk;
+    }
+
+    public boolean hasNext ()
+    {
+      if (pos < count)
+        return true;
+      if (pos == -1)
+        return false;
+      r.lock ();
+      try
+      {
+        count = walk.next ();
+      }
+      finally
+      {
+        r.unlock ();
+      }
+      pos = count == 0 ? -1 : 0;
+      return count > 0;
+    }
+
+    public NCacheData <K, V> next ()
+    {
+      if (!hasNext ())
+        throw new NoSuchElementException ();
+      return walk.get (pos++);
+    }
+
+    public void remove ()
+    {
+      throw new UnsupportedOperationException ();
+    }
+  }
+
+  private void openJournal ()
+  {
+    try
+    {
+      journal = new Journal (dir, journalGeneration, journalSyncTime <= 0);
     }
     catch (final IOException e)
     {
-      logWarning ("Couldnt write " + dir + File.separator + CACHEINDEX + ", This is serious!\n", e);
+      journal = null;
+      logWarning ("Failed to create cache journal, changes are only saved by checkpoints", e);
+    }
+  }
+
+  private void closeJournal ()
+  {
+    final Journal j = journal;
+    journal = null;
+    if (j == null)
+      return;
+    try
+    {
+      j.close ();
+    }
+    catch (final IOException e)
+    {
+      logWarning ("Failed to close cache journal", e);
+    }
+  }
+
+  private void syncJournal ()
+  {
+    final Journal j = journal;
+    if (j == null)
+      return;
+    try
+    {
+      j.sync ();
+    }
+    catch (final IOException e)
+    {
+      logWarning ("Failed to sync cache journal", e);
+    }
+  }
+
+  private long getJournalRecords ()
+  {
+    final Journal j = journal;
+    return replayedRecords + (j == null ? 0 : j.getRecords ());
+  }
+
+  /** Add an add record to the journal, hold the write lock. */
+  private void journalAdd (final NCacheData <K, V> data)
+  {
+    final Journal j = journal;
+    if (j == null)
+      return;
+    try
+    {
+      j.add (data);
+    }
+    catch (final IOException e)
+    {
+      logWarning ("Failed to write cache journal", e);
+    }
+  }
+
+  /** Add a remove record to the journal, hold the write lock. */
+  private void journalRemove (final Fingerprint fp, final long id)
+  {
+    final Journal j = journal;
+    if (j == null)
+      return;
+    try
+    {
+      j.remove (fp, id);
+    }
+    catch (final IOException e)
+    {
+      logWarning ("Failed to write cache journal", e);
     }
   }
 
@@ -729,11 +1468,13 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
   public void run ()
   {
     Thread.currentThread ().setPriority (Thread.MIN_PRIORITY);
+    long lastClean = System.currentTimeMillis ();
     while (running)
     {
       try
       {
-        Thread.sleep (cleanLoopTime);
+        // wake up often enough to sync the journal
+        Thread.sleep (journalSyncTime > 0 ? Math.min (cleanLoopTime, journalSyncTime) : cleanLoopTime);
       }
       catch (final InterruptedException e)
       {
@@ -741,31 +1482,30 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
       }
       if (!running)
         continue;
+      syncJournal ();
+      // clean once the whole index is known
+      if (loader != null || loadStopped || System.currentTimeMillis () - lastClean < cleanLoopTime)
+        continue;
+      lastClean = System.currentTimeMillis ();
 
       // actually for a busy cache this will lag...
       // but I dont care for now...
       final long milis = System.currentTimeMillis ();
-      Map <FiledKey <K>, NCacheData <K, V>> hc;
+      List <NCacheData <K, V>> expired;
       r.lock ();
       try
       {
-        hc = new HashMap<> (htab);
+        expired = index.getExpired (milis);
       }
       finally
       {
         r.unlock ();
       }
-      for (final Map.Entry <FiledKey <K>, NCacheData <K, V>> ce : hc.entrySet ())
+      for (final NCacheData <K, V> data : expired)
       {
         try
         {
-          final long exp = ce.getValue ().getExpires ();
-          if (exp < milis)
-            removeKey (ce.getKey ());
-        }
-        catch (final IOException e)
-        {
-          logWarning ("Failed to remove expired entry", e);
+          remove (data.getKey ().getFingerprint (), data);
         }
         catch (final CacheException e)
         {
@@ -779,18 +1519,15 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
       // a sense.
 
       final long maxSize = configuration.getMaxSize ();
-      if (getCurrentSize () > maxSize)
-        changed = true;
       while (getCurrentSize () > maxSize)
       {
         w.lock ();
         try
         {
-          removeKey (vec.get (0).getKey ());
-        }
-        catch (final IOException e)
-        {
-          logWarning ("Failed to remove entry", e);
+          final Fingerprint oldest = index.getOldest ();
+          if (oldest == null)
+            break;
+          remove (oldest, null);
         }
         catch (final CacheException e)
         {
@@ -802,23 +1539,15 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
         }
       }
 
-      if (changed)
-      {
-        writeCacheIndex ();
-        changed = false;
-      }
+      if (getJournalRecords () >= checkpointRecords)
+        writeCheckpoint ();
     }
   }
 
-  private void removeKey (final FiledKey <K> fk) throws IOException, CacheException
-  {
-    fk.setCache (this);
-    remove (fk.getData ());
-  }
-
   public void stop ()
   {
     running = false;
+    cancelLoader ();
     if (cleaner != null)
     {
       try
@@ -831,6 +1560,7 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
         // ignore
       }
     }
+    syncJournal ();
   }
 
   /**
@@ -845,6 +1575,27 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
   {
     if (config == null)
       config = new SMap ();
+    verifyKeys = "true".equalsIgnoreCase (config.getOrDefault ("verify_keys", "false"));
+    offHeapIndex = "offheap".equalsIgnoreCase (config.getOrDefault ("index", "heap"));
+    backgroundLoad = "true".equalsIgnoreCase (config.getOrDefault ("background_load", "true"));
+    final String js = config.getOrDefault ("journal_sync", DEFAULT_JOURNAL_SYNC);
+    try
+    {
+      journalSyncTime = (int) (Double.parseDouble (js) * 1000); // in seconds.
+    }
+    catch (final NumberFormatException e)
+    {
+      logger.warning ("Bad number for cache journal_sync: '" + js + "'");
+    }
+    final String cr = config.getOrDefault ("checkpoint_records", DEFAULT_CHECKPOINT_RECORDS);
+    try
+    {
+      checkpointRecords = Long.parseLong (cr);
+    }
+    catch (final NumberFormatException e)
+    {
+      logger.warning ("Bad number for cache checkpoint_records: '" + cr + "'");
+    }
     final String cachedir = config.getOrDefault ("directory", DIR);
     configuration.setCacheDir (cachedir);
     configuration.setup (logger, config);
@@ -872,14 +1623,14 @@ public class NCache <K, V> implements ICache <K, V>, Runnable
     {
       final FiledKey <K> key = data.getKey ();
       key.setCache (this);
-      final K keyData = key.getData ();
-      final V hook = data.getDataHook ().getData (this, data, getLogger ());
-      return new NCacheEntry<> (data.getID (),
-                                data.getCacheTime (),
-                                data.getExpires (),
-                                data.getSize (),
-                                keyData,
-                                hook);
+      final FiledHook <V> fh = data.getDataHook ();
+      final V hook = fh == null ? null : fh.getData (this, data, getLogger ());
+      return new NCacheEntry <K, V> (data.getID (),
+                                     data.getCacheTime (),
+                                     data.getExpires (),
+                                     data.getSize (),
+                                     key,
+                                     hook);
     }
     catch (final IOException e)
     {
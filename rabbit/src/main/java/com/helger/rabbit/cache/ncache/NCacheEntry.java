@@ -1,5 +1,7 @@
 package com.helger.rabbit.cache.ncache;
 
+import java.io.IOException;
+
 import com.helger.rabbit.cache.ICacheEntry;
 
 /**
@@ -15,6 +17,8 @@ class NCacheEntry <K, V> extends NCacheElementBase implements ICacheEntry <K, V>
 {
   /** @serial The key for the object usually a URL or a filename. */
   private K key = null;
+  /** The stored key, read when the key is first asked for. */
+  private FiledKey <K> filedKey;
   /** @serial The hooked data of the cached object. */
   private V datahook;
 
@@ -47,13 +51,55 @@ class NCacheEntry <K, V> extends NCacheElementBase implements ICacheEntry <K, V>
     this.datahook = datahook;
   }
 
+  /**
+   * Create a new CacheEntry for a stored entry, the key is read from disk the
+   * first time it is used.
+   * 
+   * @param id
+   *        the identity of this entry
+   * @param cachetime
+   *        the date this entry was cached
+   * @param expires
+   *        the date this entry exipres
+   * @param size
+   *        the number of bytes the actual cached resource is (excluding
+   *        overhead)
+   * @param filedKey
+   *        the stored key for the object.
+   * @param datahook
+   *        the additional data
+   */
+  NCacheEntry (final long id,
+               final long cachetime,
+               final long expires,
+               final long size,
+               final FiledKey <K> filedKey,
+               final V datahook)
+  {
+    super (id, cachetime, expires, size);
+    this.filedKey = filedKey;
+    this.datahook = datahook;
+  }
+
   /**
    * Get the key were holding data for
    * 
    * @return the keyobject
    */
-  public K getKey ()
+  public synchronized K getKey ()
   {
+    if (filedKey != null)
+    {
+      try
+      {
+        key = filedKey.getData ();
+      }
+      catch (final IOException e)
+      {
+        throw new RuntimeException ("Failed to read key: " + filedKey, e);
+      }
+      filedKey = null;
+    }
     return key;
   }
 
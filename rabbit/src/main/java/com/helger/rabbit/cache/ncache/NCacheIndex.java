@@ -0,0 +1,79 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.util.List;
+
+/**
+ * The in memory index of a NCache, maps the fingerprint of the keys to the
+ * cache data and keeps track of the age order of the entries. Iteration is in
+ * age order, oldest first.
+ * <p>
+ * The index is not thread safe, the NCache holds its locks while using it.
+ *
+ * @param <K>
+ *        the key type of the cache
+ * @param <V>
+ *        the value type of the cache
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+interface NCacheIndex <K, V> extends Iterable <NCacheData <K, V>>
+{
+  /**
+   * Get the data for a fingerprint.
+   *
+   * @param fp
+   *        the Fingerprint of the key
+   * @return the NCacheData or null if there is no such entry
+   */
+  NCacheData <K, V> get (Fingerprint fp);
+
+  /**
+   * Add or update an entry. A new entry becomes the newest entry, an updated
+   * entry keeps its age.
+   *
+   * @param fp
+   *        the Fingerprint of the key
+   * @param data
+   *        the data of the entry
+   */
+  void put (Fingerprint fp, NCacheData <K, V> data);
+
+  /**
+   * Remove an entry.
+   *
+   * @param fp
+   *        the Fingerprint of the key
+   * @return the removed NCacheData or null if there was no such entry
+   */
+  NCacheData <K, V> remove (Fingerprint fp);
+
+  /**
+   * Get the number of entries.
+   *
+   * @return the number of entries in the index
+   */
+  int size ();
+
+  /**
+   * Get the fingerprint of the oldest entry.
+   *
+   * @return the Fingerprint or null if the index is empty
+   */
+  Fingerprint getOldest ();
+
+  /**
+   * Get the entries that expire before the given time.
+   *
+   * @param now
+   *        the time in millis
+   * @return the expired entries
+   */
+  List <NCacheData <K, V>> getExpired (long now);
+
+  /**
+   * Start a walk over the entries, for a checkpoint that is written while the
+   * index is in use. Only one walk may be in progress at a time.
+   *
+   * @return the IndexWalk
+   */
+  IndexWalk <K, V> walk ();
+}
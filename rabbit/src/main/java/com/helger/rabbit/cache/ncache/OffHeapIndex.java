@@ -0,0 +1,456 @@
+package com.helger.rabbit.cache.ncache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A NCacheIndex that keeps the cache data in fixed size slots in direct
+ * buffers, outside of the java heap. The slots are found by open addressing
+ * on the fingerprint and are linked together in age order, so there are no
+ * java objects for the entries. The NCacheData objects are created when an
+ * entry is read and changes to them are only stored by a new put.
+ * <p>
+ * A slot is 80 bytes and the table grows when it is three quarters full, so
+ * plan for up to 200 bytes of direct memory for each entry, the jvm limits
+ * direct memory with -XX:MaxDirectMemorySize.
+ *
+ * @param <K>
+ *        the key type of the cache
+ * @param <V>
+ *        the value type of the cache
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class OffHeapIndex <K, V> implements NCacheIndex <K, V>
+{
+  // The layout of a slot
+  private static final int STATE = 0;
+  private static final int HASHCODE = 4;
+  private static final int FP_HIGH = 8;
+  private static final int FP_LOW = 16;
+  private static final int ID = 24;
+  private static final int CACHETIME = 32;
+  private static final int EXPIRES = 40;
+  private static final int SIZE = 48;
+  private static final int KEYSIZE = 56;
+  private static final int HOOKSIZE = 64;
+  private static final int PREV = 72;
+  private static final int NEXT = 76;
+  private static final int SLOT_SIZE = 80;
+
+  // The states of a slot
+  private static final int EMPTY = 0;
+  private static final int USED = 1;
+  private static final int DELETED = 2;
+
+  private static final int MIN_CAPACITY = 1 << 10;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  // The number of entries in each step of a walk and the longs for each entry
+  private static final int WALK_STEP = 4096;
+  private static final int WALK_FIELDS = 9;
+
+  private final NCache <K, V> cache;
+  private Slots slots;
+  private int used = 0;
+  // the number of slots that are not empty, used or deleted
+  private int filled = 0;
+  // the oldest and newest slot
+  private int head = -1;
+  private int tail = -1;
+  // the next and the last slot of the walk in progress, -1 when it is done
+  private boolean walking = false;
+  private int walkNext = -1;
+  private int walkLast = -1;
+
+  /**
+   * Create a new OffHeapIndex.
+   *
+   * @param cache
+   *        the NCache the keys of the entries belong to
+   * @param expectedSize
+   *        the number of entries the index is expected to hold
+   */
+  public OffHeapIndex (final NCache <K, V> cache, final int expectedSize)
+  {
+    this.cache = cache;
+    slots = new Slots (capacityFor (expectedSize));
+  }
+
+  private static int capacityFor (final int entries)
+  {
+    int c = MIN_CAPACITY;
+    while (c / 2 <= entries)
+    {
+      if (c == MAX_CAPACITY)
+        throw new IllegalStateException ("Too many entries for the cache index: " + entries);
+      c <<= 1;
+    }
+    return c;
+  }
+
+  private int find (final Fingerprint fp)
+  {
+    final int mask = slots.capacity - 1;
+    int slot = (int) fp.getLow () & mask;
+    while (true)
+    {
+      final int state = slots.getInt (slot, STATE);
+      if (state == EMPTY)
+        return -1;
+      if (state == USED && matches (slot, fp))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean matches (final int slot, final Fingerprint fp)
+  {
+    return slots.getLong (slot, FP_LOW) == fp.getLow () && slots.getLong (slot, FP_HIGH) == fp.getHigh ();
+  }
+
+  public NCacheData <K, V> get (final Fingerprint fp)
+  {
+    final int slot = find (fp);
+    return slot == -1 ? null : readData (slot);
+  }
+
+  public void put (final Fingerprint fp, final NCacheData <K, V> data)
+  {
+    final int mask = slots.capacity - 1;
+    int slot = (int) fp.getLow () & mask;
+    int free = -1;
+    while (true)
+    {
+      final int state = slots.getInt (slot, STATE);
+      if (state == EMPTY)
+        break;
+      if (state == DELETED)
+      {
+        if (free == -1)
+          free = slot;
+      }
+      else
+        if (matches (slot, fp))
+        {
+          writeData (slot, data);
+          return;
+        }
+      slot = (slot + 1) & mask;
+    }
+    if (free == -1)
+    {
+      free = slot;
+      filled++;
+    }
+    slots.putInt (free, STATE, USED);
+    slots.putLong (free, FP_HIGH, fp.getHigh ());
+    slots.putLong (free, FP_LOW, fp.getLow ());
+    writeData (free, data);
+    link (free);
+    used++;
+    if (filled > slots.capacity - (slots.capacity >>> 2))
+      rehash ();
+  }
+
+  public NCacheData <K, V> remove (final Fingerprint fp)
+  {
+    final int slot = find (fp);
+    if (slot == -1)
+      return null;
+    final NCacheData <K, V> data = readData (slot);
+    unlink (slot);
+    used--;
+    // a slot before an empty slot is not part of any other probe sequence
+    if (slots.getInt ((slot + 1) & (slots.capacity - 1), STATE) == EMPTY)
+    {
+      slots.putInt (slot, STATE, EMPTY);
+      filled--;
+    }
+    else
+    {
+      slots.putInt (slot, STATE, DELETED);
+    }
+    return data;
+  }
+
+  public int size ()
+  {
+    return used;
+  }
+
+  public Fingerprint getOldest ()
+  {
+    if (head == -1)
+      return null;
+    return new Fingerprint (slots.getLong (head, FP_HIGH), slots.getLong (head, FP_LOW));
+  }
+
+  public List <NCacheData <K, V>> getExpired (final long now)
+  {
+    final List <NCacheData <K, V>> ret = new ArrayList<> ();
+    for (int slot = head; slot != -1; slot = slots.getInt (slot, NEXT))
+      if (slots.getLong (slot, EXPIRES) < now)
+        ret.add (readData (slot));
+    return ret;
+  }
+
+  public Iterator <NCacheData <K, V>> iterator ()
+  {
+    return new Iterator <NCacheData <K, V>> ()
+    {
+      private int slot = head;
+
+      public boolean hasNext ()
+      {
+        return slot != -1;
+      }
+
+      public NCacheData <K, V> next ()
+      {
+        if (slot == -1)
+          throw new NoSuchElementException ();
+        final NCacheData <K, V> data = readData (slot);
+        slot = slots.getInt (slot, NEXT);
+        return data;
+      }
+
+      public void remove ()
+      {
+        throw new UnsupportedOperationException ();
+      }
+    };
+  }
+
+  /**
+   * Walk the entries in age order. Each step copies the entries to a block on
+   * the heap, the walk follows the links of the slots and is kept up to date
+   * when slots are unlinked or moved.
+   */
+  public IndexWalk <K, V> walk ()
+  {
+    if (walking)
+      throw new IllegalStateException ("A walk is already in progress");
+    walking = true;
+    walkNext = head;
+    walkLast = tail;
+    return new IndexWalk <K, V> ()
+    {
+      private final long [] block = new long [WALK_STEP * WALK_FIELDS];
+
+      public int next ()
+      {
+        int n = 0;
+        while (n < WALK_STEP && walkNext != -1)
+        {
+          final int slot = walkNext;
+          int pos = n * WALK_FIELDS;
+          block[pos++] = slots.getInt (slot, HASHCODE);
+          for (int field = FP_HIGH; field <= HOOKSIZE; field += 8)
+            block[pos++] = slots.getLong (slot, field);
+          walkNext = slot == walkLast ? -1 : slots.getInt (slot, NEXT);
+          n++;
+        }
+        return n;
+      }
+
+      public NCacheData <K, V> get (final int i)
+      {
+        final int pos = i * WALK_FIELDS;
+        return createData ((int) block[pos],
+                           block[pos + 1],
+                           block[pos + 2],
+                           block[pos + 3],
+                           block[pos + 4],
+                           block[pos + 5],
+                           block[pos + 6],
+                           block[pos + 7],
+                           block[pos + 8]);
+      }
+
+      public void close ()
+      {
+        walking = false;
+        walkNext = walkLast = -1;
+      }
+    };
+  }
+
+  private NCacheData <K, V> readData (final int slot)
+  {
+    return createData (slots.getInt (slot, HASHCODE),
+                       slots.getLong (slot, FP_HIGH),
+                       slots.getLong (slot, FP_LOW),
+                       slots.getLong (slot, ID),
+                       slots.getLong (slot, CACHETIME),
+                       slots.getLong (slot, EXPIRES),
+                       slots.getLong (slot, SIZE),
+                       slots.getLong (slot, KEYSIZE),
+                       slots.getLong (slot, HOOKSIZE));
+  }
+
+  private NCacheData <K, V> createData (final int hashCode,
+                                        final long fpHigh,
+                                        final long fpLow,
+                                        final long id,
+                                        final long cachetime,
+                                        final long expires,
+                                        final long size,
+                                        final long keySize,
+                                        final long hookSize)
+  {
+    final FiledKey <K> key = new FiledKey<> (cache, id, hashCode, new Fingerprint (fpHigh, fpLow));
+    final FiledHook <V> hook = hookSize < 0 ? null : new FiledHook<> ();
+    return new NCacheData<> (id, cachetime, expires, size, key, keySize, hook, Math.max (0, hookSize));
+  }
+
+  /** Copy the entry data, but not the state and links, of a slot. */
+  private static void copySlot (final Slots from, final int fromSlot, final Slots to, final int toSlot)
+  {
+    to.putInt (toSlot, HASHCODE, from.getInt (fromSlot, HASHCODE));
+    for (int field = FP_HIGH; field <= HOOKSIZE; field += 8)
+      to.putLong (toSlot, field, from.getLong (fromSlot, field));
+  }
+
+  private void writeData (final int slot, final NCacheData <K, V> data)
+  {
+    slots.putInt (slot, HASHCODE, data.getKey ().hashCode ());
+    slots.putLong (slot, ID, data.getID ());
+    slots.putLong (slot, CACHETIME, data.getCacheTime ());
+    slots.putLong (slot, EXPIRES, data.getExpires ());
+    slots.putLong (slot, SIZE, data.getSize ());
+    slots.putLong (slot, KEYSIZE, data.getKeySize ());
+    slots.putLong (slot, HOOKSIZE, data.getDataHook () == null ? -1 : data.getHookSize ());
+  }
+
+  private void link (final int slot)
+  {
+    slots.putInt (slot, PREV, tail);
+    slots.putInt (slot, NEXT, -1);
+    if (tail == -1)
+      head = slot;
+    else
+      slots.putInt (tail, NEXT, slot);
+    tail = slot;
+  }
+
+  private void unlink (final int slot)
+  {
+    final int prev = slots.getInt (slot, PREV);
+    final int next = slots.getInt (slot, NEXT);
+    if (walking)
+    {
+      // the walk has copied every slot before walkNext
+      if (slot == walkLast)
+      {
+        if (slot == walkNext)
+          walkNext = walkLast = -1;
+        else
+          walkLast = prev;
+      }
+      else
+        if (slot == walkNext)
+          walkNext = next;
+    }
+    if (prev == -1)
+      head = next;
+    else
+      slots.putInt (prev, NEXT, next);
+    if (next == -1)
+      tail = prev;
+    else
+      slots.putInt (next, PREV, prev);
+  }
+
+  /** Move all entries to a new table, in age order, to drop deleted slots. */
+  private void rehash ()
+  {
+    final Slots old = slots;
+    int slot = head;
+    int newWalkNext = -1;
+    int newWalkLast = -1;
+    slots = new Slots (capacityFor (used));
+    used = 0;
+    filled = 0;
+    head = -1;
+    tail = -1;
+    final int mask = slots.capacity - 1;
+    while (slot != -1)
+    {
+      final long low = old.getLong (slot, FP_LOW);
+      int ns = (int) low & mask;
+      while (slots.getInt (ns, STATE) != EMPTY)
+        ns = (ns + 1) & mask;
+      slots.putInt (ns, STATE, USED);
+      copySlot (old, slot, slots, ns);
+      link (ns);
+      used++;
+      filled++;
+      if (slot == walkNext)
+        newWalkNext = ns;
+      if (slot == walkLast)
+        newWalkLast = ns;
+      slot = old.getInt (slot, NEXT);
+    }
+    walkNext = newWalkNext;
+    walkLast = newWalkLast;
+  }
+
+  /**
+   * The slot table, split over several buffers so that it can grow past the
+   * size of one buffer.
+   */
+  private static final class Slots
+  {
+    // 64k slots, 5 MB, in each buffer
+    private static final int MAX_SEGMENT_SHIFT = 16;
+
+    private final int capacity;
+    private final int shift;
+    private final int mask;
+    private final ByteBuffer [] segments;
+
+    public Slots (final int capacity)
+    {
+      this.capacity = capacity;
+      shift = Math.min (MAX_SEGMENT_SHIFT, Integer.numberOfTrailingZeros (capacity));
+      mask = (1 << shift) - 1;
+      segments = new ByteBuffer [capacity >>> shift];
+      for (int i = 0; i < segments.length; i++)
+        segments[i] = ByteBuffer.allocateDirect (SLOT_SIZE << shift).order (ByteOrder.nativeOrder ());
+    }
+
+    private ByteBuffer segment (final int slot)
+    {
+      return segments[slot >>> shift];
+    }
+
+    private int offset (final int slot, final int field)
+    {
+      return (slot & mask) * SLOT_SIZE + field;
+    }
+
+    public int getInt (final int slot, final int field)
+    {
+      return segment (slot).getInt (offset (slot, field));
+    }
+
+    public long getLong (final int slot, final int field)
+    {
+      return segment (slot).getLong (offset (slot, field));
+    }
+
+    public void putInt (final int slot, final int field, final int value)
+    {
+      segment (slot).putInt (offset (slot, field), value);
+    }
+
+    public void putLong (final int slot, final int field, final long value)
+    {
+      segment (slot).putLong (offset (slot, field), value);
+    }
+  }
+}
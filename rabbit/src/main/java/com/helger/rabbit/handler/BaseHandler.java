@@ -8,7 +8,9 @@ import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.Date;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,10 +32,16 @@ import com.helger.rabbit.httpio.TransferHandler;
 import com.helger.rabbit.httpio.TransferListener;
 import com.helger.rabbit.io.BufferHandle;
 import com.helger.rabbit.io.FileHelper;
+import com.helger.rabbit.io.SharedBuffer;
+import com.helger.rabbit.io.SharedBufferHandle;
+import com.helger.rabbit.io.SimpleBufferHandle;
 import com.helger.rabbit.proxy.Connection;
 import com.helger.rabbit.proxy.HttpProxy;
 import com.helger.rabbit.proxy.PartialCacher;
 import com.helger.rabbit.proxy.TrafficLoggerHandler;
+import com.helger.rnio.ITaskIdentifier;
+import com.helger.rnio.impl.DefaultTaskIdentifier;
+import com.helger.rnio.impl.OutboundQueue;
 
 /**
  * This class is an implementation of the Handler interface. This handler does
@@ -68,6 +76,9 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
   /** The total amount of data that we read. */
   protected long totalRead = 0;
 
+  /** The last failure of a shared cache write, the entry is then dropped. */
+  private volatile IOException cacheFailure;
+
   /** The flag for the last empty chunk */
   private boolean emptyChunkSent = false;
 
@@ -162,17 +173,21 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
     return false;
   }
 
+  /**
+   * Queue the response header for the client. The header is written together
+   * with the first block of the resource if that block is ready at once,
+   * otherwise it is written on its own so that the client does not have to
+   * wait for the first block to get the header.
+   */
   protected void sendHeader ()
   {
     try
     {
-      final HttpHeaderSender hhs = new HttpHeaderSender (con.getChannel (),
-                                                         con.getNioHandler (),
-                                                         tlh.getClient (),
-                                                         response,
-                                                         false,
-                                                         this);
-      hhs.sendHeader ();
+      final OutboundQueue queue = con.getOutboundQueue ();
+      final HttpHeaderSender hhs = new HttpHeaderSender (queue, tlh.getClient (), response, false, this);
+      hhs.queueHeader ();
+      // no block was sent with the header, the first read has to wait
+      queue.flushQueued ();
     }
     catch (final IOException e)
     {
@@ -206,11 +221,14 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
       emptyChunkSent = true;
       final BlockSentListener bsl = new Finisher ();
       final ChunkEnder ce = new ChunkEnder ();
-      ce.sendChunkEnding (con.getChannel (), con.getNioHandler (), tlh.getClient (), bsl);
+      ce.sendChunkEnding (con.getOutboundQueue (), tlh.getClient (), bsl);
     }
     else
     {
-      finish (true);
+      // write the header if it is still queued
+      final BufferHandle bh = new SimpleBufferHandle (ByteBuffer.allocate (0));
+      final BlockSender bs = new BlockSender (con.getOutboundQueue (), tlh.getClient (), bh, false, new Finisher ());
+      bs.write ();
     }
   }
 
@@ -531,13 +549,14 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
   {
     if (mayTransfer () && content.length () > 0 && content.supportsTransfer ())
     {
-      final TransferListener tl = new ContentTransferListener ();
+      final ContentTransferListener tl = new ContentTransferListener ();
       final TransferHandler th = new TransferHandler (con.getNioHandler (),
                                                       content,
-                                                      con.getChannel (),
+                                                      con.getOutboundQueue (),
                                                       tlh.getCache (),
                                                       tlh.getClient (),
                                                       tl);
+      tl.handler = th;
       th.transfer ();
     }
     else
@@ -548,8 +567,14 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
 
   private class ContentTransferListener implements TransferListener
   {
+    private TransferHandler handler;
+
     public void transferOk ()
     {
+      String ei = con.getExtraInfo ();
+      final String sf = "sendfile:" + handler.getBytesTransferred () + "/" + handler.getSlices () + "/" + handler.getWorkerSlices ();
+      ei = ei == null ? sf : (ei + ", " + sf);
+      con.setExtraInfo (ei);
       finishData ();
     }
 
@@ -561,10 +586,14 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
 
   protected void writeCache (final ByteBuffer buf) throws IOException
   {
-    // TODO: another thread?
+    writeCache (cacheChannel, buf);
+  }
+
+  private void writeCache (final WritableByteChannel channel, final ByteBuffer buf) throws IOException
+  {
     final int currentPosition = buf.position ();
     while (buf.hasRemaining ())
-      cacheChannel.write (buf);
+      channel.write (buf);
     buf.position (currentPosition);
     tlh.getCache ().write (buf.remaining ());
   }
@@ -576,24 +605,191 @@ public class BaseHandler implements IHandler, IHandlerFactory, HttpHeaderSentLis
       // not sure why this can happen, client has closed connection.
       return;
     }
-    try
+    sendBlock (bufHandle);
+  }
+
+  private void sendBlock (final BufferHandle bufHandle)
+  {
+    final ByteBuffer buffer = bufHandle.getBuffer ();
+    totalRead += buffer.remaining ();
+    if (cacheChannel != null)
     {
-      // TODO: do this in another thread?
-      final ByteBuffer buffer = bufHandle.getBuffer ();
-      if (cacheChannel != null)
-        writeCache (buffer);
+      sendAndCache (buffer);
+      return;
+    }
+    final BlockSender bs = new BlockSender (con.getOutboundQueue (),
+                                            tlh.getClient (),
+                                            bufHandle,
+                                            con.getChunking (),
+                                            this);
+    bs.write ();
+  }
+
+  /**
+   * Send several blocks to the client with as few writes as possible. All the
+   * blocks are queued on the client channel and written together, blockSent
+   * is called once all of them have been written. The blocks must not be
+   * changed until then.
+   *
+   * @param blocks
+   *        the data blocks to send
+   */
+  protected void sendBuffers (final List <ByteBuffer> blocks)
+  {
+    if (con == null)
+    {
+      // client has closed connection.
+      return;
+    }
+    if (blocks.isEmpty ())
+    {
+      blockSent ();
+      return;
+    }
+    final int last = blocks.size () - 1;
+    for (int i = 0; i < last; i++)
+    {
+      final ByteBuffer buffer = blocks.get (i);
       totalRead += buffer.remaining ();
-      final BlockSender bs = new BlockSender (con.getChannel (),
-                                              con.getNioHandler (),
-                                              tlh.getClient (),
-                                              bufHandle,
-                                              con.getChunking (),
-                                              this);
-      bs.write ();
+      if (cacheChannel != null)
+      {
+        try
+        {
+          writeCache (buffer);
+        }
+        catch (final IOException e)
+        {
+          con.getOutboundQueue ().clear ();
+          failed (e);
+          return;
+        }
+      }
+      BlockSender.addBlock (con.getOutboundQueue (), buffer, con.getChunking ());
     }
-    catch (final IOException e)
+    sendBlock (new SimpleBufferHandle (blocks.get (last)));
+  }
+
+  /**
+   * Send the block to the client and write it to the cache at the same time.
+   * Both writers use a view of the same shared buffer. The block is done once
+   * both views have been released, only then is the next block requested or a
+   * failure of the client send handled, so the owner of the buffer never gets
+   * it back while a view still uses it.
+   */
+  private void sendAndCache (final ByteBuffer buffer)
+  {
+    final SharedBlock block = new SharedBlock (buffer);
+    final SharedBufferHandle cacheView = block.cacheView;
+
+    final WritableByteChannel channel = cacheChannel;
+    final Runnable cacheWriter = () -> {
+      try
+      {
+        writeCache (channel, cacheView.getBuffer ());
+      }
+      catch (final IOException e)
+      {
+        cacheFailure = e;
+      }
+      finally
+      {
+        cacheView.release ();
+      }
+    };
+    if (con.getNioHandler ().isSelectorThread ())
     {
-      failed (e);
+      // do not block the selector with file writes
+      final ITaskIdentifier ti = new DefaultTaskIdentifier (getClass ().getSimpleName () + ".writeCache",
+                                                            request.getRequestURI ());
+      try
+      {
+        con.getNioHandler ().runThreadTask (cacheWriter, ti);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        // the write may not block the selector either, stop caching instead
+        cacheFailure = new IOException ("Cache write was rejected: " + e.getMessage ());
+        cacheView.release ();
+      }
+    }
+    else
+    {
+      cacheWriter.run ();
+    }
+
+    final BlockSender bs = new BlockSender (con.getOutboundQueue (),
+                                            tlh.getClient (),
+                                            block.clientView,
+                                            con.getChunking (),
+                                            block);
+    bs.write ();
+  }
+
+  /**
+   * One block that is sent to the client and written to the cache. The client
+   * view is released when the send is done, whether it worked or not.
+   */
+  private class SharedBlock implements BlockSentListener
+  {
+    private final ByteBuffer buffer;
+    private final SharedBufferHandle clientView;
+    private final SharedBufferHandle cacheView;
+    private volatile Exception clientFailure;
+    private volatile boolean clientTimeout;
+
+    public SharedBlock (final ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+      final SharedBuffer shared = new SharedBuffer (buffer, this::done);
+      clientView = shared.retainedSlice ();
+      cacheView = shared.retainedSlice ();
+      shared.release ();
+    }
+
+    public void blockSent ()
+    {
+      clientView.release ();
+    }
+
+    public void failed (final Exception cause)
+    {
+      clientFailure = cause;
+      clientView.release ();
+    }
+
+    public void timeout ()
+    {
+      clientTimeout = true;
+      clientView.release ();
+    }
+
+    /** Called once both views have been released. */
+    private void done ()
+    {
+      // both the client and the cache are done with the data, mark the block
+      // as used.
+      synchronized (buffer)
+      {
+        buffer.position (buffer.limit ());
+      }
+      if (clientTimeout)
+      {
+        BaseHandler.this.timeout ();
+        return;
+      }
+      if (clientFailure != null)
+      {
+        BaseHandler.this.failed (clientFailure);
+        return;
+      }
+      final IOException e = cacheFailure;
+      if (e != null)
+      {
+        cacheFailure = null;
+        getLogger ().warning ("Failed to write cache, will not cache: " + request.getRequestURI () + ": " + e);
+        removeCache ();
+      }
+      BaseHandler.this.blockSent ();
     }
   }
 
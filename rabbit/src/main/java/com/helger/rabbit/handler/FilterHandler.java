@@ -399,9 +399,20 @@ public class FilterHandler extends GZipHandler
 
   private void sendBlockBuffers ()
   {
-    final ByteBuffer buf = sendBlocks.next ();
-    final SimpleBufferHandle bh = new SimpleBufferHandle (buf);
-    send (bh);
+    if (isCompressing ())
+    {
+      final ByteBuffer buf = sendBlocks.next ();
+      final SimpleBufferHandle bh = new SimpleBufferHandle (buf);
+      send (bh);
+    }
+    else
+    {
+      // write all the filtered blocks together
+      final List <ByteBuffer> blocks = new ArrayList<> ();
+      while (sendBlocks.hasNext ())
+        blocks.add (sendBlocks.next ());
+      sendBuffers (blocks);
+    }
   }
 
   @Override
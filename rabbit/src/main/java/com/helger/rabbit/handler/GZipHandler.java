@@ -89,6 +89,16 @@ public class GZipHandler extends BaseHandler
     }
   }
 
+  /**
+   * Check if the resource is being compressed.
+   *
+   * @return true if the data sent is compressed
+   */
+  protected boolean isCompressing ()
+  {
+    return isCompressing;
+  }
+
   protected boolean willCompress ()
   {
     String ce = response.getHeader ("Content-Encoding");
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 
 import com.helger.commons.io.stream.StreamHelper;
@@ -286,16 +287,23 @@ public class ImageHandler extends BaseHandler
     public void bufferRead (final BufferHandle bufHandle)
     {
       final ITaskIdentifier ti = getTaskIdentifier (this, "bufferRead");
-      con.getNioHandler ().runThreadTask ( () -> {
-        if (unzip)
-        {
-          unpackData (bufHandle);
-        }
-        else
-        {
-          writeImageData (bufHandle);
-        }
-      }, ti);
+      try
+      {
+        con.getNioHandler ().runThreadTask ( () -> {
+          if (unzip)
+          {
+            unpackData (bufHandle);
+          }
+          else
+          {
+            writeImageData (bufHandle);
+          }
+        }, ti);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        failed (e);
+      }
     }
 
     public byte [] getBuffer ()
@@ -397,18 +405,26 @@ public class ImageHandler extends BaseHandler
   protected void convertImage ()
   {
     final ITaskIdentifier ti = getTaskIdentifier (this, "convertImage");
-    con.getNioHandler ().runThreadTask ( () -> {
-      try
-      {
-        convertAndGetBest ();
-        converted = true;
-        ImageHandler.super.handle ();
-      }
-      catch (final IOException e)
-      {
-        failed (e);
-      }
-    }, ti);
+    try
+    {
+      con.getNioHandler ().runThreadTask ( () -> {
+        try
+        {
+          convertAndGetBest ();
+          converted = true;
+          ImageHandler.super.handle ();
+        }
+        catch (final IOException e)
+        {
+          failed (e);
+        }
+      }, ti);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      // the conversion lane is full
+      failed (e);
+    }
   }
 
   private void convertAndGetBest () throws IOException
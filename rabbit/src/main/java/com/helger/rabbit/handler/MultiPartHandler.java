@@ -103,8 +103,7 @@ public class MultiPartHandler extends BaseHandler
   {
     final ByteBuffer buf = bufHandle.getBuffer ();
     mpp.parseBuffer (buf);
-    final BlockSender bs = new BlockSender (con.getChannel (),
-                                            con.getNioHandler (),
+    final BlockSender bs = new BlockSender (con.getOutboundQueue (),
                                             tlh.getClient (),
                                             bufHandle,
                                             con.getChunking (),
@@ -1,36 +1,33 @@
 package com.helger.rabbit.httpio;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.logging.Level;
 
 import com.helger.rabbit.io.BufferHandle;
 import com.helger.rabbit.util.ITrafficLogger;
-import com.helger.rnio.INioHandler;
-import com.helger.rnio.IWriteHandler;
+import com.helger.rnio.IOutboundListener;
+import com.helger.rnio.impl.OutboundQueue;
 
 /**
  * A handler that writes data blocks.
+ * <p>
+ * The block, and its chunk framing if chunking is used, is added to an
+ * {@link OutboundQueue} and written together with anything else that has been
+ * queued for the channel, using as few gathering writes as possible.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
-public class BlockSender extends BaseSocketHandler implements IWriteHandler
+public class BlockSender extends BaseSocketHandler implements IOutboundListener
 {
-  private ByteBuffer chunkBuffer;
-  private final ByteBuffer end;
-  private final ByteBuffer [] buffers;
+  private final OutboundQueue queue;
   private final ITrafficLogger tl;
   private final BlockSentListener sender;
 
   /**
-   * Create a new BlockSender that will write data to the given channel
-   * 
-   * @param channel
-   *        the SocketChannel to write the data to
-   * @param nioHandler
-   *        the NioHandler to use to wait for write ready
+   * Create a new BlockSender that will add the data to the given queue
+   *
+   * @param queue
+   *        the OutboundQueue of the channel to write the data to
    * @param tl
    *        the traffic statistics gatherer
    * @param bufHandle
@@ -40,96 +37,88 @@ public class BlockSender extends BaseSocketHandler implements IWriteHandler
    * @param sender
    *        the listener that will be notified when the data has been handled.
    */
-  public BlockSender (final SocketChannel channel,
-                      final INioHandler nioHandler,
+  public BlockSender (final OutboundQueue queue,
                       final ITrafficLogger tl,
                       final BufferHandle bufHandle,
                       final boolean chunking,
                       final BlockSentListener sender)
   {
-    super (channel, bufHandle, nioHandler);
+    super (queue.getChannel (), bufHandle, queue.getNioHandler ());
+    this.queue = queue;
     this.tl = tl;
-    final ByteBuffer buffer = bufHandle.getBuffer ();
+    this.sender = sender;
+    addBlock (queue, bufHandle.getBuffer (), chunking);
+  }
+
+  /**
+   * Add a data block, framed as a chunk if chunking is used, to the queue.
+   * Empty blocks are not added, an empty chunk would end the resource.
+   *
+   * @param queue
+   *        the queue to add the block to
+   * @param buffer
+   *        the data to add
+   * @param chunking
+   *        if true the data is framed as one chunk
+   */
+  public static void addBlock (final OutboundQueue queue, final ByteBuffer buffer, final boolean chunking)
+  {
+    if (!buffer.hasRemaining ())
+      return;
     if (chunking)
     {
-      final int len = buffer.remaining ();
-      final String s = Long.toHexString (len) + "\r\n";
-      try
-      {
-        chunkBuffer = ByteBuffer.wrap (s.getBytes ("ASCII"));
-      }
-      catch (final UnsupportedEncodingException e)
-      {
-        getLogger ().log (Level.WARNING, "BlockSender: ASCII not found!", e);
-      }
-      end = ByteBuffer.wrap (new byte [] { '\r', '\n' });
-      buffers = new ByteBuffer [] { chunkBuffer, buffer, end };
+      queue.add (ChunkHeader.sizeLine (buffer.remaining ()));
+      queue.add (buffer);
+      queue.add (ChunkHeader.trailer ());
     }
     else
     {
-      buffers = new ByteBuffer [] { buffer };
-      end = buffer;
+      queue.add (buffer);
     }
-    this.sender = sender;
   }
 
   @Override
   public String getDescription ()
   {
-    final StringBuilder sb = new StringBuilder ("BlockSender: buffers: " + buffers.length);
-    for (int i = 0; i < buffers.length; i++)
-    {
-      if (i > 0)
-        sb.append (", ");
-      sb.append ("i: ").append (buffers[i].remaining ());
-    }
-    return sb.toString ();
+    return "BlockSender: " + queue;
   }
 
-  @Override
-  public void timeout ()
+  /** Write the queued data. */
+  public void write ()
   {
-    releaseBuffer ();
-    sender.timeout ();
+    queue.flush (this);
   }
 
-  @Override
-  public void closed ()
+  private void logWritten ()
+  {
+    tl.write (queue.takeBytesWritten ());
+  }
+
+  public void flushed ()
   {
+    logWritten ();
     releaseBuffer ();
-    sender.failed (new IOException ("channel was closed"));
+    sender.blockSent ();
   }
 
-  public void write ()
+  public void failed (final Exception cause)
   {
-    try
-    {
-      writeBuffer ();
-    }
-    catch (final IOException e)
-    {
-      releaseBuffer ();
-      sender.failed (e);
-    }
+    logWritten ();
+    releaseBuffer ();
+    sender.failed (cause);
   }
 
-  private void writeBuffer () throws IOException
+  @Override
+  public void timeout ()
   {
-    long written;
-    do
-    {
-      written = getChannel ().write (buffers);
-      tl.write (written);
-    } while (written > 0 && end.remaining () > 0);
+    logWritten ();
+    releaseBuffer ();
+    sender.timeout ();
+  }
 
-    if (end.remaining () == 0)
-    {
-      releaseBuffer ();
-      sender.blockSent ();
-    }
-    else
-    {
-      waitForWrite (this);
-    }
+  @Override
+  public void closed ()
+  {
+    failed (new IOException ("channel was closed"));
   }
 }
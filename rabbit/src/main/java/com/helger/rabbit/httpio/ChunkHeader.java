@@ -0,0 +1,85 @@
+package com.helger.rabbit.httpio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Chunk size lines and chunk trailers for chunked transfer encoding. The size
+ * lines for small chunks are built once, larger sizes are hex encoded directly
+ * into a byte array, so no String or charset work is done for each chunk.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class ChunkHeader
+{
+  /** Size lines for chunks smaller than this are precomputed. */
+  private static final int PRECOMPUTED = 4096;
+
+  private static final byte [] HEX = { '0',
+                                       '1',
+                                       '2',
+                                       '3',
+                                       '4',
+                                       '5',
+                                       '6',
+                                       '7',
+                                       '8',
+                                       '9',
+                                       'a',
+                                       'b',
+                                       'c',
+                                       'd',
+                                       'e',
+                                       'f' };
+
+  private static final byte [][] SIZE_LINES = new byte [PRECOMPUTED] [];
+  private static final byte [] CRLF = { '\r', '\n' };
+
+  static
+  {
+    for (int i = 0; i < PRECOMPUTED; i++)
+      SIZE_LINES[i] = encode (i);
+  }
+
+  private ChunkHeader ()
+  {}
+
+  private static byte [] encode (final long len)
+  {
+    int digits = 1;
+    for (long l = len >>> 4; l != 0; l >>>= 4)
+      digits++;
+    final byte [] b = new byte [digits + 2];
+    long l = len;
+    for (int i = digits - 1; i >= 0; i--)
+    {
+      b[i] = HEX[(int) (l & 0xf)];
+      l >>>= 4;
+    }
+    b[digits] = '\r';
+    b[digits + 1] = '\n';
+    return b;
+  }
+
+  /**
+   * Get the chunk size line, the hex encoded size followed by CRLF.
+   *
+   * @param len
+   *        the size of the chunk
+   * @return a new read only buffer holding the size line
+   */
+  public static ByteBuffer sizeLine (final long len)
+  {
+    final byte [] b = len < PRECOMPUTED ? SIZE_LINES[(int) len] : encode (len);
+    return ByteBuffer.wrap (b).asReadOnlyBuffer ();
+  }
+
+  /**
+   * Get the CRLF that ends each chunk.
+   *
+   * @return a new read only buffer holding CRLF
+   */
+  public static ByteBuffer trailer ()
+  {
+    return ByteBuffer.wrap (CRLF).asReadOnlyBuffer ();
+  }
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.rabbit.io.BufferHandle;
@@ -127,7 +128,14 @@ public class FileResourceSource implements IResourceSource
     bufHandle.getBuffer ();
     final ITaskIdentifier ti = new DefaultTaskIdentifier (getClass ().getSimpleName (),
                                                           "addBlockListener: channel: " + fc);
-    nioHandler.runThreadTask (new ReadBlock (), ti);
+    try
+    {
+      nioHandler.runThreadTask (new ReadBlock (), ti);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      returnWithFailure (e);
+    }
   }
 
   private class ReadBlock implements Runnable
@@ -11,6 +11,7 @@ import com.helger.rabbit.io.BufferHandle;
 import com.helger.rabbit.util.ITrafficLogger;
 import com.helger.rnio.INioHandler;
 import com.helger.rnio.IReadHandler;
+import com.helger.rnio.impl.AdaptiveReceiveAllocator;
 
 /**
  * A handler that reads http headers
@@ -30,6 +31,7 @@ public class HttpHeaderReader extends BaseSocketHandler implements IReadHandler
   private int startParseAt = 0;
 
   private final ITrafficLogger tl;
+  private AdaptiveReceiveAllocator receiveAllocator;
 
   /**
    * @param channel
@@ -63,6 +65,18 @@ public class HttpHeaderReader extends BaseSocketHandler implements IReadHandler
     this.reader = reader;
   }
 
+  /**
+   * Set the allocator to use for sizing the reads. Without an allocator the
+   * normal buffer size of the BufferHandle is used.
+   * 
+   * @param receiveAllocator
+   *        the receive allocator of the channel, may be null
+   */
+  public void setReceiveAllocator (final AdaptiveReceiveAllocator receiveAllocator)
+  {
+    this.receiveAllocator = receiveAllocator;
+  }
+
   /**
    * Try to read a http header
    * 
@@ -119,13 +133,17 @@ public class HttpHeaderReader extends BaseSocketHandler implements IReadHandler
     {
       // read http request
       // make sure we have room for reading.
-      final ByteBuffer buffer = getBuffer ();
+      final BufferHandle bh = getBufferHandle ();
+      final boolean sized = receiveAllocator != null && bh.isEmpty ();
+      final ByteBuffer buffer = sized ? bh.getBuffer (receiveAllocator.getReadSize ()) : getBuffer ();
       int dataLimit = buffer.limit ();
       if (dataLimit == buffer.capacity ())
         dataLimit = buffer.position ();
       buffer.limit (buffer.capacity ());
       buffer.position (dataLimit);
       final int read = getChannel ().read (buffer);
+      if (receiveAllocator != null)
+        receiveAllocator.record (read, buffer.capacity () - dataLimit);
       if (read == -1)
       {
         buffer.position (buffer.limit ());
@@ -10,6 +10,7 @@ import com.helger.rabbit.io.BufferHandle;
 import com.helger.rabbit.io.SimpleBufferHandle;
 import com.helger.rabbit.util.ITrafficLogger;
 import com.helger.rnio.INioHandler;
+import com.helger.rnio.impl.OutboundQueue;
 
 /**
  * A handler that writes http headers
@@ -20,7 +21,9 @@ public class HttpHeaderSender implements BlockSentListener
 {
   private final boolean fullURI;
   private final HttpHeaderSentListener sender;
-  private final BlockSender bs;
+  private final OutboundQueue queue;
+  private final ITrafficLogger tl;
+  private final BufferHandle bh;
 
   /**
    * @param channel
@@ -45,11 +48,36 @@ public class HttpHeaderSender implements BlockSentListener
                            final HttpHeader header,
                            final boolean fullURI,
                            final HttpHeaderSentListener sender) throws IOException
+  {
+    this (new OutboundQueue (channel, nioHandler), tl, header, fullURI, sender);
+  }
+
+  /**
+   * @param queue
+   *        the OutboundQueue of the channel to write the header to
+   * @param tl
+   *        the statics gatherer to use
+   * @param header
+   *        the HttpHeader to send
+   * @param fullURI
+   *        if false then try to change header.uri into just the file
+   * @param sender
+   *        the listener that will be notified when the header has been sent (or
+   *        sending has failed
+   * @throws IOException
+   *         if the header can not be converted to network data
+   */
+  public HttpHeaderSender (final OutboundQueue queue,
+                           final ITrafficLogger tl,
+                           final HttpHeader header,
+                           final boolean fullURI,
+                           final HttpHeaderSentListener sender) throws IOException
   {
     this.fullURI = fullURI;
     this.sender = sender;
-    final BufferHandle bh = new SimpleBufferHandle (getBuffer (header));
-    bs = new BlockSender (channel, nioHandler, tl, bh, false, this);
+    this.queue = queue;
+    this.tl = tl;
+    bh = new SimpleBufferHandle (getBuffer (header));
   }
 
   /**
@@ -57,9 +85,22 @@ public class HttpHeaderSender implements BlockSentListener
    */
   public void sendHeader ()
   {
+    final BlockSender bs = new BlockSender (queue, tl, bh, false, this);
     bs.write ();
   }
 
+  /**
+   * Add the header to the queue without writing it. The listener is notified
+   * at once, the header is written together with the data that is queued
+   * after it, by the next flush of the queue. The traffic is logged by the
+   * writer that flushes the queue.
+   */
+  public void queueHeader ()
+  {
+    queue.add (bh.getBuffer ());
+    sender.httpHeaderSent ();
+  }
+
   private ByteBuffer getBuffer (final HttpHeader header) throws IOException
   {
     final String uri = header.getRequestURI ();
@@ -0,0 +1,294 @@
+package com.helger.rabbit.httpio;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.helger.rabbit.io.BufferHandle;
+import com.helger.rabbit.io.CacheBufferHandle;
+import com.helger.rabbit.io.SimpleBufferHandle;
+import com.helger.rnio.IBufferHandler;
+import com.helger.rnio.INioHandler;
+import com.helger.rnio.ITaskIdentifier;
+import com.helger.rnio.impl.DefaultTaskIdentifier;
+
+/**
+ * A resource that comes from a file and that is read in large blocks when it
+ * can not be transferred. A few blocks are read ahead on background threads
+ * while the earlier blocks are handled, so a large resource needs few thread
+ * handoffs and the disk is kept busy.
+ * <p>
+ * The resource is made up of parts, regions of the file and fixed data. By
+ * default the whole file is one part, subclasses may override
+ * {@link #addParts()} to serve other parts of the file.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class ReadAheadFileResourceSource extends FileResourceSource
+{
+  /** The size of the blocks to read. */
+  public static final int BLOCK_SIZE = 128 * 1024;
+
+  /** The number of blocks to have read, or being read, ahead of the listener. */
+  public static final int READ_AHEAD = 2;
+
+  private final INioHandler nioHandler;
+  private final IBufferHandler bufHandler;
+  private final Deque <Part> parts = new ArrayDeque<> ();
+  private final Deque <Block> blocks = new ArrayDeque<> ();
+  private boolean partsAdded = false;
+  private boolean released = false;
+  private IOException failure;
+  private BlockListener listener;
+
+  /**
+   * Create a new ReadAheadFileResourceSource for the given file
+   *
+   * @param f
+   *        the resource
+   * @param nioHandler
+   *        the NioHandler to use for background tasks
+   * @param bufHandler
+   *        the BufferHandler to get the blocks from
+   * @throws IOException
+   *         if the file is a valid file
+   */
+  public ReadAheadFileResourceSource (final File f,
+                                      final INioHandler nioHandler,
+                                      final IBufferHandler bufHandler) throws IOException
+  {
+    super (f, nioHandler, bufHandler);
+    this.nioHandler = nioHandler;
+    this.bufHandler = bufHandler;
+  }
+
+  /**
+   * Add the parts of this resource, using {@link #addRegion(long, long)} and
+   * {@link #addData(ByteBuffer)}. This is called once, before the first
+   * block is read. By default the whole file is added.
+   */
+  protected void addParts ()
+  {
+    addRegion (0, length ());
+  }
+
+  /**
+   * Add a region of the file to the end of this resource. The region is cut
+   * at the end of the file.
+   *
+   * @param start
+   *        the position of the first byte of the region
+   * @param length
+   *        the number of bytes in the region
+   */
+  protected final void addRegion (final long start, final long length)
+  {
+    final long size = Math.min (length, length () - start);
+    if (size > 0)
+      parts.add (new Part (start, size, null));
+  }
+
+  /**
+   * Add fixed data to the end of this resource.
+   *
+   * @param data
+   *        the data to add
+   */
+  protected final void addData (final ByteBuffer data)
+  {
+    if (data.hasRemaining ())
+      parts.add (new Part (0, data.remaining (), data));
+  }
+
+  @Override
+  public void addBlockListener (final BlockListener listener)
+  {
+    synchronized (this)
+    {
+      if (released)
+        return;
+      if (!partsAdded)
+      {
+        partsAdded = true;
+        addParts ();
+      }
+      this.listener = listener;
+      readAhead ();
+    }
+    deliver ();
+  }
+
+  /** Start reads until enough blocks are read or being read, hold the lock. */
+  private void readAhead ()
+  {
+    while (blocks.size () < READ_AHEAD && !parts.isEmpty () && failure == null)
+    {
+      final Part p = parts.peekFirst ();
+      if (p.data != null)
+      {
+        parts.removeFirst ();
+        blocks.add (new Block (p.data));
+        continue;
+      }
+      final ByteBuffer buffer = bufHandler.getBuffer (BLOCK_SIZE);
+      final int len = (int) Math.min (p.length, buffer.capacity ());
+      buffer.limit (len);
+      final Block b = new Block (buffer, p.start);
+      p.start += len;
+      p.length -= len;
+      if (p.length == 0)
+        parts.removeFirst ();
+      blocks.add (b);
+      final ITaskIdentifier ti = new DefaultTaskIdentifier (getClass ().getSimpleName (),
+                                                            "read: channel: " + fc + ", position: " + b.position);
+      try
+      {
+        nioHandler.runThreadTask ( () -> read (b), ti);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        // the blocks before this one are still delivered, then the listener fails
+        blocks.removeLast ();
+        bufHandler.putBuffer (buffer);
+        parts.clear ();
+        failure = new IOException ("Failed to start read: " + e, e);
+      }
+    }
+  }
+
+  private void read (final Block b)
+  {
+    try
+    {
+      final ByteBuffer buffer = b.buffer;
+      while (buffer.hasRemaining ())
+      {
+        final int read = fc.read (buffer, b.position + buffer.position ());
+        if (read == -1)
+          throw new EOFException ("File ended before the expected position: " + (b.position + buffer.limit ()));
+      }
+      buffer.flip ();
+    }
+    catch (final IOException e)
+    {
+      b.failure = e;
+    }
+    synchronized (this)
+    {
+      b.done = true;
+      if (released)
+      {
+        bufHandler.putBuffer (b.buffer);
+        return;
+      }
+    }
+    deliver ();
+  }
+
+  /** Give the next block to the listener if it has been read. */
+  private void deliver ()
+  {
+    final BlockListener l;
+    final Block b;
+    synchronized (this)
+    {
+      if (listener == null)
+        return;
+      b = blocks.peekFirst ();
+      if (b != null)
+      {
+        if (!b.done)
+          return;
+        blocks.removeFirst ();
+      }
+      l = listener;
+      listener = null;
+      readAhead ();
+    }
+    if (b == null)
+    {
+      if (failure != null)
+        l.failed (failure);
+      else
+        l.finishedRead ();
+    }
+    else
+      if (b.failure != null)
+      {
+        bufHandler.putBuffer (b.buffer);
+        l.failed (b.failure);
+      }
+      else
+      {
+        l.bufferRead (b.getHandle ());
+      }
+  }
+
+  @Override
+  public void release ()
+  {
+    synchronized (this)
+    {
+      released = true;
+      listener = null;
+      parts.clear ();
+      for (final Block b : blocks)
+      {
+        // blocks still being read are returned when the read is done
+        if (b.done && b.fileBlock)
+          bufHandler.putBuffer (b.buffer);
+      }
+      blocks.clear ();
+    }
+    super.release ();
+  }
+
+  private static class Part
+  {
+    private long start;
+    private long length;
+    private final ByteBuffer data;
+
+    public Part (final long start, final long length, final ByteBuffer data)
+    {
+      this.start = start;
+      this.length = length;
+      this.data = data;
+    }
+  }
+
+  private class Block
+  {
+    private final ByteBuffer buffer;
+    private final long position;
+    private final boolean fileBlock;
+    private boolean done;
+    private IOException failure;
+
+    public Block (final ByteBuffer buffer, final long position)
+    {
+      this.buffer = buffer;
+      this.position = position;
+      fileBlock = true;
+    }
+
+    public Block (final ByteBuffer data)
+    {
+      buffer = data;
+      position = -1;
+      fileBlock = false;
+      done = true;
+    }
+
+    public BufferHandle getHandle ()
+    {
+      if (fileBlock)
+        return new CacheBufferHandle (bufHandler, buffer);
+      return new SimpleBufferHandle (buffer);
+    }
+  }
+}
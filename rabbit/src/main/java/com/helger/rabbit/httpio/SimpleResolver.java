@@ -1,6 +1,7 @@
 package com.helger.rabbit.httpio;
 
 import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.helger.rabbit.dns.IDNSHandler;
 import com.helger.rabbit.io.InetAddressListener;
@@ -35,8 +36,15 @@ public class SimpleResolver implements Resolver
   public void getInetAddress (final URL url, final InetAddressListener listener)
   {
     final String groupId = getClass ().getSimpleName ();
-    nio.runThreadTask (new ResolvRunner (dnsHandler, url, listener),
-                       new DefaultTaskIdentifier (groupId, url.toString ()));
+    try
+    {
+      nio.runThreadTask (new ResolvRunner (dnsHandler, url, listener),
+                         new DefaultTaskIdentifier (groupId, url.toString ()));
+    }
+    catch (final RejectedExecutionException e)
+    {
+      listener.unknownHost (e);
+    }
   }
 
   public int getConnectPort (final int port)
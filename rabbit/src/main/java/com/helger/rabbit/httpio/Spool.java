@@ -0,0 +1,139 @@
+package com.helger.rabbit.httpio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.helger.rabbit.io.FileHelper;
+
+/**
+ * A temporary file that holds the data of a resource that has been read but
+ * not yet used. Data is written at the end of the spool and read from the
+ * start, once all data has been read the spool starts over from the start of
+ * the file so the file only grows as large as the most data it has held.
+ * <p>
+ * This class is not thread safe, the user has to synchronize the calls.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class Spool
+{
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel fc;
+  private long readPosition = 0;
+  private long writePosition = 0;
+
+  /**
+   * Create a new spool file in the given directory.
+   *
+   * @param dir
+   *        the directory to create the spool file in
+   * @throws IOException
+   *         if the file can not be created
+   */
+  public Spool (final File dir) throws IOException
+  {
+    file = File.createTempFile ("rabbit", ".spool", dir);
+    raf = new RandomAccessFile (file, "rw");
+    fc = raf.getChannel ();
+  }
+
+  /**
+   * Add all the remaining data of the buffer to the end of the spool.
+   *
+   * @param buffer
+   *        the data to add
+   * @return the number of bytes written
+   * @throws IOException
+   *         if the data can not be written
+   */
+  public int write (final ByteBuffer buffer) throws IOException
+  {
+    int written = 0;
+    while (buffer.hasRemaining ())
+    {
+      final int w = fc.write (buffer, writePosition);
+      writePosition += w;
+      written += w;
+    }
+    return written;
+  }
+
+  /**
+   * Read the oldest data of the spool into the buffer, the buffer is flipped
+   * and ready to use after the read.
+   *
+   * @param buffer
+   *        the buffer to read into
+   * @throws IOException
+   *         if the data can not be read
+   */
+  public void read (final ByteBuffer buffer) throws IOException
+  {
+    final long available = getAvailable ();
+    if (buffer.remaining () > available)
+      buffer.limit (buffer.position () + (int) available);
+    while (buffer.hasRemaining ())
+    {
+      final int r = fc.read (buffer, readPosition);
+      if (r == -1)
+        throw new IOException ("Spool file ended early: " + file + ", position: " + readPosition);
+      readPosition += r;
+    }
+    buffer.flip ();
+    if (readPosition == writePosition)
+      readPosition = writePosition = 0;
+  }
+
+  /**
+   * Get the number of bytes that have been written but not yet read.
+   *
+   * @return the number of spooled bytes
+   */
+  public long getAvailable ()
+  {
+    return writePosition - readPosition;
+  }
+
+  /**
+   * Get the current size of the used part of the spool file.
+   *
+   * @return the size in bytes
+   */
+  public long getSize ()
+  {
+    return writePosition;
+  }
+
+  /**
+   * Close and remove the spool file.
+   */
+  public void close ()
+  {
+    try
+    {
+      raf.close ();
+    }
+    catch (final IOException e)
+    {
+      // ignore, we are removing the file anyway
+    }
+    try
+    {
+      FileHelper.delete (file);
+    }
+    catch (final IOException e)
+    {
+      file.deleteOnExit ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return getClass ().getSimpleName () + "{file: " + file + ", read: " + readPosition + ", write: " + writePosition + "}";
+  }
+}
@@ -0,0 +1,217 @@
+package com.helger.rabbit.httpio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The settings and statistics for spooling of web server responses to disk.
+ * When a client reads slower than the web server sends, the data that does
+ * not fit in the read ahead window is written to a spool file so that the
+ * web server can be read at full speed and the web connection can be
+ * released as soon as the whole response has been read.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class Spooler
+{
+  private final File dir;
+  private final long minSize;
+  private final long maxSize;
+
+  private final AtomicLong spooledResponses = new AtomicLong ();
+  private final AtomicLong spooledBytes = new AtomicLong ();
+  private final AtomicInteger activeSpools = new AtomicInteger ();
+  private final AtomicLong limitsReached = new AtomicLong ();
+  private final AtomicLong failures = new AtomicLong ();
+  private final AtomicLong earlyReleases = new AtomicLong ();
+
+  /**
+   * Create a new Spooler.
+   *
+   * @param dir
+   *        the directory to create the spool files in
+   * @param minSize
+   *        responses of a known size smaller than this are never spooled
+   * @param maxSize
+   *        the maximum size of the spool file of one response, when a spool is
+   *        full the reading waits for the client instead
+   */
+  public Spooler (final File dir, final long minSize, final long maxSize)
+  {
+    this.dir = dir;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Check if a response of the given size may be spooled.
+   *
+   * @param dataSize
+   *        the size of the response or -1 if the size is not known
+   * @return true if the response may be spooled
+   */
+  public boolean maySpool (final long dataSize)
+  {
+    return maxSize > 0 && (dataSize < 0 || dataSize >= minSize);
+  }
+
+  /**
+   * Get the maximum size of the spool of one response.
+   *
+   * @return the size in bytes
+   */
+  public long getMaxSize ()
+  {
+    return maxSize;
+  }
+
+  /**
+   * Get the minimum size a response of known size must have to be spooled.
+   *
+   * @return the size in bytes
+   */
+  public long getMinSize ()
+  {
+    return minSize;
+  }
+
+  /**
+   * Get the directory that spool files are created in.
+   *
+   * @return the spool directory
+   */
+  public File getDirectory ()
+  {
+    return dir;
+  }
+
+  /**
+   * Create a new spool file.
+   *
+   * @return the new Spool
+   * @throws IOException
+   *         if the file can not be created
+   */
+  public Spool createSpool () throws IOException
+  {
+    try
+    {
+      final Spool spool = new Spool (dir);
+      spooledResponses.incrementAndGet ();
+      activeSpools.incrementAndGet ();
+      return spool;
+    }
+    catch (final IOException e)
+    {
+      failures.incrementAndGet ();
+      throw e;
+    }
+  }
+
+  /**
+   * Close a spool that was created by this Spooler.
+   *
+   * @param spool
+   *        the Spool to close
+   */
+  public void closeSpool (final Spool spool)
+  {
+    activeSpools.decrementAndGet ();
+    spool.close ();
+  }
+
+  /**
+   * Record that data was written to a spool.
+   *
+   * @param bytes
+   *        the number of bytes written
+   */
+  public void spooled (final long bytes)
+  {
+    spooledBytes.addAndGet (bytes);
+  }
+
+  /** Record that a spool was full and reading had to wait for the client. */
+  public void limitReached ()
+  {
+    limitsReached.incrementAndGet ();
+  }
+
+  /** Record that a spool file could not be written. */
+  public void failed ()
+  {
+    failures.incrementAndGet ();
+  }
+
+  /**
+   * Record that a web connection was released before the client had been
+   * sent the whole response.
+   */
+  public void earlyRelease ()
+  {
+    earlyReleases.incrementAndGet ();
+  }
+
+  /**
+   * Get the number of responses that have been spooled.
+   *
+   * @return the number of spool files created
+   */
+  public long getSpooledResponses ()
+  {
+    return spooledResponses.get ();
+  }
+
+  /**
+   * Get the total number of bytes written to spool files.
+   *
+   * @return the number of spooled bytes
+   */
+  public long getSpooledBytes ()
+  {
+    return spooledBytes.get ();
+  }
+
+  /**
+   * Get the number of spool files currently in use.
+   *
+   * @return the number of open spools
+   */
+  public int getActiveSpools ()
+  {
+    return activeSpools.get ();
+  }
+
+  /**
+   * Get the number of times a spool was full.
+   *
+   * @return the number of times the spool limit was reached
+   */
+  public long getLimitsReached ()
+  {
+    return limitsReached.get ();
+  }
+
+  /**
+   * Get the number of spool files that could not be created or written.
+   *
+   * @return the number of failures
+   */
+  public long getFailures ()
+  {
+    return failures.get ();
+  }
+
+  /**
+   * Get the number of web connections that were released while the client
+   * was still being sent the response.
+   *
+   * @return the number of early releases
+   */
+  public long getEarlyReleases ()
+  {
+    return earlyReleases.get ();
+  }
+}
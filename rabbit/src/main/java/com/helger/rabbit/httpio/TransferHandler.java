@@ -2,30 +2,61 @@ package com.helger.rabbit.httpio;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
 
 import com.helger.rabbit.io.Address;
 import com.helger.rabbit.util.ITrafficLogger;
 import com.helger.rnio.INioHandler;
+import com.helger.rnio.IOutboundListener;
 import com.helger.rnio.IWriteHandler;
-import com.helger.rnio.impl.DefaultTaskIdentifier;
+import com.helger.rnio.impl.OutboundQueue;
 
 /**
- * A handler that transfers data from a Transferable to a socket channel. Since
- * file transfers may take time we run in a separate thread.
+ * A handler that transfers data from a Transferable to a socket channel.
+ * <p>
+ * The data is transferred on the selector thread in bounded slices, one slice
+ * each time the channel is writable, so that a large transfer does not starve
+ * the other channels. If a slice is slow the file data is probably not in the
+ * os cache and the rest of the transfer is made on a worker thread, since
+ * file transfers that read from disk may take time. The transfer starts with
+ * one small timed read, so a file that is not in the os cache holds the
+ * selector thread for that one read only.
+ * <p>
+ * If data, like the http header, is queued for the channel when the transfer
+ * starts a short prefix of the resource is read and written together with the
+ * queued data, the rest of the resource is then transferred directly.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 public class TransferHandler implements Runnable
 {
+  /** The largest prefix to read and write together with queued data. */
+  private static final int PREFIX_SIZE = 8192;
+  /** The size of the first read, that tells if the file is in the os cache. */
+  private static final long PROBE_SIZE = 4096;
+  /** The size of the first slice, small since the file may not be cached. */
+  private static final long FIRST_SLICE_SIZE = 64 * 1024;
+  /** The most data to transfer on the selector thread for each write ready. */
+  private static final long SLICE_SIZE = 512 * 1024;
+  /** A slice slower than this has probably waited for the disk. */
+  private static final long SLOW_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos (2);
+
   private final INioHandler nioHandler;
   private final Transferable t;
   private final SocketChannel channel;
   private final ITrafficLogger tlFrom;
   private final ITrafficLogger tlTo;
   private final TransferListener listener;
+  private OutboundQueue queue;
   private long pos = 0;
   private long count;
+  private boolean onWorker = false;
+  private long bytesTransferred = 0;
+  private int slices = 0;
+  private int workerSlices = 0;
 
   /**
    * Create a new TransferHandler
@@ -60,33 +91,62 @@ public class TransferHandler implements Runnable
   }
 
   /**
-   * Start the data transfer.
+   * Create a new TransferHandler that first writes anything that is queued
+   * for the channel.
+   *
+   * @param nioHandler
+   *        the NioHandler to use for network and background tasks
+   * @param t
+   *        the resource to transfer
+   * @param queue
+   *        the OutboundQueue of the Channel to transfer the resource to
+   * @param tlFrom
+   *        the network statistics for the source
+   * @param tlTo
+   *        the network statistics for the sink
+   * @param listener
+   *        the listener that will be notified when the transfer has completed
+   */
+  public TransferHandler (final INioHandler nioHandler,
+                          final Transferable t,
+                          final OutboundQueue queue,
+                          final ITrafficLogger tlFrom,
+                          final ITrafficLogger tlTo,
+                          final TransferListener listener)
+  {
+    this (nioHandler, t, queue.getChannel (), tlFrom, tlTo, listener);
+    this.queue = queue;
+  }
+
+  /**
+   * Start the data transfer. The first slice is transferred on the calling
+   * thread, the rest are transferred when the channel is writable.
    */
   public void transfer ()
   {
-    final String groupId = getClass ().getSimpleName ();
-    final String desc = "Transferable: " + t + ", chanel: " + channel + ", listener: " + listener;
-    nioHandler.runThreadTask (this, new DefaultTaskIdentifier (groupId, desc));
+    run ();
   }
 
   public void run ()
   {
     try
     {
-      while (count > 0)
+      final OutboundQueue q = queue;
+      queue = null;
+      if (q != null)
       {
-        final long written = t.transferTo (pos, count, channel);
-        pos += written;
-        count -= written;
-        tlFrom.transferFrom (written);
-        tlTo.transferTo (written);
-        if (count > 0 && written == 0)
+        if (!q.isEmpty ())
         {
-          setupWaitForWrite ();
+          sendWithPrefix (q);
           return;
         }
+        // the queued data may have been written on its own
+        tlTo.write (q.takeBytesWritten ());
       }
-      listener.transferOk ();
+      if (onWorker)
+        transferAll ();
+      else
+        transferSlice ();
     }
     catch (final IOException e)
     {
@@ -94,14 +154,211 @@ public class TransferHandler implements Runnable
     }
   }
 
+  private long transferSome (final long max) throws IOException
+  {
+    final long written = t.transferTo (pos, Math.min (count, max), channel);
+    pos += written;
+    count -= written;
+    bytesTransferred += written;
+    tlFrom.transferFrom (written);
+    tlTo.transferTo (written);
+    return written;
+  }
+
+  /**
+   * Transfer at most one slice, so that one large transfer does not keep the
+   * selector thread from the other channels. If the slice was slow the file
+   * data was probably read from disk and the rest is transferred on a worker
+   * thread. The first slice starts with a small probe so that a file that is
+   * not in the os cache is not read on the selector thread beyond that probe.
+   */
+  private void transferSlice () throws IOException
+  {
+    if (count == 0)
+    {
+      listener.transferOk ();
+      return;
+    }
+    final long sliceSize = slices == 0 ? FIRST_SLICE_SIZE : SLICE_SIZE;
+    long sliceWritten = 0;
+    if (slices == 0)
+    {
+      final long probeStarted = System.nanoTime ();
+      sliceWritten = transferSome (PROBE_SIZE);
+      if (count > 0 && System.nanoTime () - probeStarted > SLOW_SLICE_NANOS)
+      {
+        slices++;
+        onWorker = true;
+        setupWaitForWrite ();
+        return;
+      }
+    }
+    final long started = System.nanoTime ();
+    while (count > 0 && sliceWritten < sliceSize)
+    {
+      final long written = transferSome (sliceSize - sliceWritten);
+      if (written == 0)
+        break;
+      sliceWritten += written;
+    }
+    slices++;
+    if (count == 0)
+    {
+      listener.transferOk ();
+      return;
+    }
+    if (System.nanoTime () - started > SLOW_SLICE_NANOS)
+      onWorker = true;
+    setupWaitForWrite ();
+  }
+
+  /** Transfer until done or the channel is full, used on worker threads. */
+  private void transferAll () throws IOException
+  {
+    slices++;
+    workerSlices++;
+    while (count > 0)
+    {
+      final long written = transferSome (count);
+      if (count > 0 && written == 0)
+      {
+        setupWaitForWrite ();
+        return;
+      }
+    }
+    listener.transferOk ();
+  }
+
+  /**
+   * Get the number of bytes transferred with transferTo so far.
+   *
+   * @return the number of bytes transferred
+   */
+  public long getBytesTransferred ()
+  {
+    return bytesTransferred;
+  }
+
+  /**
+   * Get the number of slices the transfer has been made in so far. Each slice
+   * is one run of transfers for one write ready event.
+   *
+   * @return the number of slices
+   */
+  public int getSlices ()
+  {
+    return slices;
+  }
+
+  /**
+   * Get the number of slices that were transferred on a worker thread.
+   *
+   * @return the number of worker slices
+   */
+  public int getWorkerSlices ()
+  {
+    return workerSlices;
+  }
+
+  private void sendWithPrefix (final OutboundQueue q) throws IOException
+  {
+    final ByteBuffer prefix = ByteBuffer.allocate ((int) Math.min (count, PREFIX_SIZE));
+    final WritableByteChannel target = new BufferChannel (prefix);
+    // the prefix read is the probe for transfers that start with queued data
+    final long started = System.nanoTime ();
+    while (prefix.hasRemaining ())
+    {
+      final long read = t.transferTo (pos, prefix.remaining (), target);
+      if (read <= 0)
+        break;
+      pos += read;
+      count -= read;
+      tlFrom.transferFrom (read);
+    }
+    if (count > 0 && System.nanoTime () - started > SLOW_SLICE_NANOS)
+      onWorker = true;
+    prefix.flip ();
+    final int prefixSize = prefix.remaining ();
+    q.add (prefix);
+    q.flush (new PrefixSent (q, prefixSize));
+  }
+
+  private static class BufferChannel implements WritableByteChannel
+  {
+    private final ByteBuffer buffer;
+
+    public BufferChannel (final ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    public int write (final ByteBuffer src)
+    {
+      final int n = Math.min (src.remaining (), buffer.remaining ());
+      final ByteBuffer slice = src.slice ();
+      slice.limit (n);
+      buffer.put (slice);
+      src.position (src.position () + n);
+      return n;
+    }
+
+    public boolean isOpen ()
+    {
+      return true;
+    }
+
+    public void close ()
+    {
+      // nothing to close
+    }
+  }
+
+  private class PrefixSent implements IOutboundListener
+  {
+    private final OutboundQueue q;
+    private final int prefixSize;
+
+    public PrefixSent (final OutboundQueue q, final int prefixSize)
+    {
+      this.q = q;
+      this.prefixSize = prefixSize;
+    }
+
+    public void flushed ()
+    {
+      tlTo.write (q.takeBytesWritten () - prefixSize);
+      tlTo.transferTo (prefixSize);
+      if (onWorker)
+        setupWaitForWrite ();
+      else
+        run ();
+    }
+
+    public void failed (final Exception cause)
+    {
+      listener.failed (cause);
+    }
+
+    public void timeout ()
+    {
+      listener.failed (new IOException ("write timed out"));
+    }
+  }
+
   private void setupWaitForWrite ()
   {
-    nioHandler.waitForWrite (channel, new WriteWaiter ());
+    nioHandler.waitForWrite (channel, new WriteWaiter (onWorker));
   }
 
   private class WriteWaiter implements IWriteHandler
   {
     private final Long timeout = nioHandler.getDefaultTimeout ();
+    private final boolean separateThread;
+
+    public WriteWaiter (final boolean separateThread)
+    {
+      this.separateThread = separateThread;
+    }
 
     public void closed ()
     {
@@ -115,7 +372,7 @@ public class TransferHandler implements Runnable
 
     public boolean useSeparateThread ()
     {
-      return true;
+      return separateThread;
     }
 
     public String getDescription ()
@@ -3,14 +3,25 @@ package com.helger.rabbit.httpio;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.helger.rabbit.io.BufferHandle;
+import com.helger.rabbit.io.CacheBufferHandle;
 import com.helger.rabbit.io.ConnectionHandler;
 import com.helger.rabbit.io.WebConnection;
 import com.helger.rabbit.util.ITrafficLogger;
+import com.helger.rnio.IBufferHandler;
 import com.helger.rnio.INioHandler;
 import com.helger.rnio.IReadHandler;
+import com.helger.rnio.ITaskIdentifier;
+import com.helger.rnio.impl.AdaptiveReceiveAllocator;
+import com.helger.rnio.impl.DefaultTaskIdentifier;
 
 /**
  * A resource source that gets the data from a WebConnection
@@ -31,7 +42,36 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
   private int currentMark = 0;
   private ChunkHandler chunkHandler;
   private Long timeout;
-  private int fullReads = 0;
+  private final IBufferHandler bufHandler;
+  // Data read by a scattering read that has not been handed on yet.
+  private final Deque <ByteBuffer> pending = new ArrayDeque<> ();
+  private BufferHandle pendingHandle;
+  // The read ahead window, reads go on while earlier blocks are sent.
+  private final int window;
+  private long queued = 0;
+  private boolean reading = false;
+  private boolean eof = false;
+  private boolean released = false;
+  private IOException readFailure;
+  private boolean readTimedOut = false;
+  // Data that does not fit in the window, used after the queued blocks. The
+  // spool file is only used by one background task at a time, the sizes are
+  // updated when a task is done.
+  private Spooler spooler;
+  private Spool spool;
+  private boolean spoolFull = false;
+  private boolean spoolBusy = false;
+  private long spoolAvailable = 0;
+  private long spoolSize = 0;
+  // Data waiting to be written to the spool, after the data in the spool.
+  private final Deque <ByteBuffer> toSpool = new ArrayDeque<> ();
+  private long toSpoolBytes = 0;
+  // The next block that was read back from the spool.
+  private ByteBuffer spooledBlock;
+  private boolean wcReleased = false;
+
+  /** The size of the blocks that are read back from the spool. */
+  private static final int SPOOL_BLOCK_SIZE = 64 * 1024;
 
   /**
    * Create a new ConnectionResourceSource that gets the data from the network.
@@ -62,6 +102,87 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
                                       final boolean isChunked,
                                       final long dataSize,
                                       final boolean strictHttp)
+  {
+    this (con, nioHandler, wc, bufHandle, tl, isChunked, dataSize, strictHttp, null);
+  }
+
+  /**
+   * Create a new ConnectionResourceSource that gets the data from the network
+   * and that may read into several buffers at once.
+   * 
+   * @param con
+   *        the Connection handling the request
+   * @param nioHandler
+   *        the NioHandler to use for network and background tasks
+   * @param wc
+   *        the WebConection connected to the upstream server
+   * @param bufHandle
+   *        the BufferHandle to use
+   * @param tl
+   *        the TrafficLogger to use for network statistics
+   * @param isChunked
+   *        flag indicating if the upstream data is chunked or not
+   * @param dataSize
+   *        the size of the data, may be -1 if size is unknown
+   * @param strictHttp
+   *        if true strict http will be used when communcating with the upstream
+   *        server
+   * @param bufHandler
+   *        the BufferHandler to get extra buffers from for scattering reads,
+   *        may be null to only read into the BufferHandle
+   */
+  public WebConnectionResourceSource (final ConnectionHandler con,
+                                      final INioHandler nioHandler,
+                                      final WebConnection wc,
+                                      final BufferHandle bufHandle,
+                                      final ITrafficLogger tl,
+                                      final boolean isChunked,
+                                      final long dataSize,
+                                      final boolean strictHttp,
+                                      final IBufferHandler bufHandler)
+  {
+    this (con, nioHandler, wc, bufHandle, tl, isChunked, dataSize, strictHttp, bufHandler, 0);
+  }
+
+  /**
+   * Create a new ConnectionResourceSource that gets the data from the network
+   * and that may read into several buffers at once.
+   * 
+   * @param con
+   *        the Connection handling the request
+   * @param nioHandler
+   *        the NioHandler to use for network and background tasks
+   * @param wc
+   *        the WebConection connected to the upstream server
+   * @param bufHandle
+   *        the BufferHandle to use
+   * @param tl
+   *        the TrafficLogger to use for network statistics
+   * @param isChunked
+   *        flag indicating if the upstream data is chunked or not
+   * @param dataSize
+   *        the size of the data, may be -1 if size is unknown
+   * @param strictHttp
+   *        if true strict http will be used when communcating with the upstream
+   *        server
+   * @param bufHandler
+   *        the BufferHandler to get extra buffers from for scattering reads,
+   *        may be null to only read into the BufferHandle
+   * @param window
+   *        the number of blocks that may be read ahead of the listener, 0 to
+   *        only read when the listener asks for the next block. Chunked data
+   *        is never read ahead.
+   */
+  public WebConnectionResourceSource (final ConnectionHandler con,
+                                      final INioHandler nioHandler,
+                                      final WebConnection wc,
+                                      final BufferHandle bufHandle,
+                                      final ITrafficLogger tl,
+                                      final boolean isChunked,
+                                      final long dataSize,
+                                      final boolean strictHttp,
+                                      final IBufferHandler bufHandler,
+                                      final int window)
   {
     this.con = con;
     this.nioHandler = nioHandler;
@@ -72,6 +193,21 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
     if (isChunked)
       chunkHandler = new ChunkHandler (this, strictHttp);
     this.dataSize = dataSize;
+    this.bufHandler = bufHandler;
+    this.window = isChunked || bufHandler == null ? 0 : Math.max (0, window);
+  }
+
+  /**
+   * Make this resource spool the data that does not fit in the read ahead
+   * window to disk, so that the web server can be read at full speed even if
+   * the client is slow. Only used if the resource is read ahead.
+   *
+   * @param spooler
+   *        the Spooler to use, may be null to not spool
+   */
+  public void setSpooler (final Spooler spooler)
+  {
+    this.spooler = window > 0 && spooler != null && spooler.maySpool (dataSize) ? spooler : null;
   }
 
   public String getDescription ()
@@ -82,6 +218,8 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
            totalRead +
            ", chunked: " +
            isChunked +
+           ", window: " +
+           window +
            ", address: " +
            wc.getAddress ();
   }
@@ -108,6 +246,17 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
 
   public void addBlockListener (final BlockListener listener)
   {
+    if (window > 0)
+    {
+      synchronized (this)
+      {
+        if (this.listener != null)
+          throw new RuntimeException ("Trying to overwrite block listener: " + this.listener + " with: " + listener);
+        this.listener = listener;
+      }
+      deliver ();
+      return;
+    }
     if (this.listener != null)
       throw new RuntimeException ("Trying to overwrite block listener: " + this.listener + " with: " + listener);
     this.listener = listener;
@@ -119,14 +268,469 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
       cleanupAndFinish ();
     }
     else
-      if (bufHandle.isEmpty ())
+      if (!bufHandle.isEmpty ())
       {
-        register ();
+        handleBlock (bufHandle);
       }
       else
+        if (nextPending ())
+        {
+          handleBlock (pendingHandle);
+        }
+        else
+        {
+          register ();
+        }
+  }
+
+  /**
+   * Make pendingHandle hold the next block of already read data.
+   *
+   * @return true if there is more read data to hand on
+   */
+  private boolean nextPending ()
+  {
+    if (pendingHandle != null)
+    {
+      if (!pendingHandle.isEmpty ())
+        return true;
+      pendingHandle.possiblyFlush ();
+      pendingHandle = null;
+    }
+    final ByteBuffer buffer = pending.poll ();
+    if (buffer == null)
+      return false;
+    queued -= buffer.remaining ();
+    pendingHandle = new CacheBufferHandle (bufHandler, buffer);
+    return true;
+  }
+
+  /**
+   * Hand the next block, the end of the resource or the read failure to the
+   * listener, if there is a listener, and start the next read ahead if the
+   * window has room.
+   */
+  private void deliver ()
+  {
+    final BlockListener bl;
+    BufferHandle handle = null;
+    IOException failure = null;
+    boolean timedOut = false;
+    boolean waiting = false;
+    final boolean startRead;
+    boolean releaseWc = false;
+    final Runnable spoolTask;
+    synchronized (this)
+    {
+      bl = listener;
+      if (bl == null || released)
+        return;
+      if (!bufHandle.isEmpty ())
+        handle = bufHandle;
+      else
+        if (nextPending () || nextSpooled ())
+          handle = pendingHandle;
+        else
+          if (readFailure != null)
+            failure = readFailure;
+          else
+            if (readTimedOut)
+              timedOut = true;
+            else
+              if (getBuffered () > 0 || (!eof && (dataSize < 0 || totalRead < dataSize)))
+              {
+                // wait for the read or spool task that is, or will be, in progress
+                waiting = true;
+              }
+      if (!waiting)
       {
-        handleBlock ();
+        listener = null;
+        if (handle != null)
+          totalRead += handle.getBuffer ().remaining ();
       }
+      startRead = startReadAhead ();
+      if (!waiting)
+        releaseWc = !startRead && releaseWebConnectionEarly ();
+      spoolTask = nextSpoolTask ();
+    }
+    if (startRead)
+      register ();
+    if (releaseWc)
+      con.releaseConnection (wc);
+    runSpoolTask (spoolTask);
+    if (waiting)
+      return;
+    if (handle != null)
+    {
+      bl.bufferRead (handle);
+      handle.possiblyFlush ();
+    }
+    else
+      if (failure != null)
+        bl.failed (failure);
+      else
+        if (timedOut)
+          bl.timeout ();
+        else
+          bl.finishedRead ();
+  }
+
+  /**
+   * Make pendingHandle hold the block that was read back from the spool, hold
+   * the lock.
+   *
+   * @return true if there was a block from the spool
+   */
+  private boolean nextSpooled ()
+  {
+    if (spooledBlock == null)
+      return false;
+    pendingHandle = new CacheBufferHandle (bufHandler, spooledBlock);
+    spooledBlock = null;
+    return true;
+  }
+
+  /** Get the number of bytes that have been read but not handed on, hold the lock. */
+  private long getBuffered ()
+  {
+    return queued + getSpooled ();
+  }
+
+  /** Get the number of bytes that are, or will be, in the spool, hold the lock. */
+  private long getSpooled ()
+  {
+    return spoolAvailable + toSpoolBytes + (spooledBlock != null ? spooledBlock.remaining () : 0);
+  }
+
+  /** Check if new data has to go to the spool, hold the lock. */
+  private boolean useSpool ()
+  {
+    return getSpooled () > 0 || pending.size () >= window;
+  }
+
+  /** Check if the spool may take more data, hold the lock. */
+  private boolean spoolHasRoom ()
+  {
+    if (spooler == null)
+      return false;
+    if (spoolSize + toSpoolBytes >= spooler.getMaxSize ())
+    {
+      // wait for the client until the spool has been emptied
+      if (!spoolFull)
+        spooler.limitReached ();
+      spoolFull = true;
+      return false;
+    }
+    spoolFull = false;
+    return true;
+  }
+
+  /**
+   * Check if another read ahead should be started, the caller must hold the
+   * lock and register for read if this returns true.
+   */
+  private boolean startReadAhead ()
+  {
+    if (reading || eof || released || readFailure != null || readTimedOut)
+      return false;
+    if (dataSize > -1 && totalRead + getBuffered () >= dataSize)
+      return false;
+    if (useSpool () && !spoolHasRoom ())
+      return false;
+    reading = true;
+    return true;
+  }
+
+  /**
+   * Check if the web connection can be released now, since the whole resource
+   * has been read, hold the lock.
+   */
+  private boolean releaseWebConnectionEarly ()
+  {
+    if (wcReleased || reading || released || readFailure != null || readTimedOut)
+      return false;
+    if (!eof && (dataSize < 0 || totalRead + getBuffered () < dataSize))
+      return false;
+    if (!bufHandle.isEmpty ())
+      return false;
+    wcReleased = true;
+    if (eof)
+      wc.setKeepalive (false);
+    if (spooler != null)
+      spooler.earlyRelease ();
+    return true;
+  }
+
+  /**
+   * Get the next spool task to run, if the spool is not in use, hold the lock.
+   * Reading back the next block goes first since the listener may be waiting
+   * for it.
+   *
+   * @return the task to give to {@link #runSpoolTask(Runnable)} or null
+   */
+  private Runnable nextSpoolTask ()
+  {
+    if (spoolBusy || released || readFailure != null)
+      return null;
+    final Spool s = spool;
+    if (spooledBlock == null && spoolAvailable > 0)
+    {
+      spoolBusy = true;
+      return () -> readSpool (s);
+    }
+    if (!toSpool.isEmpty ())
+    {
+      spoolBusy = true;
+      final ByteBuffer [] buffers = toSpool.toArray (new ByteBuffer [toSpool.size ()]);
+      final long bytes = toSpoolBytes;
+      return () -> writeSpool (s, buffers, bytes);
+    }
+    return null;
+  }
+
+  /** Run a spool task in a background thread, do not hold the lock. */
+  private void runSpoolTask (final Runnable task)
+  {
+    if (task == null)
+      return;
+    final ITaskIdentifier ti = new DefaultTaskIdentifier (getClass ().getSimpleName (),
+                                                          "spool: " + wc.getAddress ());
+    try
+    {
+      nioHandler.runThreadTask (task, ti);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      synchronized (this)
+      {
+        spoolBusy = false;
+        if (released)
+        {
+          closeSpool ();
+          return;
+        }
+        spooler.failed ();
+        if (readFailure == null)
+          readFailure = new IOException ("Failed to start spool task: " + e, e);
+      }
+      deliver ();
+    }
+  }
+
+  /** Write the buffers to the end of the spool, runs in a background thread. */
+  private void writeSpool (final Spool s, final ByteBuffer [] buffers, final long bytes)
+  {
+    Spool created = null;
+    IOException failure = null;
+    try
+    {
+      final Spool use = s != null ? s : (created = spooler.createSpool ());
+      long written = 0;
+      for (final ByteBuffer b : buffers)
+        written += use.write (b);
+      spooler.spooled (written);
+    }
+    catch (final IOException e)
+    {
+      Logger.getLogger (getClass ().getName ()).log (Level.WARNING, "Failed to spool data for: " + wc.getAddress (), e);
+      if (s != null || created != null)
+        spooler.failed ();
+      failure = e;
+    }
+    synchronized (this)
+    {
+      spoolBusy = false;
+      if (created != null)
+        spool = created;
+      if (released)
+      {
+        closeSpool ();
+        return;
+      }
+      for (int i = 0; i < buffers.length; i++)
+        bufHandler.putBuffer (toSpool.poll ());
+      toSpoolBytes -= bytes;
+      if (failure != null)
+      {
+        readFailure = failure;
+      }
+      else
+      {
+        spoolAvailable = spool.getAvailable ();
+        spoolSize = spool.getSize ();
+      }
+    }
+    spoolTaskDone ();
+  }
+
+  /** Read the next block from the spool, runs in a background thread. */
+  private void readSpool (final Spool s)
+  {
+    final ByteBuffer buffer = bufHandler.getBuffer (SPOOL_BLOCK_SIZE);
+    IOException failure = null;
+    try
+    {
+      s.read (buffer);
+    }
+    catch (final IOException e)
+    {
+      failure = e;
+    }
+    synchronized (this)
+    {
+      spoolBusy = false;
+      if (released || failure != null)
+      {
+        bufHandler.putBuffer (buffer);
+        if (released)
+        {
+          closeSpool ();
+          return;
+        }
+        spooler.failed ();
+        readFailure = failure;
+      }
+      else
+      {
+        spooledBlock = buffer;
+        spoolAvailable = s.getAvailable ();
+        spoolSize = s.getSize ();
+      }
+    }
+    spoolTaskDone ();
+  }
+
+  /** Continue reading and delivering after a spool task. */
+  private void spoolTaskDone ()
+  {
+    final boolean startRead;
+    final boolean releaseWc;
+    final Runnable spoolTask;
+    synchronized (this)
+    {
+      startRead = startReadAhead ();
+      releaseWc = !startRead && releaseWebConnectionEarly ();
+      spoolTask = nextSpoolTask ();
+    }
+    if (startRead)
+      register ();
+    if (releaseWc)
+      con.releaseConnection (wc);
+    runSpoolTask (spoolTask);
+    deliver ();
+  }
+
+  /** Close the spool and drop the data that was not used, hold the lock. */
+  private void closeSpool ()
+  {
+    ByteBuffer b;
+    while ((b = toSpool.poll ()) != null)
+      bufHandler.putBuffer (b);
+    toSpoolBytes = 0;
+    if (spooledBlock != null)
+    {
+      bufHandler.putBuffer (spooledBlock);
+      spooledBlock = null;
+    }
+    if (spool != null)
+    {
+      spooler.closeSpool (spool);
+      spool = null;
+    }
+    spoolAvailable = spoolSize = 0;
+  }
+
+  /**
+   * Read into pooled buffers and queue the data, the listener gets the blocks
+   * in the order they were read.
+   */
+  private void readAhead ()
+  {
+    final AdaptiveReceiveAllocator allocator = wc.getReceiveAllocator ();
+    final List <ByteBuffer> ls = new ArrayList<> ();
+    synchronized (this)
+    {
+      if (released)
+      {
+        reading = false;
+        return;
+      }
+      long left = dataSize > -1 ? dataSize - totalRead - getBuffered () : Long.MAX_VALUE;
+      int count = allocator.getReadBuffers ();
+      if (useSpool ())
+        left = Math.min (left, spooler.getMaxSize () - spoolSize - toSpoolBytes);
+      else
+        count = Math.min (window - pending.size (), count);
+      left = Math.max (left, 1);
+      for (int i = 0; i < count && left > 0; i++)
+      {
+        final ByteBuffer buffer = bufHandler.getBuffer (allocator.getReadSize ());
+        buffer.limit ((int) Math.min (buffer.capacity (), left));
+        left -= buffer.remaining ();
+        ls.add (buffer);
+      }
+    }
+    final ByteBuffer [] buffers = ls.toArray (new ByteBuffer [ls.size ()]);
+    long read = 0;
+    IOException failure = null;
+    try
+    {
+      long room = 0;
+      for (final ByteBuffer b : buffers)
+        room += b.remaining ();
+      read = buffers.length == 1 ? wc.getChannel ().read (buffers[0]) : wc.getChannel ().read (buffers);
+      if (read > 0)
+      {
+        tl.read (read);
+        allocator.record (read, room);
+      }
+    }
+    catch (final IOException e)
+    {
+      failure = e;
+    }
+    final boolean startRead;
+    final boolean releaseWc;
+    final Runnable spoolTask;
+    synchronized (this)
+    {
+      reading = false;
+      for (final ByteBuffer b : buffers)
+      {
+        b.flip ();
+        if (b.hasRemaining () && !released && failure == null && readFailure == null)
+        {
+          if (useSpool () && spooler != null)
+          {
+            toSpoolBytes += b.remaining ();
+            toSpool.add (b);
+          }
+          else
+          {
+            queued += b.remaining ();
+            pending.add (b);
+          }
+        }
+        else
+        {
+          bufHandler.putBuffer (b);
+        }
+      }
+      if (failure != null)
+        readFailure = failure;
+      else
+        if (read == -1)
+          eof = true;
+      startRead = startReadAhead ();
+      releaseWc = !startRead && releaseWebConnectionEarly ();
+      spoolTask = nextSpoolTask ();
+    }
+    if (startRead)
+      register ();
+    if (releaseWc)
+      con.releaseConnection (wc);
+    runSpoolTask (spoolTask);
+    deliver ();
   }
 
   public void finishedRead ()
@@ -145,22 +749,22 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
     nioHandler.waitForRead (wc.getChannel (), this);
   }
 
-  private void handleBlock ()
+  private void handleBlock (final BufferHandle handle)
   {
     final BlockListener bl = listener;
     listener = null;
     if (isChunked)
     {
-      chunkHandler.handleData (bufHandle);
+      chunkHandler.handleData (handle);
       totalRead = chunkHandler.getTotalRead ();
     }
     else
     {
-      final ByteBuffer buffer = bufHandle.getBuffer ();
+      final ByteBuffer buffer = handle.getBuffer ();
       totalRead += buffer.remaining ();
-      bl.bufferRead (bufHandle);
+      bl.bufferRead (handle);
     }
-    bufHandle.possiblyFlush ();
+    handle.possiblyFlush ();
   }
 
   public void readMore ()
@@ -179,46 +783,100 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
 
   public void read ()
   {
-    final boolean useBig = fullReads > 4;
-    final ByteBuffer buffer = useBig ? bufHandle.getLargeBuffer () : bufHandle.getBuffer ();
+    if (window > 0)
+    {
+      readAhead ();
+      return;
+    }
+    final AdaptiveReceiveAllocator allocator = wc.getReceiveAllocator ();
+    final int readSize = allocator.getReadSize ();
+    final ByteBuffer buffer = bufHandle.getBuffer (currentMark + readSize);
 
     buffer.position (currentMark); // keep our saved data.
+    long wanted = Long.MAX_VALUE;
     int limit = buffer.capacity ();
     if (dataSize > 0 && !isChunked)
     {
-      limit = currentMark + (int) Math.min (limit - currentMark, dataSize - totalRead);
+      wanted = dataSize - totalRead;
+      limit = currentMark + (int) Math.min (limit - currentMark, wanted);
     }
     buffer.limit (limit);
+    final ByteBuffer [] buffers = getReadBuffers (buffer, allocator, wanted - buffer.remaining ());
     try
     {
-      final int read = wc.getChannel ().read (buffer);
+      long room = 0;
+      for (final ByteBuffer b : buffers)
+        room += b.remaining ();
+      final long read = buffers.length == 1 ? wc.getChannel ().read (buffer) : wc.getChannel ().read (buffers);
       currentMark = 0;
       if (read == 0)
       {
+        returnExtraBuffers (buffers);
         bufHandle.possiblyFlush ();
         register ();
       }
       else
         if (read == -1)
         {
+          returnExtraBuffers (buffers);
           bufHandle.possiblyFlush ();
           cleanupAndFinish ();
         }
         else
         {
           tl.read (read);
-          if (read == buffer.capacity ())
-            fullReads++;
+          allocator.record (read, room);
           buffer.flip ();
-          handleBlock ();
+          for (int i = 1; i < buffers.length; i++)
+          {
+            final ByteBuffer extra = buffers[i];
+            extra.flip ();
+            if (extra.hasRemaining ())
+              pending.add (extra);
+            else
+              bufHandler.putBuffer (extra);
+          }
+          handleBlock (bufHandle);
         }
     }
     catch (final IOException e)
     {
+      returnExtraBuffers (buffers);
       listener.failed (e);
     }
   }
 
+  /**
+   * Get the buffers to read into. Extra buffers are only used for data that is
+   * not chunked, since the chunk parser needs partial chunks to be in the
+   * BufferHandle, and only when the allocator has seen full reads.
+   */
+  private ByteBuffer [] getReadBuffers (final ByteBuffer buffer,
+                                        final AdaptiveReceiveAllocator allocator,
+                                        final long wantedExtra)
+  {
+    final int count = allocator.getReadBuffers () - 1;
+    if (bufHandler == null || isChunked || count < 1 || wantedExtra <= 0)
+      return new ByteBuffer [] { buffer };
+    final List <ByteBuffer> ls = new ArrayList<> (count + 1);
+    ls.add (buffer);
+    long left = wantedExtra;
+    for (int i = 0; i < count && left > 0; i++)
+    {
+      final ByteBuffer extra = bufHandler.getBuffer (allocator.getReadSize ());
+      extra.limit ((int) Math.min (extra.capacity (), left));
+      left -= extra.remaining ();
+      ls.add (extra);
+    }
+    return ls.toArray (new ByteBuffer [ls.size ()]);
+  }
+
+  private void returnExtraBuffers (final ByteBuffer [] buffers)
+  {
+    for (int i = 1; i < buffers.length; i++)
+      bufHandler.putBuffer (buffers[i]);
+  }
+
   public boolean useSeparateThread ()
   {
     return false;
@@ -226,6 +884,18 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
 
   public void closed ()
   {
+    if (window > 0)
+    {
+      synchronized (this)
+      {
+        reading = false;
+        if (released)
+          return;
+        readFailure = new IOException ("channel closed");
+      }
+      deliver ();
+      return;
+    }
     if (listener != null)
     {
       listener.failed (new IOException ("channel closed"));
@@ -240,6 +910,18 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
 
   public void timeout ()
   {
+    if (window > 0)
+    {
+      synchronized (this)
+      {
+        reading = false;
+        if (released)
+          return;
+        readTimedOut = true;
+      }
+      deliver ();
+      return;
+    }
     if (listener != null)
     {
       listener.timeout ();
@@ -259,16 +941,49 @@ public class WebConnectionResourceSource implements IResourceSource, IReadHandle
 
   public void release ()
   {
-    if (!bufHandle.isEmpty () && wc.getKeepalive () && (dataSize < 0 || totalRead != dataSize))
-      wc.setKeepalive (false);
-    if (!wc.getKeepalive () && !bufHandle.isEmpty ())
+    synchronized (this)
     {
-      // empty the buffer so we can reuse it.
-      final ByteBuffer buffer = bufHandle.getBuffer ();
-      buffer.position (buffer.limit ());
-    }
+      released = true;
+      listener = null;
+      boolean unused = getSpooled () > 0;
+      // a running spool task closes the spool when it is done
+      if (!spoolBusy)
+        closeSpool ();
+      if (nextPending ())
+      {
+        unused = true;
+        final ByteBuffer buffer = pendingHandle.getBuffer ();
+        buffer.position (buffer.limit ());
+        pendingHandle.possiblyFlush ();
+        pendingHandle = null;
+        ByteBuffer extra;
+        while ((extra = pending.poll ()) != null)
+          bufHandler.putBuffer (extra);
+        queued = 0;
+      }
+      if (wcReleased)
+      {
+        // the web connection has already been given back
+        bufHandle.possiblyFlush ();
+        return;
+      }
+      wcReleased = true;
+      if (reading || unused)
+      {
+        // a read ahead is still waiting or the rest of the resource was not used
+        wc.setKeepalive (false);
+      }
+      if (!bufHandle.isEmpty () && wc.getKeepalive () && (dataSize < 0 || totalRead != dataSize))
+        wc.setKeepalive (false);
+      if (!wc.getKeepalive () && !bufHandle.isEmpty ())
+      {
+        // empty the buffer so we can reuse it.
+        final ByteBuffer buffer = bufHandle.getBuffer ();
+        buffer.position (buffer.limit ());
+      }
 
-    bufHandle.possiblyFlush ();
+      bufHandle.possiblyFlush ();
+    }
     con.releaseConnection (wc);
   }
 }
@@ -24,6 +24,23 @@ public interface BufferHandle
    */
   ByteBuffer getBuffer ();
 
+  /**
+   * Get a byte buffer that can hold at least the given number of bytes, or a
+   * large buffer if the wanted size is larger than that. Any data in the
+   * current buffer is kept.
+   * 
+   * @param minSize
+   *        the wanted size
+   * @return the actual ByteBuffer
+   */
+  default ByteBuffer getBuffer (final int minSize)
+  {
+    final ByteBuffer buffer = getBuffer ();
+    if (buffer.capacity () >= minSize || isLarge (buffer))
+      return buffer;
+    return getLargeBuffer ();
+  }
+
   /**
    * Get a byte buffer of reasonable size, the buffer will have been cleared.
    * 
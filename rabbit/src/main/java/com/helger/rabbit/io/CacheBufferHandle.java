@@ -27,6 +27,22 @@ public class CacheBufferHandle implements BufferHandle
     this.bh = bh;
   }
 
+  /**
+   * Create a new CacheBufferHandle that starts out with the given buffer. The
+   * buffer must have been taken from the given BufferHandler, it will be
+   * returned to it once it is empty and flushed.
+   * 
+   * @param bh
+   *        the BufferHandler that is the actual cache
+   * @param buffer
+   *        the ByteBuffer to start with
+   */
+  public CacheBufferHandle (final IBufferHandler bh, final ByteBuffer buffer)
+  {
+    this.bh = bh;
+    this.buffer = buffer;
+  }
+
   public synchronized boolean isEmpty ()
   {
     return buffer == null || !buffer.hasRemaining ();
@@ -39,6 +55,24 @@ public class CacheBufferHandle implements BufferHandle
     return buffer;
   }
 
+  @Override
+  public synchronized ByteBuffer getBuffer (final int minSize)
+  {
+    if (buffer == null)
+    {
+      buffer = bh.getBuffer (minSize);
+    }
+    else
+      if (buffer.capacity () < minSize && !isLarge (buffer))
+      {
+        final ByteBuffer nb = bh.getBuffer (minSize);
+        nb.put (buffer);
+        bh.putBuffer (buffer);
+        buffer = nb;
+      }
+    return buffer;
+  }
+
   public synchronized ByteBuffer getLargeBuffer ()
   {
     if (buffer != null && isLarge (buffer))
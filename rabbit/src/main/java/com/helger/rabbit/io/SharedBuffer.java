@@ -0,0 +1,138 @@
+package com.helger.rabbit.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.helger.rnio.IBufferHandler;
+
+/**
+ * A reference counted ByteBuffer that can be shared by several readers
+ * without copying the data. Each reader gets a view of its own, with its own
+ * position and limit, through {@link #retainedSlice()}. When the last
+ * reference has been released the release action is run, by default the
+ * buffer is given back to its buffer handler.
+ * <p>
+ * A new SharedBuffer holds one reference that belongs to the creator.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SharedBuffer
+{
+  private final ByteBuffer buffer;
+  private final Runnable releaseAction;
+  private final AtomicInteger refCount = new AtomicInteger (1);
+
+  /**
+   * Create a new SharedBuffer.
+   *
+   * @param buffer
+   *        the ByteBuffer to share, the data between position and limit is
+   *        what the views will see.
+   * @param releaseAction
+   *        the action to run once the last reference has been released.
+   */
+  public SharedBuffer (final ByteBuffer buffer, final Runnable releaseAction)
+  {
+    this.buffer = buffer;
+    this.releaseAction = releaseAction;
+  }
+
+  /**
+   * Create a new SharedBuffer that gives the buffer back to the buffer
+   * handler once the last reference has been released.
+   *
+   * @param buffer
+   *        the ByteBuffer to share
+   * @param bh
+   *        the BufferHandler the buffer was taken from
+   */
+  public SharedBuffer (final ByteBuffer buffer, final IBufferHandler bh)
+  {
+    this (buffer, () -> bh.putBuffer (buffer));
+  }
+
+  /**
+   * Add one reference to this buffer.
+   *
+   * @return this buffer
+   * @throws IllegalStateException
+   *         if the buffer has already been released
+   */
+  public SharedBuffer retain ()
+  {
+    int count;
+    do
+    {
+      count = refCount.get ();
+      if (count <= 0)
+        throw new IllegalStateException ("buffer already released: " + this);
+    } while (!refCount.compareAndSet (count, count + 1));
+    return this;
+  }
+
+  /**
+   * Remove one reference from this buffer, the release action is run if this
+   * was the last reference.
+   *
+   * @return true if this was the last reference
+   * @throws IllegalStateException
+   *         if the buffer has already been released
+   */
+  public boolean release ()
+  {
+    final int count = refCount.decrementAndGet ();
+    if (count < 0)
+    {
+      refCount.incrementAndGet ();
+      throw new IllegalStateException ("buffer already released: " + this);
+    }
+    if (count > 0)
+      return false;
+    releaseAction.run ();
+    return true;
+  }
+
+  /**
+   * Get the current number of references.
+   *
+   * @return the number of references, 0 if the buffer has been released
+   */
+  public int getRefCount ()
+  {
+    return refCount.get ();
+  }
+
+  /**
+   * Get a view of the shared data. The view has its own position and limit
+   * but shares the content with the underlying buffer. No reference is added,
+   * so the caller must hold a reference for as long as the view is used.
+   *
+   * @return a new view of the data between position and limit
+   */
+  public ByteBuffer view ()
+  {
+    synchronized (buffer)
+    {
+      return buffer.slice ();
+    }
+  }
+
+  /**
+   * Add one reference and return a handle to a view of the shared data. The
+   * reference is released when the view has been fully consumed and flushed
+   * or when the handle is released.
+   *
+   * @return a new handle for the shared data
+   */
+  public SharedBufferHandle retainedSlice ()
+  {
+    retain ();
+    return new SharedBufferHandle (this, view ());
+  }
+
+  @Override
+  public String toString ()
+  {
+    return getClass ().getSimpleName () + "[buffer: " + buffer + ", refCount: " + refCount.get () + "]";
+  }
+}
@@ -0,0 +1,96 @@
+package com.helger.rabbit.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A handle to a view of a {@link SharedBuffer}. The handle holds one
+ * reference to the shared buffer, the reference is released when the view has
+ * been consumed and the handle is flushed, or when {@link #release()} is
+ * called. The view can not grow, so a shared handle is only meant for readers
+ * of the data.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SharedBufferHandle implements BufferHandle
+{
+  private final SharedBuffer shared;
+  private final ByteBuffer view;
+  private boolean released = false;
+  private boolean mayBeFlushed = true;
+
+  SharedBufferHandle (final SharedBuffer shared, final ByteBuffer view)
+  {
+    this.shared = shared;
+    this.view = view;
+  }
+
+  public synchronized boolean isEmpty ()
+  {
+    return released || !view.hasRemaining ();
+  }
+
+  public synchronized ByteBuffer getBuffer ()
+  {
+    if (released)
+      throw new IllegalStateException ("handle already released: " + this);
+    return view;
+  }
+
+  public ByteBuffer getLargeBuffer ()
+  {
+    throw new UnsupportedOperationException ("shared buffers can not grow");
+  }
+
+  public boolean isLarge (final ByteBuffer buffer)
+  {
+    return false;
+  }
+
+  public synchronized void possiblyFlush ()
+  {
+    if (!mayBeFlushed)
+      throw new IllegalStateException ("buffer may not be flushed!: " + System.identityHashCode (view));
+    if (!view.hasRemaining ())
+      release ();
+  }
+
+  public synchronized void setMayBeFlushed (final boolean mayBeFlushed)
+  {
+    this.mayBeFlushed = mayBeFlushed;
+  }
+
+  /**
+   * Get a new handle to the remaining data of this view. The new handle holds
+   * a reference of its own.
+   *
+   * @return a new handle for the remaining data
+   */
+  public synchronized SharedBufferHandle retainedSlice ()
+  {
+    if (released)
+      throw new IllegalStateException ("handle already released: " + this);
+    shared.retain ();
+    return new SharedBufferHandle (shared, view.slice ());
+  }
+
+  /**
+   * Release the reference this handle holds, the handle can not be used after
+   * this. Releasing an already released handle does nothing.
+   */
+  public void release ()
+  {
+    synchronized (this)
+    {
+      if (released)
+        return;
+      released = true;
+    }
+    shared.release ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return getClass ().getName () + "[view: " + view + ", shared: " + shared + "]";
+  }
+}
@@ -12,6 +12,8 @@ import java.util.logging.Logger;
 import com.helger.rabbit.util.Counter;
 import com.helger.rnio.IConnectHandler;
 import com.helger.rnio.INioHandler;
+import com.helger.rnio.impl.AdaptiveReceiveAllocator;
+import com.helger.rnio.impl.OutboundQueue;
 
 /**
  * A class to handle a connection to the Internet.
@@ -25,9 +27,11 @@ public class WebConnection implements Closeable
   private final SocketBinder binder;
   private final Counter counter;
   private SocketChannel channel;
+  private OutboundQueue outboundQueue;
   private long releasedAt = -1;
   private boolean keepalive = true;
   private boolean mayPipeline = false;
+  private final AdaptiveReceiveAllocator receiveAllocator = new AdaptiveReceiveAllocator ();
   private final Logger logger = Logger.getLogger (getClass ().getName ());
 
   private static final AtomicInteger idCounter = new AtomicInteger (0);
@@ -88,6 +92,18 @@ public class WebConnection implements Closeable
     return channel;
   }
 
+  /**
+   * Get the queue of data to write to this connection. Anything that is sent
+   * to the web server should go through this queue, it is kept for the life
+   * of the connection.
+   * 
+   * @return the OutboundQueue of the network channel
+   */
+  public OutboundQueue getOutboundQueue ()
+  {
+    return outboundQueue;
+  }
+
   public void close () throws IOException
   {
     counter.inc ("WebConnections closed");
@@ -125,6 +141,7 @@ public class WebConnection implements Closeable
       channel.configureBlocking (false);
       if (setTcpNoDelay)
         channel.socket ().setTcpNoDelay (true);
+      outboundQueue = new OutboundQueue (channel, nioHandler);
       final SocketAddress addr = new InetSocketAddress (address.getInetAddress (), address.getPort ());
       final boolean connected = channel.connect (addr);
       if (connected)
@@ -275,4 +292,16 @@ public class WebConnection implements Closeable
   {
     return mayPipeline;
   }
+
+  /**
+   * Get the allocator that sizes the reads from this WebConnection. The
+   * allocator is kept for the life of the connection so that requests that
+   * reuse the connection start with the sizes of the earlier ones.
+   * 
+   * @return the receive allocator of this connection
+   */
+  public AdaptiveReceiveAllocator getReceiveAllocator ()
+  {
+    return receiveAllocator;
+  }
 }
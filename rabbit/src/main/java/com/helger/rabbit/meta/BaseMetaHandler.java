@@ -69,7 +69,7 @@ public abstract class BaseMetaHandler implements MetaHandler, BlockSentListener
     final byte [] b2 = response.toString ().getBytes ("ASCII");
     final ByteBuffer buffer = ByteBuffer.wrap (b2);
     final BufferHandle bh = new SimpleBufferHandle (buffer);
-    final BlockSender bs = new BlockSender (con.getChannel (), con.getNioHandler (), tlClient, bh, false, this);
+    final BlockSender bs = new BlockSender (con.getOutboundQueue (), tlClient, bh, false, this);
     bs.write ();
   }
 
@@ -107,7 +107,7 @@ public abstract class BaseMetaHandler implements MetaHandler, BlockSentListener
   {
     mode = Mode.CLEANUP;
     final ChunkEnder ce = new ChunkEnder ();
-    ce.sendChunkEnding (con.getChannel (), con.getNioHandler (), tlClient, this);
+    ce.sendChunkEnding (con.getOutboundQueue (), tlClient, this);
   }
 
   protected void buildAndSendData () throws IOException
@@ -126,7 +126,7 @@ public abstract class BaseMetaHandler implements MetaHandler, BlockSentListener
     final byte [] b1 = sb.toString ().getBytes ("ASCII");
     final ByteBuffer data = ByteBuffer.wrap (b1);
     final BufferHandle bh = new SimpleBufferHandle (data);
-    final BlockSender bs = new BlockSender (con.getChannel (), con.getNioHandler (), tlClient, bh, true, this);
+    final BlockSender bs = new BlockSender (con.getOutboundQueue (), tlClient, bh, true, this);
     bs.write ();
   }
 
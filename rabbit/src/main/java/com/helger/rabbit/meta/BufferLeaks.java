@@ -0,0 +1,141 @@
+package com.helger.rabbit.meta;
+
+import java.util.Date;
+import java.util.List;
+
+import com.helger.rabbit.html.HtmlEscapeUtils;
+import com.helger.rabbit.proxy.HtmlPage;
+import com.helger.rnio.IBufferHandler;
+import com.helger.rnio.impl.LeakDetectingBufferHandler;
+import com.helger.rnio.statistics.BufferAllocation;
+import com.helger.rnio.statistics.BufferLeakStatistics;
+import com.helger.rnio.statistics.BufferMisuse;
+
+/**
+ * A page that shows the findings of the buffer leak detection.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class BufferLeaks extends BaseMetaHandler
+{
+  private static final int MAX_OUTSTANDING = 20;
+
+  @Override
+  protected String getPageHeader ()
+  {
+    return "Buffer leaks";
+  }
+
+  /** Add the page information */
+  @Override
+  protected PageCompletion addPageInformation (final StringBuilder sb)
+  {
+    final IBufferHandler bh = con.getProxy ().getBufferHandler ();
+    if (bh instanceof LeakDetectingBufferHandler)
+      addStatus (sb, (LeakDetectingBufferHandler) bh);
+    else
+      sb.append ("Buffer leak detection is not enabled, " +
+                 "set buffer_leak_detection=true for the proxy to enable it.<br>\n");
+    return PageCompletion.PAGE_DONE;
+  }
+
+  private void addStatus (final StringBuilder sb, final LeakDetectingBufferHandler bh)
+  {
+    final BufferLeakStatistics stats = bh.getStatistics ();
+    sb.append ("Status of buffers at: ");
+    sb.append (new Date ());
+    sb.append ("<p>\n");
+
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append (HtmlPage.getTableTopicRow ());
+    sb.append ("<th>Handed out</th><th>Sampled</th><th>Returned</th><th>Outstanding</th>");
+    for (final BufferMisuse.Kind kind : BufferMisuse.Kind.values ())
+      sb.append ("<th>").append (getName (kind)).append ("</th>");
+    sb.append ("</tr>\n");
+    sb.append ("<tr><td>").append (stats.getAllocations ());
+    sb.append ("</td><td>").append (stats.getSampled ());
+    sb.append ("</td><td>").append (stats.getReturns ());
+    sb.append ("</td><td>").append (bh.getOutstandingCount ());
+    for (final BufferMisuse.Kind kind : BufferMisuse.Kind.values ())
+      sb.append ("</td><td>").append (stats.getMisuses (kind));
+    sb.append ("</td></tr>\n");
+    sb.append ("</table>\n<br>\n");
+
+    appendMisuses (sb, stats.getRecentMisuses ());
+    appendOutstanding (sb, bh.getOldestOutstanding (MAX_OUTSTANDING));
+  }
+
+  private void appendMisuses (final StringBuilder sb, final List <BufferMisuse> ls)
+  {
+    sb.append ("Recent misuses<br>\n");
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append (HtmlPage.getTableTopicRow ());
+    sb.append ("<th width=\"10%\">Kind</th><th width=\"15%\">Detected</th><th width=\"10%\">Size</th>" +
+               "<th>Allocated by</th><th>Detected by</th></tr>\n");
+    for (int i = ls.size () - 1; i >= 0; i--)
+    {
+      final BufferMisuse bm = ls.get (i);
+      final BufferAllocation ba = bm.getAllocation ();
+      sb.append ("<tr><td>").append (getName (bm.getKind ()));
+      sb.append ("</td><td>").append (new Date (bm.getDetected ()));
+      sb.append ("</td><td>").append (bm.getCapacity ());
+      sb.append ("</td><td>");
+      if (ba != null)
+        appendStack (sb, ba.getStackTrace ());
+      sb.append ("</td><td>");
+      appendStack (sb, bm.getStackTrace ());
+      sb.append ("</td></tr>\n");
+    }
+    sb.append ("</table>\n<br>\n");
+  }
+
+  private void appendOutstanding (final StringBuilder sb, final List <BufferAllocation> ls)
+  {
+    final long now = System.currentTimeMillis ();
+    sb.append ("Oldest outstanding buffers<br>\n");
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append (HtmlPage.getTableTopicRow ());
+    sb.append ("<th width=\"10%\">Age (s)</th><th width=\"10%\">Size</th><th width=\"15%\">Thread</th>" +
+               "<th>Allocated by</th></tr>\n");
+    for (final BufferAllocation ba : ls)
+    {
+      sb.append ("<tr><td>").append ((now - ba.getAllocated ()) / 1000);
+      sb.append ("</td><td>").append (ba.getCapacity ());
+      sb.append ("</td><td>").append (HtmlEscapeUtils.escapeHtml (ba.getThread ()));
+      sb.append ("</td><td>");
+      appendStack (sb, ba.getStackTrace ());
+      sb.append ("</td></tr>\n");
+    }
+    sb.append ("</table>\n<br>\n");
+  }
+
+  private void appendStack (final StringBuilder sb, final StackTraceElement [] stack)
+  {
+    if (stack == null)
+    {
+      sb.append ("not sampled");
+      return;
+    }
+    sb.append ("<font size=\"-1\">");
+    for (final StackTraceElement ste : stack)
+      sb.append (HtmlEscapeUtils.escapeHtml (ste.toString ())).append ("<br>\n");
+    sb.append ("</font>");
+  }
+
+  private String getName (final BufferMisuse.Kind kind)
+  {
+    switch (kind)
+    {
+      case DOUBLE_RETURN:
+        return "Returned twice";
+      case UNKNOWN_RETURN:
+        return "Unknown returns";
+      case LEAK:
+        return "Leaked";
+      case WRITE_AFTER_RETURN:
+        return "Written after return";
+      default:
+        return kind.toString ();
+    }
+  }
+}
@@ -42,6 +42,12 @@ public class CacheStatus extends BaseMetaHandler
     maxsizemb /= (1024 * 1024);
     long cachetimeh = cc.getCacheTime ();
     cachetimeh /= (1000 * 60 * 60);
+    if (cache.isLoading ())
+    {
+      sb.append ("<b>Loading cache index: ");
+      sb.append ((int) (cache.getLoadProgress () * 100));
+      sb.append ("% done, entries that are not loaded yet are not found.</b><br>\n");
+    }
     sb.append ("Cachedir: ").append (cc.getCacheDir ());
     sb.append (".<br>Cache capacity: ");
     sb.append (cache.getNumberOfEntries ()).append (" files");
@@ -103,8 +103,7 @@ public class FileSender implements MetaHandler, HttpHeaderSentListener
 
   private void sendHeader (final HttpHeader header) throws IOException
   {
-    final HttpHeaderSender hhs = new HttpHeaderSender (con.getChannel (),
-                                                       con.getNioHandler (),
+    final HttpHeaderSender hhs = new HttpHeaderSender (con.getOutboundQueue (),
                                                        tlClient,
                                                        header,
                                                        true,
@@ -7,6 +7,7 @@ import java.util.Set;
 
 import com.helger.rabbit.proxy.HtmlPage;
 import com.helger.rnio.ISelectorVisitor;
+import com.helger.rnio.statistics.SelectorStatistics;
 
 /**
  * A status page for the proxy.
@@ -41,10 +42,18 @@ public class SelectorStatus extends BaseMetaHandler
       int count = 0;
 
       public void selector (final Selector selector)
+      {
+        selector (selector, null);
+      }
+
+      @Override
+      public void selector (final Selector selector, final SelectorStatistics stats)
       {
         final boolean odd = (count & 1) == 1;
         final String trColor = odd ? "#EE8888" : "#DD6666";
         final String tdColor = odd ? "#EEFFFF" : "#DDDDFF";
+        if (stats != null)
+          appendStatistics (sb, stats, trColor, tdColor);
         appendKeys (sb, selector.selectedKeys (), "Selected key", trColor, tdColor);
         appendKeys (sb, selector.keys (), "Registered key", trColor, tdColor);
         count++;
@@ -55,6 +64,39 @@ public class SelectorStatus extends BaseMetaHandler
     });
   }
 
+  private void appendStatistics (final StringBuilder sb,
+                                 final SelectorStatistics stats,
+                                 final String thColor,
+                                 final String trColor)
+  {
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append ("<tr bgcolor=\"").append (thColor).append ("\">");
+    sb.append ("<th>Tasks enqueued</th>" +
+               "<th>Wakeups issued</th>" +
+               "<th>Wakeups skipped</th>" +
+               "<th>Queued tasks</th>" +
+               "<th>Keys</th>" +
+               "<th>Last loop (&micro;s)</th>" +
+               "<th>Channels moved away</th>" +
+               "</tr>\n");
+    sb.append ("<tr bgcolor=\"").append (trColor).append ("\"><td>");
+    sb.append (stats.getTasksEnqueued ());
+    sb.append ("</td><td>");
+    sb.append (stats.getWakeupsIssued ());
+    sb.append ("</td><td>");
+    sb.append (stats.getWakeupsSkipped ());
+    sb.append ("</td><td>");
+    sb.append (stats.getQueuedTasks ());
+    sb.append ("</td><td>");
+    sb.append (stats.getKeyCount ());
+    sb.append ("</td><td>");
+    sb.append (stats.getLastLoopNanos () / 1000);
+    sb.append ("</td><td>");
+    sb.append (stats.getChannelsMigrated ());
+    sb.append ("</td></tr>\n");
+    sb.append ("</table>\n<br>\n");
+  }
+
   private void appendKeys (final StringBuilder sb,
                            final Set <SelectionKey> sks,
                            final String header,
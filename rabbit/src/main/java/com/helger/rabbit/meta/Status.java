@@ -7,11 +7,17 @@ import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
+import com.helger.rabbit.httpio.Spooler;
 import com.helger.rabbit.proxy.Connection;
 import com.helger.rabbit.proxy.HtmlPage;
 import com.helger.rabbit.proxy.HttpProxy;
 import com.helger.rabbit.proxy.TrafficLoggerHandler;
 import com.helger.rabbit.util.ITrafficLogger;
+import com.helger.rnio.IBufferHandler;
+import com.helger.rnio.impl.LeakDetectingBufferHandler;
+import com.helger.rnio.impl.SizeClassedBufferHandler;
+import com.helger.rnio.statistics.AcceptorStatistics;
+import com.helger.rnio.statistics.BufferPoolStatistics;
 
 /**
  * A status page for the proxy.
@@ -85,6 +91,16 @@ public class Status extends BaseMetaHandler
     }
 
     sb.append ("</table>\n<br>\n");
+    appendAcceptorStatistics (sb, proxy.getAcceptorStatistics ());
+    final Spooler spooler = proxy.getSpooler ();
+    if (spooler != null)
+      appendSpoolStatistics (sb, spooler);
+    IBufferHandler bh = proxy.getBufferHandler ();
+    if (bh instanceof LeakDetectingBufferHandler)
+      bh = ((LeakDetectingBufferHandler) bh).getBufferHandler ();
+    if (bh instanceof SizeClassedBufferHandler)
+      appendBufferPoolStatistics (sb, ((SizeClassedBufferHandler) bh).getStatistics ());
+
     sb.append (HtmlPage.getTableHeader (100, 1));
     sb.append (HtmlPage.getTableTopicRow ());
     sb.append ("<th>thingy</th><th width=\"10%\">times</th></tr>\n");
@@ -100,6 +116,73 @@ public class Status extends BaseMetaHandler
     sb.append ("</table>\n");
   }
 
+  private void appendBufferPoolStatistics (final StringBuilder sb, final List <BufferPoolStatistics> ls)
+  {
+    sb.append ("Buffer pool<br>\n");
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append (HtmlPage.getTableTopicRow ());
+    sb.append ("<th>Buffer size</th><th>Max pooled</th><th>Hits</th><th>Depot hits</th>" +
+               "<th>Misses</th><th>Returns</th><th>Trims</th></tr>\n");
+    for (final BufferPoolStatistics bps : ls)
+    {
+      sb.append ("\t<tr><td>").append (bps.getBufferSize ());
+      sb.append ("</td><td>").append (bps.getMaxPooled ());
+      sb.append ("</td><td>").append (bps.getHits ());
+      sb.append ("</td><td>").append (bps.getDepotHits ());
+      sb.append ("</td><td>").append (bps.getMisses ());
+      sb.append ("</td><td>").append (bps.getReturns ());
+      sb.append ("</td><td>").append (bps.getTrims ());
+      sb.append ("</td></tr>\n");
+    }
+    sb.append ("</table>\n<br>\n");
+  }
+
+  private void appendSpoolStatistics (final StringBuilder sb, final Spooler spooler)
+  {
+    sb.append ("Spooling to " + spooler.getDirectory () + "<br>\n");
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append (HtmlPage.getTableTopicRow ());
+    sb.append ("<th>Spooled responses</th><th>Spooled bytes</th><th>Active spools</th>" +
+               "<th>Limits reached</th><th>Failures</th><th>Early releases</th></tr>\n");
+    sb.append ("\t<tr><td>").append (spooler.getSpooledResponses ());
+    sb.append ("</td><td>").append (spooler.getSpooledBytes ());
+    sb.append ("</td><td>").append (spooler.getActiveSpools ());
+    sb.append ("</td><td>").append (spooler.getLimitsReached ());
+    sb.append ("</td><td>").append (spooler.getFailures ());
+    sb.append ("</td><td>").append (spooler.getEarlyReleases ());
+    sb.append ("</td></tr>\n");
+    sb.append ("</table>\n<br>\n");
+  }
+
+  private void appendAcceptorStatistics (final StringBuilder sb, final AcceptorStatistics as)
+  {
+    final long accepts = as.getAccepts ();
+    sb.append ("Accepted " + accepts + " connections in " + as.getWakeups () + " wakeups");
+    if (accepts > 0)
+    {
+      sb.append (", average accept latency: " + as.getTotalLatencyNanos () / accepts / 1000 + " &micro;s");
+      sb.append (", max accept latency: " + as.getMaxLatencyNanos () / 1000 + " &micro;s");
+    }
+    sb.append ("<br>\n");
+    sb.append (HtmlPage.getTableHeader (100, 1));
+    sb.append (HtmlPage.getTableTopicRow ());
+    sb.append ("<th>Accepts per wakeup</th><th width=\"10%\">wakeups</th></tr>\n");
+    for (int i = 0; i < AcceptorStatistics.NUM_BUCKETS; i++)
+    {
+      final int low = AcceptorStatistics.getBucketLowerBound (i);
+      sb.append ("\t<tr><td>");
+      if (i == AcceptorStatistics.NUM_BUCKETS - 1)
+        sb.append (low).append ("+");
+      else
+        if (i < 2)
+          sb.append (low);
+        else
+          sb.append (low).append (" - ").append (AcceptorStatistics.getBucketLowerBound (i + 1) - 1);
+      sb.append ("</td><td>").append (as.getAcceptsPerWakeup (i)).append ("</td></tr>\n");
+    }
+    sb.append ("</table>\n<br>\n");
+  }
+
   private void appendTL (final StringBuilder sb, final String type, final ITrafficLogger tl)
   {
     sb.append ("<tr><td>" + type + "</td>");
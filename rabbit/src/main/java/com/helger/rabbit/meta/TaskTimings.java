@@ -2,12 +2,16 @@ package com.helger.rabbit.meta;
 
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import com.helger.rabbit.proxy.HtmlPage;
 import com.helger.rnio.INioHandler;
 import com.helger.rnio.IStatisticsHolder;
 import com.helger.rnio.ITaskIdentifier;
+import com.helger.rnio.impl.LaneExecutor;
 import com.helger.rnio.statistics.CompletionEntry;
+import com.helger.rnio.statistics.LatencyHistogram;
+import com.helger.rnio.statistics.LaneStatistics;
 import com.helger.rnio.statistics.TotalTimeSpent;
 
 /**
@@ -40,9 +44,14 @@ public class TaskTimings extends BaseMetaHandler
     appendTable (sb, "Runing tasks", stats.getRunningTasks ());
 
     appendTotalTimes (sb, "Total time spent", stats.getTotalTimeSpent ());
+    appendPercentiles (sb, "Task time percentiles (ms)", stats);
 
     appendCompletion (sb, "Latest completed tasks", stats.getLatest ());
     appendCompletion (sb, "Longest completed tasks", stats.getLongest ());
+
+    final LaneExecutor lanes = con.getProxy ().getWorkerLanes ();
+    if (lanes != null)
+      appendLanes (sb, "Worker lanes", lanes.getLaneStatistics ());
   }
 
   private String getRowColor (final int row)
@@ -142,4 +151,101 @@ public class TaskTimings extends BaseMetaHandler
     }
     sb.append ("</table><br>\n");
   }
+
+  private void appendPercentiles (final StringBuilder sb, final String title, final IStatisticsHolder stats)
+  {
+    appenTableHeader (sb,
+                      title,
+                      new int [] { 37, 7, 7, 7, 7, 7, 7, 7, 7, 7 },
+                      new String [] { "Group",
+                                      "Pending",
+                                      "Running",
+                                      "Count",
+                                      "p50",
+                                      "p90",
+                                      "p99",
+                                      "p99.9",
+                                      "Max" });
+    final Map <String, Long> pending = stats.getPendingCounts ();
+    final Map <String, Long> running = stats.getRunningCounts ();
+    int row = 0;
+    for (final Map.Entry <String, LatencyHistogram> me : new TreeMap<> (stats.getLatencies ()).entrySet ())
+    {
+      final LatencyHistogram lh = me.getValue ();
+      sb.append ("<tr bgcolor=\"" +
+                 getRowColor (row) +
+                 "\"><td>" +
+                 me.getKey () +
+                 "</td><td>" +
+                 pending.get (me.getKey ()) +
+                 "</td><td>" +
+                 running.get (me.getKey ()) +
+                 "</td><td>" +
+                 lh.getCount () +
+                 "</td><td>" +
+                 lh.getPercentile (50) +
+                 "</td><td>" +
+                 lh.getPercentile (90) +
+                 "</td><td>" +
+                 lh.getPercentile (99) +
+                 "</td><td>" +
+                 lh.getPercentile (99.9) +
+                 "</td><td>" +
+                 lh.getMax () +
+                 "</td></tr>\n");
+      row++;
+    }
+    sb.append ("</table><br>\n");
+  }
+
+  private void appendLanes (final StringBuilder sb, final String title, final List <LaneStatistics> ls)
+  {
+    appenTableHeader (sb,
+                      title,
+                      new int [] { 30, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7 },
+                      new String [] { "Lane",
+                                      "Threads",
+                                      "Queue limit",
+                                      "Policy",
+                                      "Queued",
+                                      "Max queued",
+                                      "Completed",
+                                      "Rejected",
+                                      "Caller runs",
+                                      "Avg wait (ms)",
+                                      "Max wait (ms)" });
+    int row = 0;
+    for (final LaneStatistics lst : ls)
+    {
+      final long started = lst.getSubmitted () - lst.getRejected () - lst.getQueueDepth ();
+      final long avgWait = started > 0 ? lst.getTotalWaitNanos () / started / 1000000 : 0;
+      sb.append ("<tr bgcolor=\"" +
+                 getRowColor (row) +
+                 "\"><td>" +
+                 lst.getName () +
+                 "</td><td>" +
+                 lst.getMaxThreads () +
+                 "</td><td>" +
+                 lst.getMaxQueued () +
+                 "</td><td>" +
+                 lst.getPolicy () +
+                 "</td><td>" +
+                 lst.getQueueDepth () +
+                 "</td><td>" +
+                 lst.getMaxQueueDepth () +
+                 "</td><td>" +
+                 lst.getCompleted () +
+                 "</td><td>" +
+                 lst.getRejected () +
+                 "</td><td>" +
+                 lst.getCallerRuns () +
+                 "</td><td>" +
+                 avgWait +
+                 "</td><td>" +
+                 lst.getMaxWaitNanos () / 1000000 +
+                 "</td></tr>\n");
+      row++;
+    }
+    sb.append ("</table><br>\n");
+  }
 }
@@ -5,16 +5,17 @@ import java.io.IOException;
 import com.helger.rabbit.cache.ICache;
 import com.helger.rabbit.cache.ICacheEntry;
 import com.helger.rabbit.http.HttpHeader;
-import com.helger.rabbit.httpio.FileResourceSource;
+import com.helger.rabbit.httpio.ReadAheadFileResourceSource;
 import com.helger.rnio.IBufferHandler;
 import com.helger.rnio.INioHandler;
 
 /**
- * A resource that comes from the cache.
+ * A resource that comes from the cache. The resource is transferred when
+ * possible, otherwise it is read in large blocks with read ahead.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
-public class CacheResourceSource extends FileResourceSource
+public class CacheResourceSource extends ReadAheadFileResourceSource
 {
   /**
    * Create a new CacheResourceSource.
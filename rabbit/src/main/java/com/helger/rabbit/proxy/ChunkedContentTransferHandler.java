@@ -50,12 +50,7 @@ class ChunkedContentTransferHandler extends ResourceHandlerBase
     fireResourceDataRead (bufHandle);
     if (wc != null)
     {
-      final BlockSender bs = new BlockSender (wc.getChannel (),
-                                              con.getNioHandler (),
-                                              tlh.getNetwork (),
-                                              bufHandle,
-                                              true,
-                                              this);
+      final BlockSender bs = new BlockSender (wc.getOutboundQueue (), tlh.getNetwork (), bufHandle, true, this);
       bs.write ();
     }
     else
@@ -70,7 +65,7 @@ class ChunkedContentTransferHandler extends ResourceHandlerBase
     if (wc != null)
     {
       final ChunkEnder ce = new ChunkEnder ();
-      ce.sendChunkEnding (wc.getChannel (), con.getNioHandler (), tlh.getNetwork (), this);
+      ce.sendChunkEnding (wc.getOutboundQueue (), tlh.getNetwork (), this);
     }
     else
     {
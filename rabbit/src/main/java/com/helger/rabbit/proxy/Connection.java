@@ -6,6 +6,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,7 +31,9 @@ import com.helger.rabbit.io.Resolver;
 import com.helger.rabbit.util.Counter;
 import com.helger.rnio.INioHandler;
 import com.helger.rnio.ITaskIdentifier;
+import com.helger.rnio.impl.AdaptiveReceiveAllocator;
 import com.helger.rnio.impl.DefaultTaskIdentifier;
+import com.helger.rnio.impl.OutboundQueue;
 
 /**
  * The base connection class for rabbit. This is the class that handle the http
@@ -48,12 +51,18 @@ public class Connection
   /** The client channel */
   private final SocketChannel channel;
 
+  /** The queue of data to write to the client */
+  private final OutboundQueue outboundQueue;
+
   /** The current request */
   private HttpHeader request;
 
   /** The current request buffer handle */
   private BufferHandle requestHandle;
 
+  /** The allocator that sizes the reads of client requests. */
+  private final AdaptiveReceiveAllocator requestAllocator = new AdaptiveReceiveAllocator ();
+
   /** The proxy we are serving */
   private final HttpProxy proxy;
 
@@ -107,6 +116,7 @@ public class Connection
     this.id = id;
     this.channel = channel;
     this.proxy = proxy;
+    this.outboundQueue = new OutboundQueue (channel, proxy.getNioHandler ());
     this.requestHandle = new CacheBufferHandle (proxy.getBufferHandler ());
     proxy.addCurrentConnection (this);
     final HttpGeneratorFactory hgf = proxy.getHttpGeneratorFactory ();
@@ -137,6 +147,7 @@ public class Connection
                                                         true,
                                                         proxy.getStrictHttp (),
                                                         clientListener);
+      hr.setReceiveAllocator (requestAllocator);
       hr.readHeader ();
     }
     catch (final Throwable ex)
@@ -541,6 +552,7 @@ public class Connection
                                       webChannel,
                                       rh.getWebHandle (),
                                       tlh.getNetwork (),
+                                      proxy.getBufferHandler (),
                                       tdl);
     tunnel.start ();
   }
@@ -957,6 +969,18 @@ public class Connection
     return proxy.getNioHandler ();
   }
 
+  /**
+   * Get the queue of data to write to the client. Anything queued for the
+   * client should go through this queue so that it can be written with as few
+   * writes as possible.
+   *
+   * @return the OutboundQueue for the client channel
+   */
+  public OutboundQueue getOutboundQueue ()
+  {
+    return outboundQueue;
+  }
+
   /**
    * @return the HttProxy that this connection is serving
    */
@@ -1381,8 +1405,7 @@ public class Connection
     final HttpHeaderSentListener sar = new SendAndRestartListener ();
     try
     {
-      final HttpHeaderSender hhs = new HttpHeaderSender (channel,
-                                                         getNioHandler (),
+      final HttpHeaderSender hhs = new HttpHeaderSender (outboundQueue,
                                                          tlh.getClient (),
                                                          header,
                                                          false,
@@ -1447,7 +1470,16 @@ public class Connection
     if (getNioHandler ().isSelectorThread ())
     {
       final ITaskIdentifier ti = new DefaultTaskIdentifier ("logConnection", request.getRequestURI ());
-      getNioHandler ().runThreadTask ( () -> internalLogAndTryRestart (), ti);
+      try
+      {
+        getNioHandler ().runThreadTask ( () -> internalLogAndTryRestart (), ti);
+      }
+      catch (final RejectedExecutionException e)
+      {
+        // the logging may block, so do not do it here
+        logger.warning ("Could not log the request, closing connection: " + e);
+        closeDown ();
+      }
     }
     else
     {
@@ -72,12 +72,7 @@ class ContentTransferHandler extends ResourceHandlerBase implements BlockSentLis
     fireResourceDataRead (sbufHandle);
     if (wc != null)
     {
-      final BlockSender bs = new BlockSender (wc.getChannel (),
-                                              con.getNioHandler (),
-                                              tlh.getNetwork (),
-                                              sbufHandle,
-                                              false,
-                                              this);
+      final BlockSender bs = new BlockSender (wc.getOutboundQueue (), tlh.getNetwork (), sbufHandle, false, this);
       bs.write ();
     }
     else
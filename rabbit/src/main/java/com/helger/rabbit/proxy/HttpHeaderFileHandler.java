@@ -7,14 +7,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.helger.rabbit.cache.ncache.FileHandler;
+import com.helger.rabbit.cache.ncache.KeyNormalizer;
 import com.helger.rabbit.http.HttpHeader;
 
 /**
- * A FileHandler for HttpHeader
+ * A FileHandler for HttpHeader, also normalizes the cache keys the same way
+ * as HttpHeader.equals compares them.
  * 
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
-public class HttpHeaderFileHandler implements FileHandler <HttpHeader>
+public class HttpHeaderFileHandler implements FileHandler <HttpHeader>, KeyNormalizer <HttpHeader>
 {
   public HttpHeader read (final InputStream is) throws IOException
   {
@@ -29,4 +31,10 @@ public class HttpHeaderFileHandler implements FileHandler <HttpHeader>
     final DataOutputStream dos = new DataOutputStream (os);
     t.write (dos);
   }
+
+  public String normalize (final HttpHeader key)
+  {
+    final String uri = key.getRequestURI ();
+    return uri == null ? "" : uri.toLowerCase ();
+  }
 }
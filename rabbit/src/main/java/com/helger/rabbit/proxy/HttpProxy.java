@@ -1,5 +1,6 @@
 package com.helger.rabbit.proxy;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -11,6 +12,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -30,7 +33,9 @@ import com.helger.rabbit.http.HttpDateParser;
 import com.helger.rabbit.http.HttpHeader;
 import com.helger.rabbit.httpio.ProxiedProxyChain;
 import com.helger.rabbit.httpio.SimpleProxyChain;
+import com.helger.rabbit.httpio.Spooler;
 import com.helger.rabbit.io.ConnectionHandler;
+import com.helger.rabbit.io.FileHelper;
 import com.helger.rabbit.io.IProxyChain;
 import com.helger.rabbit.io.ProxyChainFactory;
 import com.helger.rabbit.io.WebConnection;
@@ -39,13 +44,20 @@ import com.helger.rabbit.util.Config;
 import com.helger.rabbit.util.Counter;
 import com.helger.rnio.IBufferHandler;
 import com.helger.rnio.INioHandler;
+import com.helger.rnio.ISelectorPlacementStrategy;
 import com.helger.rnio.IStatisticsHolder;
 import com.helger.rnio.impl.Acceptor;
 import com.helger.rnio.impl.BasicStatisticsHolder;
-import com.helger.rnio.impl.CachingBufferHandler;
 import com.helger.rnio.impl.IAcceptorListener;
+import com.helger.rnio.impl.LaneExecutor;
+import com.helger.rnio.impl.LeakDetectingBufferHandler;
 import com.helger.rnio.impl.MultiSelectorNioHandler;
+import com.helger.rnio.impl.ReusePortHelper;
+import com.helger.rnio.impl.RoundRobinSelectorPlacement;
 import com.helger.rnio.impl.SimpleThreadFactory;
+import com.helger.rnio.impl.SizeClassedBufferHandler;
+import com.helger.rnio.impl.VirtualThreads;
+import com.helger.rnio.statistics.AcceptorStatistics;
 
 /**
  * A filtering and caching http proxy.
@@ -100,17 +112,29 @@ public class HttpProxy
   /** The proxy chain we are using */
   private IProxyChain proxyChain;
 
-  /** The serversocket the proxy is using. */
-  private ServerSocketChannel ssc = null;
+  /** The serversockets the proxy is using, more than one with SO_REUSEPORT. */
+  private final List <ServerSocketChannel> serverChannels = new ArrayList<> ();
+
+  /** The executor running the background tasks. */
+  private LaneExecutor workerLanes;
+
+  /** The statistics of the acceptors. */
+  private final AcceptorStatistics acceptorStats = new AcceptorStatistics ();
 
   private INioHandler nioHandler;
 
   /** The buffer handlers. */
-  private final IBufferHandler bufferHandler = new CachingBufferHandler ();
+  private IBufferHandler bufferHandler = new SizeClassedBufferHandler ();
 
   /** If this proxy is using strict http parsing. */
   private boolean strictHttp = true;
 
+  /** The number of blocks to read ahead of the client for each response. */
+  private int upstreamReadAhead = 4;
+
+  /** The spooling of responses to disk, null if responses are not spooled. */
+  private Spooler spooler;
+
   /** Maximum number of concurrent connections */
   private int maxConnections = 50;
 
@@ -221,17 +245,41 @@ public class HttpProxy
     }
   }
 
+  private void setupBufferHandler ()
+  {
+    final String section = getClass ().getName ();
+    final long maxPooled = getInt (section, "buffer_pool_max_mb", 64) * 1024L * 1024L;
+    bufferHandler = new SizeClassedBufferHandler (SizeClassedBufferHandler.DEFAULT_SIZES, maxPooled);
+    if ("true".equalsIgnoreCase (config.getProperty (section, "buffer_leak_detection", "false")))
+    {
+      final int sampleRate = Math.max (1,
+                                       getInt (section,
+                                               "buffer_leak_sample_rate",
+                                               LeakDetectingBufferHandler.DEFAULT_SAMPLE_RATE));
+      bufferHandler = new LeakDetectingBufferHandler (bufferHandler, sampleRate);
+      logger.info ("Buffer leak detection is on, sample rate: 1/" + sampleRate);
+    }
+  }
+
   private void setupNioHandler ()
   {
     final String section = getClass ().getName ();
     final int cpus = Runtime.getRuntime ().availableProcessors ();
     final int threads = getInt (section, "num_selector_threads", cpus);
-    final ExecutorService es = Executors.newCachedThreadPool ();
+    final ExecutorService es = setupWorkerExecutor (section);
     final IStatisticsHolder sh = new BasicStatisticsHolder ();
     final Long timeout = Long.valueOf (15000);
+    final ISelectorPlacementStrategy placement = getSelectorPlacementStrategy (section);
+    final int balanceInterval = getInt (section, "selector_balance_interval", 0);
+    final int balanceThreshold = getInt (section, "selector_balance_threshold", 25);
     try
     {
-      nioHandler = new MultiSelectorNioHandler (es, sh, threads, timeout);
+      final MultiSelectorNioHandler msnh = new MultiSelectorNioHandler (es, sh, threads, timeout, placement);
+      if (workerLanes != null)
+        workerLanes.setSelectorThreadCheck (msnh::isSelectorThread);
+      if (balanceInterval > 0)
+        msnh.setBalancing (balanceInterval, balanceThreshold / 100.0);
+      nioHandler = msnh;
     }
     catch (final IOException e)
     {
@@ -240,6 +288,101 @@ public class HttpProxy
     }
   }
 
+  private ExecutorService setupWorkerExecutor (final String section)
+  {
+    final String type = config.getProperty (section, "worker_executor", "lanes");
+    if ("virtual".equalsIgnoreCase (type))
+    {
+      try
+      {
+        return VirtualThreads.newVirtualThreadPerTaskExecutor ();
+      }
+      catch (final UnsupportedOperationException e)
+      {
+        logger.warning ("Virtual threads are not available: " + e + ", will use worker lanes instead.");
+      }
+    }
+    return setupWorkerLanes (section);
+  }
+
+  private LaneExecutor setupWorkerLanes (final String section)
+  {
+    final int threads = getInt (section, "worker_threads", 256);
+    final int queueSize = getInt (section, "worker_queue_size", 1024);
+    final String policy = config.getProperty (section, "worker_rejection", "abort");
+    final LaneExecutor le = new LaneExecutor (Executors.defaultThreadFactory (),
+                                              threads,
+                                              queueSize,
+                                              getRejectionPolicy (policy, LaneExecutor.RejectionPolicy.ABORT));
+    // Each entry is "group id=threads,queue size,rejection policy"
+    final SMap lanes = config.getProperties ("worker_lanes");
+    if (lanes != null)
+    {
+      for (final Map.Entry <String, String> me : lanes.entrySet ())
+      {
+        final String [] parts = me.getValue ().split (",");
+        try
+        {
+          final int laneThreads = Integer.parseInt (parts[0].trim ());
+          final int laneQueue = parts.length > 1 ? Integer.parseInt (parts[1].trim ()) : queueSize;
+          final LaneExecutor.RejectionPolicy lanePolicy = parts.length > 2 ? getRejectionPolicy (parts[2],
+                                                                                                 LaneExecutor.RejectionPolicy.ABORT)
+                                                                           : LaneExecutor.RejectionPolicy.ABORT;
+          le.addLane (me.getKey (), laneThreads, laneQueue, lanePolicy);
+        }
+        catch (final RuntimeException e)
+        {
+          logger.warning ("Bad worker lane: " + me.getKey () + "=" + me.getValue () + ": " + e);
+        }
+      }
+    }
+    workerLanes = le;
+    return le;
+  }
+
+  private LaneExecutor.RejectionPolicy getRejectionPolicy (final String policy,
+                                                           final LaneExecutor.RejectionPolicy defaultPolicy)
+  {
+    try
+    {
+      return LaneExecutor.RejectionPolicy.valueOf (policy.trim ().toUpperCase (Locale.US));
+    }
+    catch (final IllegalArgumentException e)
+    {
+      logger.warning ("Unknown rejection policy: " + policy + ", will use " + defaultPolicy);
+      return defaultPolicy;
+    }
+  }
+
+  /**
+   * Get the executor that runs the background tasks of this proxy.
+   *
+   * @return the LaneExecutor used by the NioHandler or null if the background
+   *         tasks are run in virtual threads
+   */
+  public LaneExecutor getWorkerLanes ()
+  {
+    return workerLanes;
+  }
+
+  private ISelectorPlacementStrategy getSelectorPlacementStrategy (final String section)
+  {
+    final String placementClass = config.getProperty (section,
+                                                      "selector_placement",
+                                                      RoundRobinSelectorPlacement.class.getName ());
+    try
+    {
+      final Class <? extends ISelectorPlacementStrategy> clz = load3rdPartyClass (placementClass,
+                                                                                  ISelectorPlacementStrategy.class);
+      return clz.newInstance ();
+    }
+    catch (final Exception e)
+    {
+      logger.warning ("Unable to create selector placement strategy: " + e + ", will use round robin instead.");
+      return new RoundRobinSelectorPlacement ();
+    }
+  }
+
   private IProxyChain setupProxyChainFromFactory (final String pcf)
   {
     try
@@ -329,7 +472,7 @@ public class HttpProxy
     final HttpHeaderFileHandler hhfh = new HttpHeaderFileHandler ();
     try
     {
-      cache = new NCache<> (props, hhfh, hhfh);
+      cache = new NCache<> (props, hhfh, hhfh, hhfh);
       cache.start ();
     }
     catch (final IOException e)
@@ -453,12 +596,15 @@ public class HttpProxy
     setupDateParsing ();
     setup3rdPartyClassLoader ();
     setupDNSHandler ();
+    setupBufferHandler ();
     setupNioHandler ();
     setupProxyConnection ();
     final String cn = getClass ().getName ();
     serverIdentity = config.getProperty (cn, "serverIdentity", VERSION);
     final String strictHttp = config.getProperty (cn, "StrictHTTP", "true");
     setStrictHttp (strictHttp.equals ("true"));
+    upstreamReadAhead = Math.max (0, getInt (cn, "upstream_read_ahead", 4));
+    setupSpooler ();
     setupMaxConnections ();
     setupResources ();
     setupCache ();
@@ -470,6 +616,37 @@ public class HttpProxy
     logger.info (VERSION + ": Configuration loaded: ready for action.");
   }
 
+  private void setupSpooler ()
+  {
+    final String section = getClass ().getName ();
+    spooler = null;
+    if (!"true".equalsIgnoreCase (config.getProperty (section, "spool_to_disk", "false")))
+      return;
+    if (upstreamReadAhead == 0)
+    {
+      logger.warning ("spool_to_disk needs upstream_read_ahead > 0, responses will not be spooled");
+      return;
+    }
+    final String dirName = config.getProperty (section, "spool_dir", System.getProperty ("java.io.tmpdir"));
+    final File dir = new File (dirName);
+    if (!dir.isDirectory ())
+    {
+      try
+      {
+        FileHelper.mkdirs (dir);
+      }
+      catch (final IOException e)
+      {
+        logger.log (Level.WARNING, "Failed to create spool directory: " + dir + ", responses will not be spooled", e);
+        return;
+      }
+    }
+    final long minSize = getInt (section, "spool_min_kb", 64) * 1024L;
+    final long maxSize = getInt (section, "spool_max_mb", 16) * 1024L * 1024L;
+    spooler = new Spooler (dir, minSize, maxSize);
+    logger.info ("Spooling responses to: " + dir + ", min size: " + minSize + ", max size: " + maxSize);
+  }
+
   private int getInt (final String section, final String key, final int defaultValue)
   {
     final String defVal = Integer.toString (defaultValue);
@@ -493,21 +670,42 @@ public class HttpProxy
       {
         closeSocket ();
         port = tport;
-        ssc = ServerSocketChannel.open ();
-        ssc.configureBlocking (false);
+        final InetSocketAddress isa;
         if (bindIP == null)
         {
-          ssc.socket ().bind (new InetSocketAddress (port));
+          isa = new InetSocketAddress (port);
         }
         else
         {
           final InetAddress ia = InetAddress.getByName (bindIP);
           logger.info ("listening on inetaddress: " + ia + ":" + port + " on inet address: " + ia);
-          ssc.socket ().bind (new InetSocketAddress (ia, port));
+          isa = new InetSocketAddress (ia, port);
         }
+        final boolean reusePort = "true".equalsIgnoreCase (config.getProperty (section, "listen_reuseport", "false"));
+        final int maxAccepts = getInt (section, "max_accepts_per_wakeup", Acceptor.DEFAULT_MAX_ACCEPTS);
         final IAcceptorListener listener = new ProxyConnectionAcceptor (acceptorId++, this);
-        final Acceptor acceptor = new Acceptor (ssc, nioHandler, listener);
-        acceptor.register ();
+        if (reusePort && nioHandler instanceof MultiSelectorNioHandler && ReusePortHelper.isSupported ())
+        {
+          // One listening socket and acceptor for each selector
+          final MultiSelectorNioHandler msnh = (MultiSelectorNioHandler) nioHandler;
+          for (int i = 0; i < msnh.getNumSelectors (); i++)
+          {
+            final ServerSocketChannel ssc = ReusePortHelper.openAndBind (isa);
+            serverChannels.add (ssc);
+            msnh.bindToSelector (ssc, i);
+            new Acceptor (ssc, nioHandler, listener, maxAccepts, acceptorStats).register ();
+          }
+        }
+        else
+        {
+          if (reusePort)
+            logger.warning ("SO_REUSEPORT is not supported, will use one listening socket");
+          final ServerSocketChannel ssc = ServerSocketChannel.open ();
+          serverChannels.add (ssc);
+          ssc.configureBlocking (false);
+          ssc.socket ().bind (isa);
+          new Acceptor (ssc, nioHandler, listener, maxAccepts, acceptorStats).register ();
+        }
       }
       catch (final IOException e)
       {
@@ -525,11 +723,9 @@ public class HttpProxy
     try
     {
       port = -1;
-      if (ssc != null)
-      {
+      for (final ServerSocketChannel ssc : serverChannels)
         ssc.close ();
-        ssc = null;
-      }
+      serverChannels.clear ();
     }
     catch (final IOException e)
     {
@@ -633,7 +829,17 @@ public class HttpProxy
 
   ServerSocketChannel getServerSocketChannel ()
   {
-    return ssc;
+    return serverChannels.isEmpty () ? null : serverChannels.get (0);
+  }
+
+  /**
+   * Get the statistics for the acceptors of this proxy.
+   *
+   * @return the AcceptorStatistics shared by all the listening sockets
+   */
+  public AcceptorStatistics getAcceptorStatistics ()
+  {
+    return acceptorStats;
   }
 
   /**
@@ -898,6 +1104,28 @@ public class HttpProxy
     return bufferHandler;
   }
 
+  /**
+   * Get the number of blocks that may be read from a web server while the
+   * earlier blocks of the response are still being sent to the client.
+   *
+   * @return the read ahead window, 0 if reads wait for each block to be sent
+   */
+  public int getUpstreamReadAhead ()
+  {
+    return upstreamReadAhead;
+  }
+
+  /**
+   * Get the Spooler that writes responses to disk when the clients are slower
+   * than the web servers.
+   *
+   * @return the Spooler or null if spooling is turned off
+   */
+  public Spooler getSpooler ()
+  {
+    return spooler;
+  }
+
   /**
    * Get the current HttpGeneratorFactory.
    *
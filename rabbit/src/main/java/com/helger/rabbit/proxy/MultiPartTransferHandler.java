@@ -45,12 +45,7 @@ class MultiPartTransferHandler extends ResourceHandlerBase implements BlockSentL
     fireResourceDataRead (sbh);
     if (wc != null)
     {
-      final BlockSender bs = new BlockSender (wc.getChannel (),
-                                              con.getNioHandler (),
-                                              tlh.getNetwork (),
-                                              sbh,
-                                              false,
-                                              this);
+      final BlockSender bs = new BlockSender (wc.getOutboundQueue (), tlh.getNetwork (), sbh, false, this);
       bs.write ();
     }
     else
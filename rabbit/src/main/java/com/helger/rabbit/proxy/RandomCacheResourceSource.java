@@ -2,20 +2,20 @@ package com.helger.rabbit.proxy;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import com.helger.rabbit.cache.ICache;
 import com.helger.rabbit.http.Header;
 import com.helger.rabbit.http.HttpHeader;
 import com.helger.rabbit.http.MultipartHeader;
-import com.helger.rabbit.httpio.BlockListener;
 import com.helger.rabbit.io.Range;
 import com.helger.rnio.IBufferHandler;
 import com.helger.rnio.INioHandler;
 
 /**
- * A resource that gets ranges from the cache. This resource will read data from
- * disk so it may block.
+ * A resource that gets ranges from the cache. The ranges are read in large
+ * blocks with read ahead on background threads.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
@@ -23,20 +23,9 @@ public class RandomCacheResourceSource extends CacheResourceSource
 {
   private final String contentType;
   private final List <Range> ranges;
-  private int currentRange = 0;
   private final String separator = "THIS_STRING_SEPARATES";
-  private boolean startBlock = true;
-  private long currentIndex = 0;
   private final long totalSize;
 
-  private enum State
-  {
-    SEND_HEADER,
-    SEND_DATA
-  }
-
-  private State state = State.SEND_HEADER;
-
   /**
    * Create a new ResourceSource that will get a list of ranges from a cached
    * resource.
@@ -81,130 +70,42 @@ public class RandomCacheResourceSource extends CacheResourceSource
     return false;
   }
 
-  private boolean getNextSingleBufferBlock (final ByteBuffer buffer) throws IOException
-  {
-    if (currentRange > 0)
-      return false;
-    final Range r = ranges.get (currentRange);
-    updateBufferAndPosition (buffer, r);
-    return true;
-  }
-
   /**
-   * Fill the buffer with data for the current range. If the range is fully
-   * handled then currentRange will be incremented.
-   * 
-   * @param buffer
-   *        the ByteBuffer to fill with data
-   * @param r
-   *        the range to fill data for
-   * @throws IOException
-   *         if reading the resource fails
+   * Add the wanted ranges, with multipart headers if more than one range is
+   * wanted.
    */
-  private void updateBufferAndPosition (final ByteBuffer buffer, final Range r) throws IOException
-  {
-    if (startBlock)
-    {
-      fc.position (r.getStart ());
-      currentIndex = r.getStart ();
-      startBlock = false;
-    }
-    fillBufferWithData (r, buffer);
-    // if something fishy happen we abort...
-    // inclusive, so we expect 1 more than end.
-    if (r.size () == 0 || buffer.position () == 0 || currentIndex > r.getEnd ())
-      currentRange++;
-  }
-
-  private void fillBufferWithData (final Range r, final ByteBuffer buffer) throws IOException
-  {
-    final int maxBytesThisRead = (int) Math.min (r.size (), buffer.capacity ());
-    if (maxBytesThisRead < buffer.capacity ())
-      buffer.limit (maxBytesThisRead);
-    final int read = fc.read (buffer);
-    currentIndex += read;
-  }
-
-  private boolean getNextMultipleBufferBlock (final ByteBuffer buffer) throws IOException
+  @Override
+  protected void addParts ()
   {
-    if (currentRange > ranges.size ())
-      return false;
-    if (currentRange == ranges.size ())
+    if (ranges.size () == 1)
     {
-      // CRLF should be optional according to BNF, but add it
-      // since the rfc say it should be there.
-      buffer.clear ();
-      buffer.put ((Header.CRLF + "--" + separator + "--" + Header.CRLF).getBytes ());
-      currentRange++;
-      return true;
+      final Range r = ranges.get (0);
+      addRegion (r.getStart (), r.size ());
+      return;
     }
-
-    final int r1 = currentRange;
-    final Range r = ranges.get (currentRange);
-    if (state == State.SEND_HEADER)
+    for (final Range r : ranges)
     {
-      buffer.clear ();
-      writeHeader (buffer);
-      startBlock = true;
-      state = State.SEND_DATA;
+      addData (ByteBuffer.wrap (getHeader (r)));
+      addRegion (r.getStart (), r.size ());
     }
-    else
-      if (state == State.SEND_DATA)
-      {
-        updateBufferAndPosition (buffer, r);
-        if (currentRange != r1)
-          state = State.SEND_HEADER;
-      }
-    return true;
+    // CRLF should be optional according to BNF, but add it
+    // since the rfc say it should be there.
+    addData (ByteBuffer.wrap ((Header.CRLF + "--" + separator + "--" + Header.CRLF).getBytes (StandardCharsets.US_ASCII)));
   }
 
   /**
-   * Write the current MultipartHeader to the buffer.
-   * 
-   * @param buffer
-   *        the ByteBuffer to write the multipart header to
-   * @throws IOException
-   *         if the header can not be converted to US-ASCII
+   * Get the MultipartHeader for a range.
+   *
+   * @param r
+   *        the range to get the header for
+   * @return the header as US-ASCII bytes
    */
-  private void writeHeader (final ByteBuffer buffer) throws IOException
+  private byte [] getHeader (final Range r)
   {
     final MultipartHeader h = new MultipartHeader (Header.CRLF + "--" + separator);
-    final Range r = ranges.get (currentRange);
     if (contentType != null)
       h.setHeader ("Content-Type", contentType);
     h.setHeader ("Content-Range", "bytes " + r.getStart () + "-" + r.getEnd () + "/" + totalSize);
-    buffer.put (h.toString ().getBytes ("US-ASCII"));
-  }
-
-  private boolean getNextBuffer (final ByteBuffer buffer) throws IOException
-  {
-    if (ranges.size () > 1)
-    {
-      return getNextMultipleBufferBlock (buffer);
-    }
-    return getNextSingleBufferBlock (buffer);
-  }
-
-  @Override
-  public void addBlockListener (final BlockListener listener)
-  {
-    try
-    {
-      final ByteBuffer buffer = bufHandle.getBuffer ();
-      if (getNextBuffer (buffer))
-      {
-        buffer.flip ();
-        listener.bufferRead (bufHandle);
-      }
-      else
-      {
-        bufHandle.possiblyFlush ();
-        listener.finishedRead ();
-      }
-    }
-    catch (final IOException e)
-    {
-      listener.failed (e);
-    }
+    return h.toString ().getBytes (StandardCharsets.US_ASCII);
   }
 }
@@ -240,12 +240,13 @@ public class SCC
       start = Integer.parseInt (s);
       if (e.length () > 0)
       {
-        end = Integer.parseInt (e);
+        // ranges are inclusive, an end after the resource means the last byte
+        end = Math.min (Integer.parseInt (e), size - 1);
       }
       else
       {
         // to the end...
-        end = size;
+        end = size - 1;
       }
       if (start > size)
         throw new IllegalArgumentException (SBTZ);
@@ -263,7 +264,7 @@ public class SCC
         if (start < 0)
           throw new IllegalArgumentException (SLTZ);
         start = size - start;
-        end = size;
+        end = size - 1;
         return new Range (start, end);
       }
       else
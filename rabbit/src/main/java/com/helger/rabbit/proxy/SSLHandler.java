@@ -243,8 +243,7 @@ public class SSLHandler implements TunnelDoneListener
     final HttpHeaderSentListener tc = new TunnelConnected (server2client);
     try
     {
-      final HttpHeaderSender hhs = new HttpHeaderSender (channel,
-                                                         proxy.getNioHandler (),
+      final HttpHeaderSender hhs = new HttpHeaderSender (con.getOutboundQueue (),
                                                          tlh.getClient (),
                                                          reply,
                                                          false,
@@ -296,6 +295,7 @@ public class SSLHandler implements TunnelDoneListener
                                       sc,
                                       server2client,
                                       tlh.getNetwork (),
+                                      proxy.getBufferHandler (),
                                       this);
     tunnel.start ();
   }
@@ -114,8 +114,7 @@ public class SWC implements
       if (crh != null)
         crh.modifyRequest (header);
 
-      final HttpHeaderSender hhs = new HttpHeaderSender (wc.getChannel (),
-                                                         con.getNioHandler (),
+      final HttpHeaderSender hhs = new HttpHeaderSender (wc.getOutboundQueue (),
                                                          tlh.getNetwork (),
                                                          header,
                                                          useFullURI (),
@@ -188,6 +187,7 @@ public class SWC implements
                                                          false,
                                                          con.getProxy ().getStrictHttp (),
                                                          this);
+      hhr.setReceiveAllocator (rh.getWebConnection ().getReceiveAllocator ());
       hhr.readHeader ();
     }
     catch (final IOException e)
@@ -216,8 +216,7 @@ public class SWC implements
       con.getCounter ().inc ("WebConnection got 1xx reply " + attempts);
       try
       {
-        final HttpHeaderSender hhs = new HttpHeaderSender (con.getChannel (),
-                                                           con.getNioHandler (),
+        final HttpHeaderSender hhs = new HttpHeaderSender (con.getOutboundQueue (),
                                                            tlh.getClient (),
                                                            header,
                                                            false,
@@ -261,7 +260,10 @@ public class SWC implements
                                                                             tlh.getNetwork (),
                                                                             isChunked,
                                                                             dataSize,
-                                                                            proxy.getStrictHttp ());
+                                                                            proxy.getStrictHttp (),
+                                                                            proxy.getBufferHandler (),
+                                                                            proxy.getUpstreamReadAhead ());
+    rs.setSpooler (proxy.getSpooler ());
     rh.setContent (rs);
   }
 
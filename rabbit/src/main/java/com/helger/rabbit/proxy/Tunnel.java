@@ -9,9 +9,11 @@ import java.util.logging.Logger;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.rabbit.io.BufferHandle;
 import com.helger.rabbit.util.ITrafficLogger;
+import com.helger.rnio.IBufferHandler;
 import com.helger.rnio.INioHandler;
 import com.helger.rnio.IReadHandler;
 import com.helger.rnio.IWriteHandler;
+import com.helger.rnio.impl.AdaptiveReceiveAllocator;
 
 /**
  * A handler that just tunnels data.
@@ -25,6 +27,7 @@ public class Tunnel
   private final OneWayTunnel fromToTo;
   private final OneWayTunnel toToFrom;
   private final TunnelDoneListener listener;
+  private final IBufferHandler bufHandler;
 
   /**
    * Create a tunnel that transfers data as fast as possible in full duplex.
@@ -55,6 +58,45 @@ public class Tunnel
                  final BufferHandle toHandle,
                  final ITrafficLogger toLogger,
                  final TunnelDoneListener listener)
+  {
+    this (nioHandler, from, fromHandle, fromLogger, to, toHandle, toLogger, null, listener);
+  }
+
+  /**
+   * Create a tunnel that transfers data as fast as possible in full duplex and
+   * that may read into several buffers at once when there is much data to
+   * move.
+   * 
+   * @param nioHandler
+   *        the NioHandler to use for waiting on data to read as well as waiting
+   *        for write ready
+   * @param from
+   *        one end of the tunnel
+   * @param fromHandle
+   *        the ByteBuffer holder for the data from "from"
+   * @param fromLogger
+   *        the traffic statistics gatherer for "from"
+   * @param to
+   *        the other end of the tunnel
+   * @param toHandle
+   *        the ByteBuffer holder for the data from "from"
+   * @param toLogger
+   *        the traffic statistics gatherer for "from"
+   * @param bufHandler
+   *        the BufferHandler to get extra buffers from, may be null to only use
+   *        the buffer handles
+   * @param listener
+   *        the listener that will be notified when the tunnel is closed
+   */
+  public Tunnel (final INioHandler nioHandler,
+                 final SocketChannel from,
+                 final BufferHandle fromHandle,
+                 final ITrafficLogger fromLogger,
+                 final SocketChannel to,
+                 final BufferHandle toHandle,
+                 final ITrafficLogger toLogger,
+                 final IBufferHandler bufHandler,
+                 final TunnelDoneListener listener)
   {
     if (logger.isLoggable (Level.FINEST))
       logger.finest ("Tunnel created from: " + from + " to: " + to);
@@ -62,6 +104,7 @@ public class Tunnel
     fromToTo = new OneWayTunnel (from, to, fromHandle, fromLogger);
     toToFrom = new OneWayTunnel (to, from, toHandle, toLogger);
     this.listener = listener;
+    this.bufHandler = bufHandler;
   }
 
   /**
@@ -81,6 +124,9 @@ public class Tunnel
     private final SocketChannel to;
     private final BufferHandle bh;
     private final ITrafficLogger tl;
+    private final AdaptiveReceiveAllocator allocator = new AdaptiveReceiveAllocator ();
+    // the buffers of the last read, the first one belongs to bh
+    private ByteBuffer [] buffers;
 
     public OneWayTunnel (final SocketChannel from,
                          final SocketChannel to,
@@ -124,6 +170,16 @@ public class Tunnel
       final ByteBuffer buf = bh.getBuffer ();
       buf.position (buf.limit ());
       bh.possiblyFlush ();
+      returnExtraBuffers ();
+    }
+
+    private void returnExtraBuffers ()
+    {
+      if (buffers == null)
+        return;
+      for (int i = 1; i < buffers.length; i++)
+        bufHandler.putBuffer (buffers[i]);
+      buffers = null;
     }
 
     private void writeData ()
@@ -137,17 +193,36 @@ public class Tunnel
           return;
         }
         final ByteBuffer buf = bh.getBuffer ();
-        if (buf.hasRemaining ())
+        if (buffers != null && buffers.length > 1)
         {
-          int written;
+          long written;
           do
           {
-            written = to.write (buf);
+            written = to.write (buffers);
             if (logger.isLoggable (Level.FINEST))
               logger.finest ("OneWayTunnel wrote: " + written);
             tl.write (written);
-          } while (written > 0 && buf.hasRemaining ());
+          } while (written > 0 && hasRemaining (buffers));
+          if (hasRemaining (buffers))
+          {
+            // do not flush bh, the first buffer is still in use
+            nioHandler.waitForWrite (to, this);
+            return;
+          }
+          returnExtraBuffers ();
         }
+        else
+          if (buf.hasRemaining ())
+          {
+            int written;
+            do
+            {
+              written = to.write (buf);
+              if (logger.isLoggable (Level.FINEST))
+                logger.finest ("OneWayTunnel wrote: " + written);
+              tl.write (written);
+            } while (written > 0 && buf.hasRemaining ());
+          }
 
         if (buf.hasRemaining ())
           waitForWrite ();
@@ -197,19 +272,26 @@ public class Tunnel
           logger.warning ("Tunnel to is closed, not reading data");
           return;
         }
-        final ByteBuffer buffer = bh.getBuffer ();
+        final ByteBuffer buffer = bh.getBuffer (allocator.getReadSize ());
         buffer.clear ();
-        final int read = from.read (buffer);
+        buffers = getReadBuffers (buffer);
+        long room = 0;
+        for (final ByteBuffer b : buffers)
+          room += b.remaining ();
+        final long read = buffers.length == 1 ? from.read (buffer) : from.read (buffers);
         if (logger.isLoggable (Level.FINEST))
           logger.finest ("OneWayTunnel read: " + read);
         if (read == -1)
         {
           buffer.position (buffer.limit ());
+          returnExtraBuffers ();
           closeDown ();
         }
         else
         {
-          buffer.flip ();
+          allocator.record (read, room);
+          for (final ByteBuffer b : buffers)
+            b.flip ();
           tl.read (read);
           writeData ();
         }
@@ -225,6 +307,26 @@ public class Tunnel
     {
       writeData ();
     }
+
+    private boolean hasRemaining (final ByteBuffer [] bufs)
+    {
+      for (final ByteBuffer b : bufs)
+        if (b.hasRemaining ())
+          return true;
+      return false;
+    }
+
+    private ByteBuffer [] getReadBuffers (final ByteBuffer buffer)
+    {
+      final int count = allocator.getReadBuffers ();
+      if (bufHandler == null || count < 2)
+        return new ByteBuffer [] { buffer };
+      final ByteBuffer [] ret = new ByteBuffer [count];
+      ret[0] = buffer;
+      for (int i = 1; i < count; i++)
+        ret[i] = bufHandler.getBuffer (buffer.capacity ());
+      return ret;
+    }
   }
 
   private void closeDown ()
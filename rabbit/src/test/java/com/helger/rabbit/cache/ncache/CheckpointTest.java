@@ -0,0 +1,216 @@
+package com.helger.rabbit.cache.ncache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static com.helger.rabbit.cache.ncache.IndexTestData.assertData;
+import static com.helger.rabbit.cache.ncache.IndexTestData.data;
+import static com.helger.rabbit.cache.ncache.IndexTestData.flip;
+import static com.helger.rabbit.cache.ncache.IndexTestData.fp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.url.SMap;
+import com.helger.rabbit.cache.ICacheEntry;
+import com.helger.rabbit.cache.ncache.IndexTestData.Recorder;
+import com.helger.rabbit.http.HttpHeader;
+import com.helger.rabbit.proxy.HttpHeaderFileHandler;
+
+/**
+ * Tests of {@link Checkpoint}, of loading a cache from its checkpoint and
+ * journal and of the rebuild of the index when the checkpoint is broken.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class CheckpointTest
+{
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder ();
+
+  private File dir;
+  private final List <NCache <HttpHeader, HttpHeader>> caches = new ArrayList<> ();
+
+  @Before
+  public void setUp () throws IOException
+  {
+    dir = folder.newFolder ("cache");
+  }
+
+  @After
+  public void tearDown ()
+  {
+    for (final NCache <HttpHeader, HttpHeader> c : caches)
+      c.stop ();
+  }
+
+  private NCache <HttpHeader, HttpHeader> open () throws IOException
+  {
+    final SMap props = new SMap ();
+    props.put ("directory", dir.getPath ());
+    props.put ("background_load", "false");
+    final HttpHeaderFileHandler fh = new HttpHeaderFileHandler ();
+    final NCache <HttpHeader, HttpHeader> c = new NCache<> (props, fh, fh, fh);
+    caches.add (c);
+    assertFalse (c.isLoading ());
+    return c;
+  }
+
+  private static HttpHeader header (final String uri)
+  {
+    final HttpHeader h = new HttpHeader ();
+    h.setRequestLine ("GET " + uri + " HTTP/1.1");
+    return h;
+  }
+
+  private static String uri (final int i)
+  {
+    return "http://www.example.com/" + i;
+  }
+
+  private static void add (final NCache <HttpHeader, HttpHeader> c, final int i) throws Exception
+  {
+    final ICacheEntry <HttpHeader, HttpHeader> e = c.newEntry (header (uri (i)));
+    final File f = c.getEntryName (e.getID (), false, null);
+    f.getParentFile ().mkdirs ();
+    Files.write (f.toPath (), uri (i).getBytes (StandardCharsets.US_ASCII));
+    e.setDataHook (header (uri (i)));
+    c.addEntry (e);
+  }
+
+  private File writeCheckpoint () throws IOException
+  {
+    final File f = new File (dir, "test.index");
+    Checkpoint.write (f, 7, 42, Arrays.asList (data (null, 3), data (null, 1), data (null, 2)));
+    return f;
+  }
+
+  @Test
+  public void testReadWrite () throws IOException
+  {
+    final File f = writeCheckpoint ();
+    assertTrue (Checkpoint.isCheckpoint (f));
+    final Checkpoint header = Checkpoint.readHeader (f);
+    assertEquals (7, header.getGeneration ());
+    assertEquals (42, header.getFileNo ());
+    assertEquals (3, header.getCount ());
+
+    final Recorder <HttpHeader, HttpHeader> r = new Recorder<> ();
+    final Checkpoint cp = Checkpoint.read (f, open (), r);
+    assertEquals (3, cp.getCount ());
+    assertEquals (Arrays.asList ("add 3", "add 1", "add 2"), r.records);
+    for (final NCacheData <HttpHeader, HttpHeader> d : r.added)
+      assertData (d, fp (d.getID ()), d.getID ());
+  }
+
+  @Test
+  public void testBadChecksum () throws IOException
+  {
+    final File f = writeCheckpoint ();
+    // the middle of the second entry
+    flip (f, 24 + IndexRecord.SIZE + IndexRecord.SIZE / 2);
+    try
+    {
+      Checkpoint.read (f, open (), new Recorder<> ());
+      fail ("A broken checkpoint was read");
+    }
+    catch (final IOException e)
+    {
+      assertTrue (e.getMessage (), e.getMessage ().startsWith ("Bad checksum"));
+    }
+  }
+
+  @Test
+  public void testCutCheckpoint () throws IOException
+  {
+    final File f = writeCheckpoint ();
+    try (final RandomAccessFile raf = new RandomAccessFile (f, "rw"))
+    {
+      raf.setLength (f.length () - 3);
+    }
+    try
+    {
+      Checkpoint.readHeader (f);
+      fail ("A cut checkpoint was read");
+    }
+    catch (final IOException e)
+    {
+      assertTrue (e.getMessage (), e.getMessage ().startsWith ("Cache checkpoint has a bad size"));
+    }
+  }
+
+  /**
+   * Fill a cache, with some changes after its checkpoint, stop it and leave a
+   * data file that has no key.
+   */
+  private File fillCache () throws Exception
+  {
+    final NCache <HttpHeader, HttpHeader> c = open ();
+    for (int i = 0; i < 20; i++)
+      add (c, i);
+    c.flush ();
+    for (int i = 20; i < 25; i++)
+      add (c, i);
+    c.remove (header (uri (3)));
+    c.stop ();
+    final File stray = c.getEntryName (100, true, null);
+    stray.getParentFile ().mkdirs ();
+    Files.write (stray.toPath (), new byte [] { 1 });
+    return stray;
+  }
+
+  private static void assertEntries (final NCache <HttpHeader, HttpHeader> c) throws Exception
+  {
+    for (int i = 0; i < 25; i++)
+    {
+      if (i == 3)
+        assertNull (c.getEntry (header (uri (i))));
+      else
+        assertNotNull (uri (i), c.getEntry (header (uri (i))));
+    }
+    assertEquals (24, c.getNumberOfEntries ());
+  }
+
+  @Test
+  public void testLoad () throws Exception
+  {
+    final File stray = fillCache ();
+    assertEntries (open ());
+    // the index was not rebuilt
+    assertTrue (stray.exists ());
+  }
+
+  @Test
+  public void testRebuildAfterBadChecksum () throws Exception
+  {
+    final File stray = fillCache ();
+    final File index = new File (dir, "cache.index");
+    flip (index, index.length () - 1);
+
+    final NCache <HttpHeader, HttpHeader> c = open ();
+    assertEntries (c);
+    // the rebuild removes the files that are not a valid entry
+    assertFalse (stray.exists ());
+
+    // the rebuilt index is checkpointed and loaded as usual
+    c.flush ();
+    c.stop ();
+    Checkpoint.read (index, c, new Recorder<> ());
+    assertEntries (open ());
+  }
+}
@@ -0,0 +1,132 @@
+package com.helger.rabbit.cache.ncache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index entries for the cache tests, all the values of an entry follow from
+ * its id.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+final class IndexTestData
+{
+  private IndexTestData ()
+  {}
+
+  /**
+   * Get the fingerprint of the entry with the given id.
+   *
+   * @param id
+   *        the id of the entry
+   * @return the Fingerprint
+   */
+  static Fingerprint fp (final long id)
+  {
+    return new Fingerprint (id, -id);
+  }
+
+  /**
+   * Create an index entry.
+   *
+   * @param cache
+   *        the NCache the entry belongs to, may be null
+   * @param fp
+   *        the Fingerprint of the key
+   * @param id
+   *        the id of the entry
+   * @return the new entry
+   */
+  static <K, V> NCacheData <K, V> data (final NCache <K, V> cache, final Fingerprint fp, final long id)
+  {
+    final FiledKey <K> key = new FiledKey<> (cache, id, (int) id, fp);
+    return new NCacheData<> (id, 1000 + id, 2000 + id, 10 * id, key, 5, null, 0);
+  }
+
+  /**
+   * Create an index entry with the fingerprint from {@link #fp}.
+   *
+   * @param cache
+   *        the NCache the entry belongs to, may be null
+   * @param id
+   *        the id of the entry
+   * @return the new entry
+   */
+  static <K, V> NCacheData <K, V> data (final NCache <K, V> cache, final long id)
+  {
+    return data (cache, fp (id), id);
+  }
+
+  /**
+   * Check that an entry has the values that {@link #data} gives it.
+   *
+   * @param data
+   *        the entry to check
+   * @param fp
+   *        the expected Fingerprint
+   * @param id
+   *        the expected id
+   */
+  static void assertData (final NCacheData <?, ?> data, final Fingerprint fp, final long id)
+  {
+    assertEquals (id, data.getID ());
+    assertEquals (1000 + id, data.getCacheTime ());
+    assertEquals (2000 + id, data.getExpires ());
+    assertEquals (10 * id, data.getSize ());
+    assertEquals (5, data.getKeySize ());
+    assertEquals ((int) id, data.getKey ().hashCode ());
+    assertEquals (fp, data.getKey ().getFingerprint ());
+    assertNull (data.getDataHook ());
+  }
+
+  /**
+   * Flip all the bits of one byte of a file.
+   *
+   * @param f
+   *        the file to damage
+   * @param pos
+   *        the position of the byte
+   * @throws IOException
+   *         if the file can not be changed
+   */
+  static void flip (final File f, final long pos) throws IOException
+  {
+    try (final RandomAccessFile raf = new RandomAccessFile (f, "rw"))
+    {
+      raf.seek (pos);
+      final int b = raf.read ();
+      raf.seek (pos);
+      raf.write (b ^ 0xff);
+    }
+  }
+
+  /**
+   * An IndexSink that keeps what it is given, the removes are expected to use
+   * the fingerprints from {@link #fp}.
+   */
+  static final class Recorder <K, V> implements IndexSink <K, V>
+  {
+    /** The records, as "add id" or "remove id", in the order they came. */
+    final List <String> records = new ArrayList<> ();
+    /** The entries that were added. */
+    final List <NCacheData <K, V>> added = new ArrayList<> ();
+
+    public void add (final NCacheData <K, V> data)
+    {
+      added.add (data);
+      records.add ("add " + data.getID ());
+    }
+
+    public void remove (final Fingerprint fp, final long id)
+    {
+      assertEquals (fp (id), fp);
+      records.add ("remove " + id);
+    }
+  }
+}
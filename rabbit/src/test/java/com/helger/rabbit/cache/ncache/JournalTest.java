@@ -0,0 +1,136 @@
+package com.helger.rabbit.cache.ncache;
+
+import static org.junit.Assert.assertEquals;
+import static com.helger.rabbit.cache.ncache.IndexTestData.assertData;
+import static com.helger.rabbit.cache.ncache.IndexTestData.data;
+import static com.helger.rabbit.cache.ncache.IndexTestData.flip;
+import static com.helger.rabbit.cache.ncache.IndexTestData.fp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.url.SMap;
+import com.helger.rabbit.cache.ncache.IndexTestData.Recorder;
+import com.helger.rabbit.http.HttpHeader;
+import com.helger.rabbit.proxy.HttpHeaderFileHandler;
+
+/**
+ * Tests of the replay of a {@link Journal} that was cut by a crash.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class JournalTest
+{
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder ();
+
+  private NCache <HttpHeader, HttpHeader> cache;
+  private File dir;
+
+  @Before
+  public void setUp () throws IOException
+  {
+    final SMap props = new SMap ();
+    props.put ("directory", folder.newFolder ("cache").getPath ());
+    props.put ("background_load", "false");
+    final HttpHeaderFileHandler fh = new HttpHeaderFileHandler ();
+    cache = new NCache<> (props, fh, fh, fh);
+    dir = folder.newFolder ("journal");
+  }
+
+  @After
+  public void tearDown ()
+  {
+    cache.stop ();
+  }
+
+  private static File getFile (final File dir, final long generation)
+  {
+    return new File (dir, "cache.journal." + generation);
+  }
+
+  /** Write a journal with two adds and a remove. */
+  private Journal write (final long generation) throws IOException
+  {
+    final Journal j = new Journal (dir, generation, false);
+    j.add (data (cache, 1));
+    j.add (data (cache, 2));
+    j.remove (fp (1), 1);
+    return j;
+  }
+
+  private long replay (final long generation, final Recorder <HttpHeader, HttpHeader> r) throws IOException
+  {
+    final long records = Journal.replay (dir, generation, r, cache);
+    for (final NCacheData <HttpHeader, HttpHeader> d : r.added)
+      assertData (d, fp (d.getID ()), d.getID ());
+    return records;
+  }
+
+  @Test
+  public void testReplay () throws IOException
+  {
+    final Journal j = write (2);
+    j.close ();
+    assertEquals (3, j.getRecords ());
+    final long length = getFile (dir, 2).length ();
+
+    final Recorder <HttpHeader, HttpHeader> r = new Recorder<> ();
+    assertEquals (3, replay (2, r));
+    assertEquals (Arrays.asList ("add 1", "add 2", "remove 1"), r.records);
+    assertEquals (length, getFile (dir, 2).length ());
+  }
+
+  @Test
+  public void testCutRecord () throws IOException
+  {
+    final Journal j = write (3);
+    final File f = getFile (dir, 3);
+    final long good = f.length ();
+    j.add (data (cache, 3));
+    j.close ();
+
+    // a crash in the middle of the last record
+    try (final RandomAccessFile raf = new RandomAccessFile (f, "rw"))
+    {
+      raf.setLength (good + IndexRecord.SIZE / 2);
+    }
+    final Recorder <HttpHeader, HttpHeader> r = new Recorder<> ();
+    assertEquals (3, replay (3, r));
+    assertEquals (Arrays.asList ("add 1", "add 2", "remove 1"), r.records);
+    assertEquals (good, f.length ());
+
+    // the cut journal replays the same way without more changes
+    final Recorder <HttpHeader, HttpHeader> again = new Recorder<> ();
+    assertEquals (3, replay (3, again));
+    assertEquals (r.records, again.records);
+    assertEquals (good, f.length ());
+  }
+
+  @Test
+  public void testBrokenRecord () throws IOException
+  {
+    final Journal j = new Journal (dir, 4, false);
+    j.add (data (cache, 1));
+    final File f = getFile (dir, 4);
+    final long good = f.length ();
+    j.add (data (cache, 2));
+    j.add (data (cache, 3));
+    j.close ();
+
+    // a record that was not fully written to the disk ends the journal
+    flip (f, good + 20);
+    final Recorder <HttpHeader, HttpHeader> r = new Recorder<> ();
+    assertEquals (1, replay (4, r));
+    assertEquals (Arrays.asList ("add 1"), r.records);
+    assertEquals (good, f.length ());
+  }
+}
@@ -0,0 +1,175 @@
+package com.helger.rabbit.cache.ncache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static com.helger.rabbit.cache.ncache.IndexTestData.assertData;
+import static com.helger.rabbit.cache.ncache.IndexTestData.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the open addressing and the age order of {@link OffHeapIndex}.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class OffHeapIndexTest
+{
+  // the smallest table has 1024 slots
+  private static final int SLOTS = 1024;
+
+  /** A fingerprint that lands on the given slot of the smallest table. */
+  private static Fingerprint fp (final int slot, final int n)
+  {
+    return new Fingerprint (n, (long) n * SLOTS + slot);
+  }
+
+  private static List <Long> ids (final NCacheIndex <String, String> index)
+  {
+    final List <Long> ret = new ArrayList<> ();
+    for (final NCacheData <String, String> d : index)
+      ret.add (Long.valueOf (d.getID ()));
+    return ret;
+  }
+
+  private static void assertEntry (final NCacheIndex <String, String> index, final Fingerprint fp, final long id)
+  {
+    assertData (index.get (fp), fp, id);
+  }
+
+  @Test
+  public void testCollisions ()
+  {
+    final OffHeapIndex <String, String> index = new OffHeapIndex<> (null, 0);
+    final Fingerprint a = fp (5, 1);
+    final Fingerprint b = fp (5, 2);
+    final Fingerprint c = fp (5, 3);
+    final Fingerprint d = fp (6, 4);
+    index.put (a, data (null, a, 1));
+    index.put (b, data (null, b, 2));
+    index.put (c, data (null, c, 3));
+    index.put (d, data (null, d, 4));
+    assertEquals (4, index.size ());
+    assertEntry (index, a, 1);
+    assertEntry (index, b, 2);
+    assertEntry (index, c, 3);
+    assertEntry (index, d, 4);
+    assertNull (index.get (fp (5, 5)));
+
+    // c and d are found past the removed slot of b
+    assertEquals (2, index.remove (b).getID ());
+    assertNull (index.get (b));
+    assertNull (index.remove (b));
+    assertEntry (index, c, 3);
+    assertEntry (index, d, 4);
+
+    // an update of c must not take the free slot of b
+    index.put (c, data (null, c, 13));
+    assertEquals (3, index.size ());
+    assertEntry (index, c, 13);
+    index.remove (c);
+    assertNull (index.get (c));
+    assertEquals (2, index.size ());
+
+    // b comes back as the newest entry
+    index.put (b, data (null, b, 12));
+    assertEntry (index, b, 12);
+    assertEquals (3, index.size ());
+    assertEquals (a, index.getOldest ());
+    assertEquals ("[1, 4, 12]", ids (index).toString ());
+
+    index.remove (a);
+    index.remove (d);
+    index.remove (b);
+    assertEquals (0, index.size ());
+    assertNull (index.getOldest ());
+    assertEquals ("[]", ids (index).toString ());
+  }
+
+  @Test
+  public void testUpdateKeepsAge ()
+  {
+    final OffHeapIndex <String, String> index = new OffHeapIndex<> (null, 0);
+    for (int i = 0; i < 5; i++)
+      index.put (fp (9, i), data (null, fp (9, i), i));
+    index.put (fp (9, 0), data (null, fp (9, 0), 20));
+    assertEquals ("[20, 1, 2, 3, 4]", ids (index).toString ());
+    final List <NCacheData <String, String>> expired = index.getExpired (2003);
+    assertEquals (2, expired.size ());
+    assertEquals (1, expired.get (0).getID ());
+    assertEquals (2, expired.get (1).getID ());
+  }
+
+  @Test
+  public void testRehash ()
+  {
+    final OffHeapIndex <String, String> index = new OffHeapIndex<> (null, 0);
+    final Map <Fingerprint, Long> expected = new LinkedHashMap<> ();
+    // long probe sequences over many slots, grows the table twice
+    for (int i = 0; i < 3000; i++)
+    {
+      final Fingerprint f = fp (i % 16, i);
+      index.put (f, data (null, f, i));
+      expected.put (f, Long.valueOf (i));
+      if (i % 3 == 0)
+      {
+        final Fingerprint old = fp ((i / 2) % 16, i / 2);
+        if (expected.remove (old) != null)
+          assertEquals (i / 2, index.remove (old).getID ());
+      }
+    }
+    assertEquals (expected.size (), index.size ());
+    assertEquals (new ArrayList<> (expected.values ()), ids (index));
+    for (final Map.Entry <Fingerprint, Long> e : expected.entrySet ())
+      assertEntry (index, e.getKey (), e.getValue ().longValue ());
+  }
+
+  @Test
+  public void testRandomOperations ()
+  {
+    final OffHeapIndex <String, String> index = new OffHeapIndex<> (null, 0);
+    final Map <Fingerprint, Long> expected = new LinkedHashMap<> ();
+    final Random random = new Random (4711);
+    final int keys = 2500;
+    long id = 0;
+    for (int round = 0; round < 20; round++)
+    {
+      for (int i = 0; i < 2000; i++)
+      {
+        final int n = random.nextInt (keys);
+        final Fingerprint f = fp (n % 8, n);
+        if (random.nextInt (3) == 0)
+        {
+          final Long old = expected.remove (f);
+          final NCacheData <String, String> removed = index.remove (f);
+          if (old == null)
+            assertNull (removed);
+          else
+            assertEquals (old.longValue (), removed.getID ());
+        }
+        else
+        {
+          id++;
+          index.put (f, data (null, f, id));
+          expected.put (f, Long.valueOf (id));
+        }
+      }
+      assertEquals (expected.size (), index.size ());
+      assertEquals (new ArrayList<> (expected.values ()), ids (index));
+      for (int n = 0; n < keys; n++)
+      {
+        final Fingerprint f = fp (n % 8, n);
+        final Long l = expected.get (f);
+        if (l == null)
+          assertNull (index.get (f));
+        else
+          assertEntry (index, f, l.longValue ());
+      }
+    }
+  }
+}
@@ -47,6 +47,24 @@ public interface IBufferHandler
    */
   ByteBuffer getBuffer ();
 
+  /**
+   * Get a buffer that can hold at least the given number of bytes, if this
+   * handler has such buffers, otherwise a large buffer. The buffer will have
+   * been cleared.
+   *
+   * @param minSize
+   *        the wanted size
+   * @return the ByteBuffer to use
+   */
+  default ByteBuffer getBuffer (final int minSize)
+  {
+    final ByteBuffer buffer = getBuffer ();
+    if (buffer.capacity () >= minSize || isLarge (buffer))
+      return buffer;
+    putBuffer (buffer);
+    return growBuffer (null);
+  }
+
   /**
    * Return a buffer.
    *
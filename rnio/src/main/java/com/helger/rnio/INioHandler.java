@@ -79,6 +79,8 @@ public interface INioHandler
    *        the task to run.
    * @param ti
    *        an identifier for the statistics
+   * @throws java.util.concurrent.RejectedExecutionException
+   *         if the executor has no room for the task
    */
   void runThreadTask (Runnable r, ITaskIdentifier ti);
 
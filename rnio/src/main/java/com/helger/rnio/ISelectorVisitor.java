@@ -33,6 +33,8 @@ package com.helger.rnio;
 
 import java.nio.channels.Selector;
 
+import com.helger.rnio.statistics.SelectorStatistics;
+
 /**
  * A visitor of the selectors used by a NioHandler. The method selector will be
  * called once for each of the different selectors used by the NioHandler.
@@ -47,6 +49,20 @@ public interface ISelectorVisitor
    */
   void selector (Selector selector);
 
+  /**
+   * Visit one selector together with the statistics of its selector thread.
+   * The default implementation just calls {@link #selector(Selector)}.
+   *
+   * @param selector
+   *        one of the Selector:s handled by the NioHandler
+   * @param stats
+   *        the statistics for the thread running the selector
+   */
+  default void selector (final Selector selector, final SelectorStatistics stats)
+  {
+    selector (selector);
+  }
+
   /**
    * Indicates that all selectors have been visited
    */
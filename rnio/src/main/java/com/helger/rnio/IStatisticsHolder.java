@@ -31,10 +31,12 @@
  */
 package com.helger.rnio;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import com.helger.rnio.statistics.CompletionEntry;
+import com.helger.rnio.statistics.LatencyHistogram;
 import com.helger.rnio.statistics.TotalTimeSpent;
 
 /**
@@ -107,4 +109,34 @@ public interface IStatisticsHolder
    * @return a mapping from group ids to the task identifiers
    */
   Map <String, TotalTimeSpent> getTotalTimeSpent ();
+
+  /**
+   * Get the number of pending tasks for each group.
+   *
+   * @return a mapping from group ids to the number of pending tasks
+   */
+  default Map <String, Long> getPendingCounts ()
+  {
+    return Collections.emptyMap ();
+  }
+
+  /**
+   * Get the number of running tasks for each group.
+   *
+   * @return a mapping from group ids to the number of running tasks
+   */
+  default Map <String, Long> getRunningCounts ()
+  {
+    return Collections.emptyMap ();
+  }
+
+  /**
+   * Get the distribution of the time spent on the completed tasks.
+   *
+   * @return a mapping from group ids to the histogram of task times in millis
+   */
+  default Map <String, LatencyHistogram> getLatencies ()
+  {
+    return Collections.emptyMap ();
+  }
 }
@@ -37,18 +37,26 @@ import java.nio.channels.SocketChannel;
 
 import com.helger.rnio.IAcceptHandler;
 import com.helger.rnio.INioHandler;
+import com.helger.rnio.statistics.AcceptorStatistics;
 
 /**
  * A standard acceptor.
  * <p>
  * This AcceptHandler will never timeout, will never use a separate thread and
- * will keep accepting connections until you remove it.
+ * will keep accepting connections until you remove it. Each time the channel
+ * is ready it accepts all waiting connections, up to a limit, before it waits
+ * for the next accept event.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 public class Acceptor extends AbstractSocketHandlerBase <ServerSocketChannel> implements IAcceptHandler
 {
+  /** The default maximum number of connections to accept for each wakeup. */
+  public static final int DEFAULT_MAX_ACCEPTS = 64;
+
   private final IAcceptorListener listener;
+  private final int maxAccepts;
+  private final AcceptorStatistics stats;
 
   /**
    * Create a new Acceptor that will wait for accepts on the given channel.
@@ -61,9 +69,36 @@ public class Acceptor extends AbstractSocketHandlerBase <ServerSocketChannel> im
    *        the listener waiting for connections
    */
   public Acceptor (final ServerSocketChannel ssc, final INioHandler nioHandler, final IAcceptorListener listener)
+  {
+    this (ssc, nioHandler, listener, DEFAULT_MAX_ACCEPTS, new AcceptorStatistics ());
+  }
+
+  /**
+   * Create a new Acceptor that will wait for accepts on the given channel.
+   *
+   * @param ssc
+   *        the channel to accept connections from
+   * @param nioHandler
+   *        the NioHandler to use for waiting
+   * @param listener
+   *        the listener waiting for connections
+   * @param maxAccepts
+   *        the maximum number of connections to accept for each accept event
+   * @param stats
+   *        the statistics to update, may be shared by several acceptors
+   */
+  public Acceptor (final ServerSocketChannel ssc,
+                   final INioHandler nioHandler,
+                   final IAcceptorListener listener,
+                   final int maxAccepts,
+                   final AcceptorStatistics stats)
   {
     super (ssc, nioHandler, null);
+    if (maxAccepts < 1)
+      throw new IllegalArgumentException ("maxAccepts must be at least 1: " + maxAccepts);
     this.listener = listener;
+    this.maxAccepts = maxAccepts;
+    this.stats = stats;
   }
 
   /**
@@ -76,21 +111,42 @@ public class Acceptor extends AbstractSocketHandlerBase <ServerSocketChannel> im
   }
 
   /**
-   * Accept a SocketChannel.
+   * Accept the waiting SocketChannels.
    */
   public void accept ()
   {
+    final long started = System.nanoTime ();
+    int accepted = 0;
     try
     {
-      final SocketChannel s = sc.accept ();
-      s.configureBlocking (false);
-      listener.connectionAccepted (s);
+      SocketChannel s;
+      while (accepted < maxAccepts && (s = sc.accept ()) != null)
+      {
+        accepted++;
+        s.configureBlocking (false);
+        listener.connectionAccepted (s);
+        stats.accepted (System.nanoTime () - started);
+      }
       register ();
     }
     catch (final IOException e)
     {
       throw new RuntimeException ("Got some IOException", e);
     }
+    finally
+    {
+      stats.wakeup (accepted);
+    }
+  }
+
+  /**
+   * Get the statistics of this acceptor.
+   *
+   * @return the AcceptorStatistics that this acceptor updates
+   */
+  public AcceptorStatistics getStatistics ()
+  {
+    return stats;
   }
 
   /**
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.util.Arrays;
+
+/**
+ * Picks the size of the next read from a channel based on the recent reads.
+ * <p>
+ * A read that fills all the space it was given moves the allocator up one
+ * size at once, since the channel probably has more data. Once the largest
+ * size is used, full reads double the number of buffers to read into, up to a
+ * limit, so that one scattering read can empty the socket. Reads that would
+ * have fit in the next smaller size two times in a row move the allocator
+ * down one size, so that small responses use small buffers.
+ * <p>
+ * This class is not thread safe, use one allocator for each channel and
+ * direction.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class AdaptiveReceiveAllocator
+{
+  /** The default maximum number of buffers to read into at once. */
+  public static final int DEFAULT_MAX_BUFFERS = 4;
+
+  private final int [] sizes;
+  private final int maxBuffers;
+  private int index = 0;
+  private int buffers = 1;
+  private boolean shrinkNext = false;
+
+  /**
+   * Create a new AdaptiveReceiveAllocator using the default buffer sizes of
+   * {@link SizeClassedBufferHandler}.
+   */
+  public AdaptiveReceiveAllocator ()
+  {
+    this (SizeClassedBufferHandler.DEFAULT_SIZES, DEFAULT_MAX_BUFFERS);
+  }
+
+  /**
+   * Create a new AdaptiveReceiveAllocator.
+   *
+   * @param sizes
+   *        the read sizes to choose from, should match the sizes of the buffer
+   *        pool
+   * @param maxBuffers
+   *        the maximum number of buffers to read into at once
+   */
+  public AdaptiveReceiveAllocator (final int [] sizes, final int maxBuffers)
+  {
+    if (sizes.length == 0 || maxBuffers < 1)
+      throw new IllegalArgumentException ("Bad sizes: " + Arrays.toString (sizes) + ", maxBuffers: " + maxBuffers);
+    this.sizes = sizes.clone ();
+    Arrays.sort (this.sizes);
+    this.maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Get the size of each buffer to use for the next read.
+   *
+   * @return the wanted buffer size
+   */
+  public int getReadSize ()
+  {
+    return sizes[index];
+  }
+
+  /**
+   * Get the number of buffers to read into for the next read. This is only
+   * more than one when the largest buffers have been filled.
+   *
+   * @return the wanted number of buffers
+   */
+  public int getReadBuffers ()
+  {
+    return buffers;
+  }
+
+  /**
+   * Record the outcome of a read.
+   *
+   * @param read
+   *        the number of bytes read, reads of zero or less are ignored
+   * @param room
+   *        the space that was available for the read
+   */
+  public void record (final long read, final long room)
+  {
+    if (read <= 0)
+      return;
+    if (read >= room)
+    {
+      shrinkNext = false;
+      if (index < sizes.length - 1)
+        index++;
+      else
+        buffers = Math.min (buffers * 2, maxBuffers);
+      return;
+    }
+    if (buffers > 1)
+    {
+      shrinkNext = false;
+      if (read <= room / 2)
+        buffers /= 2;
+      return;
+    }
+    if (index > 0 && read <= sizes[index - 1])
+    {
+      if (shrinkNext)
+      {
+        index--;
+        shrinkNext = false;
+      }
+      else
+      {
+        shrinkNext = true;
+      }
+    }
+    else
+    {
+      shrinkNext = false;
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return getClass ().getSimpleName () + "[size: " + sizes[index] + ", buffers: " + buffers + "]";
+  }
+}
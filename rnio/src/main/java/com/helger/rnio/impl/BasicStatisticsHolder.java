@@ -32,169 +32,214 @@
 package com.helger.rnio.impl;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.helger.rnio.IStatisticsHolder;
 import com.helger.rnio.ITaskIdentifier;
 import com.helger.rnio.statistics.CompletionEntry;
+import com.helger.rnio.statistics.LatencyHistogram;
 import com.helger.rnio.statistics.TotalTimeSpent;
 
 /**
  * A holder of statistics for tasks.
+ * <p>
+ * The statistics are kept per task group. Pending and running tasks are
+ * tracked without locking, the latest, longest and total times are updated
+ * under a lock that is only shared with tasks of the same group.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 public class BasicStatisticsHolder implements IStatisticsHolder
 {
-  // Map is group id to TaskIdentifier
-  private final Map <String, List <ITaskIdentifier>> pendingTasks = new HashMap<> ();
-
-  // Map is group id to TaskIdentifier
-  private final Map <String, List <ITaskIdentifier>> runningTasks = new HashMap<> ();
-
   private final int maxLatest = 10;
-  // Map is group id to CompletionEntry
-  private final Map <String, List <CompletionEntry>> latest = new HashMap<> ();
-
   private final int maxLongest = 10;
-  // Map is group id to CompletionEntry
-  private final Map <String, List <CompletionEntry>> longest = new HashMap<> ();
 
-  private final Map <String, TotalTimeSpent> total = new HashMap<> ();
+  // Map is group id to the statistics of that group
+  private final ConcurrentMap <String, GroupStatistics> groups = new ConcurrentHashMap<> ();
 
-  private <T> List <T> getList (final String id, final Map <String, List <T>> tasks)
+  private GroupStatistics getGroup (final String id)
   {
-    List <T> ls = tasks.get (id);
-    if (ls == null)
+    GroupStatistics gs = groups.get (id);
+    if (gs == null)
     {
-      ls = new ArrayList<> ();
-      tasks.put (id, ls);
+      final GroupStatistics created = new GroupStatistics ();
+      gs = groups.putIfAbsent (id, created);
+      if (gs == null)
+        gs = created;
     }
-    return ls;
+    return gs;
   }
 
-  private void addTask (final ITaskIdentifier ti, final Map <String, List <ITaskIdentifier>> tasks)
+  public void addPendingTask (final ITaskIdentifier ti)
   {
-    getList (ti.getGroupId (), tasks).add (ti);
+    final GroupStatistics gs = getGroup (ti.getGroupId ());
+    gs.pending.add (ti);
+    gs.pendingCount.increment ();
   }
 
-  private void removeTask (final ITaskIdentifier ti, final Map <String, List <ITaskIdentifier>> tasks)
+  public void changeTaskStatusToRunning (final ITaskIdentifier ti)
   {
-    final List <ITaskIdentifier> ls = tasks.get (ti.getGroupId ());
-    if (ls == null)
-      throw new NullPointerException ("No pending taks for group: " + ti.getGroupId ());
-    if (!ls.remove (ti))
+    final GroupStatistics gs = getGroup (ti.getGroupId ());
+    if (!gs.pending.remove (ti))
       throw new IllegalArgumentException ("Given task was not pending: " + ti);
+    gs.pendingCount.decrement ();
+    gs.running.add (ti);
+    gs.runningCount.increment ();
   }
 
-  public synchronized void addPendingTask (final ITaskIdentifier ti)
-  {
-    addTask (ti, pendingTasks);
-  }
-
-  public synchronized void changeTaskStatusToRunning (final ITaskIdentifier ti)
+  public void changeTaskStatusToFinished (final ITaskIdentifier ti, final boolean wasOk, final long timeSpent)
   {
-    removeTask (ti, pendingTasks);
-    addTask (ti, runningTasks);
+    final GroupStatistics gs = getGroup (ti.getGroupId ());
+    if (!gs.running.remove (ti))
+      throw new IllegalArgumentException ("Given task was not running: " + ti);
+    gs.runningCount.decrement ();
+    gs.latencies.record (timeSpent);
+    gs.finished (new CompletionEntry (ti, wasOk, timeSpent));
   }
 
-  public synchronized void changeTaskStatusToFinished (final ITaskIdentifier ti,
-                                                       final boolean wasOk,
-                                                       final long timeSpent)
+  private class GroupStatistics
   {
-    removeTask (ti, runningTasks);
-    final CompletionEntry ce = new CompletionEntry (ti, wasOk, timeSpent);
-    addToLatest (ce);
-    addToLongest (ce);
-    addToTotal (ce);
-  }
-
-  private void addToLatest (final CompletionEntry ce)
-  {
-    final List <CompletionEntry> ls = getList (ce.ti.getGroupId (), latest);
-    ls.add (ce);
-    if (ls.size () > maxLatest)
-      ls.remove (0);
-  }
+    private final Set <ITaskIdentifier> pending = ConcurrentHashMap.newKeySet ();
+    private final Set <ITaskIdentifier> running = ConcurrentHashMap.newKeySet ();
+    private final LongAdder pendingCount = new LongAdder ();
+    private final LongAdder runningCount = new LongAdder ();
+    private final LatencyHistogram latencies = new LatencyHistogram ();
+    // The lists and the total are guarded by this
+    private final LinkedList <CompletionEntry> latest = new LinkedList<> ();
+    private final List <CompletionEntry> longest = new ArrayList<> ();
+    private final TotalTimeSpent total = new TotalTimeSpent ();
 
-  private void addToLongest (final CompletionEntry ce)
-  {
-    final List <CompletionEntry> ls = getList (ce.ti.getGroupId (), longest);
-    if (ls.isEmpty ())
+    public synchronized void finished (final CompletionEntry ce)
     {
-      ls.add (ce);
+      latest.add (ce);
+      if (latest.size () > maxLatest)
+        latest.removeFirst ();
+      addToLongest (ce);
+      total.update (ce);
     }
-    else
-      if (addSorted (ce, ls))
-      {
-        if (ls.size () > maxLongest)
-          ls.remove (ls.size () - 1);
-      }
-  }
 
-  private boolean addSorted (final CompletionEntry ce, final List <CompletionEntry> ls)
-  {
-    final int s = ls.size ();
-    for (int i = 0; i < s; i++)
+    private void addToLongest (final CompletionEntry ce)
     {
-      if (ce.timeSpent > ls.get (i).timeSpent)
+      final int s = longest.size ();
+      for (int i = 0; i < s; i++)
       {
-        ls.add (i, ce);
-        return true;
+        if (ce.timeSpent > longest.get (i).timeSpent)
+        {
+          longest.add (i, ce);
+          if (longest.size () > maxLongest)
+            longest.remove (longest.size () - 1);
+          return;
+        }
       }
+      if (s < maxLongest)
+        longest.add (ce);
+    }
+
+    public synchronized List <CompletionEntry> getLatest ()
+    {
+      return new ArrayList<> (latest);
+    }
+
+    public synchronized List <CompletionEntry> getLongest ()
+    {
+      return new ArrayList<> (longest);
     }
-    if (s < maxLongest)
+
+    public synchronized TotalTimeSpent getTotal ()
     {
-      ls.add (ce);
-      return true;
+      return total.copy ();
     }
-    return false;
   }
 
-  private void addToTotal (final CompletionEntry ce)
+  private Map <String, List <ITaskIdentifier>> copyTasks (final boolean pending)
   {
-    TotalTimeSpent tts = total.get (ce.ti.getGroupId ());
-    if (tts == null)
+    final Map <String, List <ITaskIdentifier>> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
     {
-      tts = new TotalTimeSpent ();
-      total.put (ce.ti.getGroupId (), tts);
+      final Set <ITaskIdentifier> tasks = pending ? me.getValue ().pending : me.getValue ().running;
+      if (!tasks.isEmpty ())
+        ret.put (me.getKey (), new ArrayList<> (tasks));
     }
-    tts.update (ce);
+    return ret;
+  }
+
+  public Map <String, List <ITaskIdentifier>> getPendingTasks ()
+  {
+    return copyTasks (true);
   }
 
-  private <K, V> Map <K, List <V>> copy (final Map <K, List <V>> m)
+  public Map <String, List <ITaskIdentifier>> getRunningTasks ()
   {
-    final Map <K, List <V>> ret = new HashMap<> ();
-    for (final Map.Entry <K, List <V>> me : m.entrySet ())
-      ret.put (me.getKey (), new ArrayList<> (me.getValue ()));
+    return copyTasks (false);
+  }
+
+  public Map <String, List <CompletionEntry>> getLatest ()
+  {
+    final Map <String, List <CompletionEntry>> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
+    {
+      final List <CompletionEntry> ls = me.getValue ().getLatest ();
+      if (!ls.isEmpty ())
+        ret.put (me.getKey (), ls);
+    }
     return ret;
   }
 
-  public synchronized Map <String, List <ITaskIdentifier>> getPendingTasks ()
+  public Map <String, List <CompletionEntry>> getLongest ()
   {
-    return copy (pendingTasks);
+    final Map <String, List <CompletionEntry>> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
+    {
+      final List <CompletionEntry> ls = me.getValue ().getLongest ();
+      if (!ls.isEmpty ())
+        ret.put (me.getKey (), ls);
+    }
+    return ret;
   }
 
-  public synchronized Map <String, List <ITaskIdentifier>> getRunningTasks ()
+  public Map <String, TotalTimeSpent> getTotalTimeSpent ()
   {
-    return copy (runningTasks);
+    final Map <String, TotalTimeSpent> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
+    {
+      final TotalTimeSpent tts = me.getValue ().getTotal ();
+      if (tts.getSuccessful () + tts.getFailures () > 0)
+        ret.put (me.getKey (), tts);
+    }
+    return ret;
   }
 
-  public synchronized Map <String, List <CompletionEntry>> getLatest ()
+  @Override
+  public Map <String, Long> getPendingCounts ()
   {
-    return copy (latest);
+    final Map <String, Long> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
+      ret.put (me.getKey (), Long.valueOf (me.getValue ().pendingCount.sum ()));
+    return ret;
   }
 
-  public synchronized Map <String, List <CompletionEntry>> getLongest ()
+  @Override
+  public Map <String, Long> getRunningCounts ()
   {
-    return copy (longest);
+    final Map <String, Long> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
+      ret.put (me.getKey (), Long.valueOf (me.getValue ().runningCount.sum ()));
+    return ret;
   }
 
-  public synchronized Map <String, TotalTimeSpent> getTotalTimeSpent ()
+  @Override
+  public Map <String, LatencyHistogram> getLatencies ()
   {
-    return Collections.unmodifiableMap (total);
+    final Map <String, LatencyHistogram> ret = new HashMap<> ();
+    for (final Map.Entry <String, GroupStatistics> me : groups.entrySet ())
+      ret.put (me.getKey (), me.getValue ().latencies);
+    return ret;
   }
 }
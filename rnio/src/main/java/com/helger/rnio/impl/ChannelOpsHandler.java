@@ -33,6 +33,8 @@ package com.helger.rnio.impl;
 
 import java.nio.channels.SelectionKey;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
 
 import com.helger.rnio.IAcceptHandler;
 import com.helger.rnio.IConnectHandler;
@@ -89,11 +91,19 @@ class ChannelOpsHandler
 
   private static final NullHandler NULL_HANDLER = new NullHandler ();
 
+  private static final Logger LOGGER = Logger.getLogger ("org.khelekore.rnio");
+
   private IReadHandler readHandler = NULL_HANDLER;
   private IWriteHandler writeHandler = NULL_HANDLER;
   private IAcceptHandler acceptHandler = NULL_HANDLER;
   private IConnectHandler connectHandler = NULL_HANDLER;
 
+  /** The entry in the timing wheel of the selector, created on first use. */
+  private TimingWheel.Entry timeoutEntry;
+
+  /** The number of times this handler has been selected since last checked. */
+  private long events = 0;
+
   @Override
   public String toString ()
   {
@@ -176,11 +186,33 @@ class ChannelOpsHandler
     this.connectHandler = connectHandler;
   }
 
+  /**
+   * Run a handler on a thread of the executor. If the executor rejects the
+   * task, a full lane or a shut down executor, the handler is told that it
+   * timed out. The handler is no longer registered, so it would otherwise
+   * never hear from its channel again, and it may not run on the selector
+   * thread.
+   */
+  private static void execute (final ExecutorService executorService,
+                               final ISocketChannelHandler handler,
+                               final Runnable task)
+  {
+    try
+    {
+      executorService.execute (task);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      LOGGER.warning ("Failed to start " + handler.getDescription () + ", timing it out: " + e);
+      handler.timeout ();
+    }
+  }
+
   private void handleRead (final ExecutorService executorService, final IReadHandler rh)
   {
     if (rh.useSeparateThread ())
     {
-      executorService.execute ( () -> rh.read ());
+      execute (executorService, rh, () -> rh.read ());
     }
     else
     {
@@ -192,7 +224,7 @@ class ChannelOpsHandler
   {
     if (wh.useSeparateThread ())
     {
-      executorService.execute ( () -> wh.write ());
+      execute (executorService, wh, () -> wh.write ());
     }
     else
     {
@@ -204,7 +236,7 @@ class ChannelOpsHandler
   {
     if (ah.useSeparateThread ())
     {
-      executorService.execute ( () -> ah.accept ());
+      execute (executorService, ah, () -> ah.accept ());
     }
     else
     {
@@ -216,7 +248,7 @@ class ChannelOpsHandler
   {
     if (ch.useSeparateThread ())
     {
-      executorService.execute ( () -> ch.connect ());
+      execute (executorService, ch, () -> ch.connect ());
     }
     else
     {
@@ -226,6 +258,7 @@ class ChannelOpsHandler
 
   public void handle (final ExecutorService executorService, final SelectionKey sk)
   {
+    events++;
     sk.interestOps (0);
     final IReadHandler rh = readHandler;
     final IWriteHandler wh = writeHandler;
@@ -309,6 +342,23 @@ class ChannelOpsHandler
     return t;
   }
 
+  public long getAndResetEvents ()
+  {
+    final long ret = events;
+    events = 0;
+    return ret;
+  }
+
+  public TimingWheel.Entry getTimeoutEntry ()
+  {
+    return timeoutEntry;
+  }
+
+  public void setTimeoutEntry (final TimingWheel.Entry timeoutEntry)
+  {
+    this.timeoutEntry = timeoutEntry;
+  }
+
   public void cancel (final ISocketChannelHandler sch)
   {
     if (readHandler == sch)
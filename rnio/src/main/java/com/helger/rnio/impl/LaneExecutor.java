@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.helger.rnio.statistics.LaneStatistics;
+
+/**
+ * A bounded executor that runs tasks in separate lanes. Each lane has its own
+ * threads, its own bounded queue and its own policy for what to do when it is
+ * full, so that one slow kind of task can not use up all the threads or all
+ * the memory.
+ * <p>
+ * Tasks are routed to a lane by their task group id, tasks of groups that have
+ * no lane of their own, and tasks given to {@link #execute(Runnable)}, run in
+ * the default lane. The default lane is used by the selector threads, a
+ * selector thread must never run or wait for a task, so tasks that it submits
+ * to a full lane are always rejected, whatever the policy of the lane.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class LaneExecutor extends AbstractExecutorService
+{
+  /** The name of the default lane */
+  public static final String DEFAULT_LANE = "default";
+
+  /** How long BLOCK waits for room in a full lane before rejecting. */
+  private static final long BLOCK_TIMEOUT_SECONDS = 30;
+
+  /** What to do with a task when its lane is full. */
+  public enum RejectionPolicy
+  {
+    /** Throw a RejectedExecutionException */
+    ABORT,
+    /** Run the task in the thread that submitted it */
+    CALLER_RUNS,
+    /** Wait for room in the queue, reject if none is available in time */
+    BLOCK
+  }
+
+  private final ThreadFactory tf;
+  private final Lane defaultLane;
+  // group id to lane
+  private final Map <String, Lane> lanes = new ConcurrentHashMap<> ();
+  private volatile BooleanSupplier selectorThreadCheck = () -> false;
+
+  /**
+   * Create a new LaneExecutor.
+   *
+   * @param tf
+   *        the ThreadFactory used to create the worker threads
+   * @param threads
+   *        the maximum number of threads of the default lane
+   * @param queueSize
+   *        the maximum number of waiting tasks of the default lane
+   * @param policy
+   *        what to do when the default lane is full
+   */
+  public LaneExecutor (final ThreadFactory tf,
+                       final int threads,
+                       final int queueSize,
+                       final RejectionPolicy policy)
+  {
+    this.tf = tf;
+    defaultLane = new Lane (DEFAULT_LANE, threads, queueSize, policy);
+  }
+
+  /**
+   * Add a lane for a task group. Lanes should be added before any tasks of the
+   * group are submitted, tasks submitted earlier run in the default lane.
+   *
+   * @param groupId
+   *        the task group id, as given by ITaskIdentifier.getGroupId ()
+   * @param threads
+   *        the maximum number of threads of the lane
+   * @param queueSize
+   *        the maximum number of waiting tasks of the lane
+   * @param policy
+   *        what to do when the lane is full
+   */
+  public void addLane (final String groupId, final int threads, final int queueSize, final RejectionPolicy policy)
+  {
+    final Lane old = lanes.put (groupId, new Lane (groupId, threads, queueSize, policy));
+    if (old != null)
+      old.executor.shutdown ();
+  }
+
+  /**
+   * Set the check for selector threads. Tasks that a selector thread submits
+   * to a full lane are rejected, they are never run by the selector thread or
+   * waited for.
+   *
+   * @param selectorThreadCheck
+   *        tells if the current thread is a selector thread
+   */
+  public void setSelectorThreadCheck (final BooleanSupplier selectorThreadCheck)
+  {
+    this.selectorThreadCheck = selectorThreadCheck;
+  }
+
+  /**
+   * Run a task in the default lane.
+   *
+   * @param r
+   *        the task to run
+   * @throws RejectedExecutionException
+   *         if the task could not be accepted
+   */
+  @Override
+  public void execute (final Runnable r)
+  {
+    defaultLane.execute (r);
+  }
+
+  /**
+   * Run a task in the lane of the given task group.
+   *
+   * @param r
+   *        the task to run
+   * @param groupId
+   *        the task group id of the task
+   * @throws RejectedExecutionException
+   *         if the task could not be accepted
+   */
+  public void execute (final Runnable r, final String groupId)
+  {
+    getLane (groupId).execute (r);
+  }
+
+  private Lane getLane (final String groupId)
+  {
+    final Lane lane = lanes.get (groupId);
+    return lane != null ? lane : defaultLane;
+  }
+
+  /**
+   * Get the statistics for all the lanes, the default lane first.
+   *
+   * @return a list of the lane statistics
+   */
+  public List <LaneStatistics> getLaneStatistics ()
+  {
+    final List <LaneStatistics> ret = new ArrayList<> ();
+    ret.add (defaultLane.stats);
+    for (final Lane lane : lanes.values ())
+      ret.add (lane.stats);
+    return ret;
+  }
+
+  private Collection <Lane> getAllLanes ()
+  {
+    final List <Lane> ret = new ArrayList<> (lanes.values ());
+    ret.add (defaultLane);
+    return ret;
+  }
+
+  @Override
+  public void shutdown ()
+  {
+    for (final Lane lane : getAllLanes ())
+      lane.executor.shutdown ();
+  }
+
+  @Override
+  public List <Runnable> shutdownNow ()
+  {
+    final List <Runnable> ret = new ArrayList<> ();
+    for (final Lane lane : getAllLanes ())
+      ret.addAll (lane.executor.shutdownNow ());
+    return ret;
+  }
+
+  @Override
+  public boolean isShutdown ()
+  {
+    return defaultLane.executor.isShutdown ();
+  }
+
+  @Override
+  public boolean isTerminated ()
+  {
+    for (final Lane lane : getAllLanes ())
+      if (!lane.executor.isTerminated ())
+        return false;
+    return true;
+  }
+
+  @Override
+  public boolean awaitTermination (final long timeout, final TimeUnit unit) throws InterruptedException
+  {
+    final long end = System.nanoTime () + unit.toNanos (timeout);
+    for (final Lane lane : getAllLanes ())
+    {
+      if (!lane.executor.awaitTermination (end - System.nanoTime (), TimeUnit.NANOSECONDS))
+        return false;
+    }
+    return true;
+  }
+
+  private class Lane implements RejectedExecutionHandler
+  {
+    private final String name;
+    private final RejectionPolicy policy;
+    private final LaneStatistics stats;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger threadId = new AtomicInteger ();
+
+    public Lane (final String name, final int threads, final int queueSize, final RejectionPolicy policy)
+    {
+      this.name = name;
+      this.policy = policy;
+      stats = new LaneStatistics (name, threads, queueSize, policy.name ());
+      executor = new ThreadPoolExecutor (threads,
+                                         threads,
+                                         60,
+                                         TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue<> (queueSize),
+                                         this::newThread,
+                                         this);
+      executor.allowCoreThreadTimeOut (true);
+    }
+
+    private Thread newThread (final Runnable r)
+    {
+      final Thread t = tf.newThread (r);
+      t.setName (name + " worker " + threadId.incrementAndGet ());
+      return t;
+    }
+
+    public void execute (final Runnable r)
+    {
+      stats.taskSubmitted ();
+      executor.execute (new LaneTask (r, stats));
+    }
+
+    @Override
+    public void rejectedExecution (final Runnable r, final ThreadPoolExecutor e)
+    {
+      if (!e.isShutdown () && !selectorThreadCheck.getAsBoolean ())
+      {
+        switch (policy)
+        {
+          case CALLER_RUNS:
+            stats.taskRunByCaller ();
+            r.run ();
+            return;
+          case BLOCK:
+            try
+            {
+              if (e.getQueue ().offer (r, BLOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                return;
+            }
+            catch (final InterruptedException ie)
+            {
+              Thread.currentThread ().interrupt ();
+            }
+            break;
+          case ABORT:
+            break;
+        }
+      }
+      stats.taskRejected ();
+      throw new RejectedExecutionException ("Lane " + name + " is full or shut down");
+    }
+  }
+
+  private static class LaneTask implements Runnable
+  {
+    private final Runnable realTask;
+    private final LaneStatistics stats;
+    private final long queued = System.nanoTime ();
+
+    public LaneTask (final Runnable realTask, final LaneStatistics stats)
+    {
+      this.realTask = realTask;
+      this.stats = stats;
+    }
+
+    public void run ()
+    {
+      stats.taskStarted (System.nanoTime () - queued);
+      try
+      {
+        realTask.run ();
+      }
+      finally
+      {
+        stats.taskCompleted ();
+      }
+    }
+  }
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.helger.rnio.IBufferHandler;
+import com.helger.rnio.statistics.BufferAllocation;
+import com.helger.rnio.statistics.BufferLeakStatistics;
+import com.helger.rnio.statistics.BufferMisuse;
+
+/**
+ * A buffer handler that checks how another buffer handler is used. This is a
+ * diagnostic mode, it costs a few map operations for each buffer and is meant
+ * to be turned on when hunting buffer problems.
+ * <p>
+ * Every buffer that is handed out is tracked until it is returned. The stack
+ * of the caller is recorded for one allocation in every <i>sampleRate</i>.
+ * The following misuses are detected:
+ * <ul>
+ * <li>A buffer that is returned twice, the second return is not passed on to
+ * the real buffer handler so the buffer will not be handed out twice.</li>
+ * <li>A buffer that was never handed out is returned.</li>
+ * <li>A buffer that is garbage collected without having been returned.</li>
+ * <li>A buffer that is written to after it was returned. This is found when
+ * the buffer is handed out again, and only for the sampled returns, since a
+ * checksum of the whole buffer is needed.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class LeakDetectingBufferHandler implements IBufferHandler
+{
+  /** The default sample rate, record one allocation stack in 100. */
+  public static final int DEFAULT_SAMPLE_RATE = 100;
+
+  private static final int MAX_MISUSES = 50;
+  private static final long NO_CHECKSUM = -1;
+
+  private final IBufferHandler handler;
+  private final int sampleRate;
+  private final BufferLeakStatistics stats = new BufferLeakStatistics (MAX_MISUSES);
+  private final ReferenceQueue <ByteBuffer> outstandingQueue = new ReferenceQueue<> ();
+  private final ReferenceQueue <ByteBuffer> returnedQueue = new ReferenceQueue<> ();
+  private final ConcurrentMap <BufferKey, BufferAllocation> outstanding = new ConcurrentHashMap<> ();
+  private final ConcurrentMap <BufferKey, Long> returned = new ConcurrentHashMap<> ();
+  private final Logger logger = Logger.getLogger (getClass ().getName ());
+
+  /**
+   * Create a new LeakDetectingBufferHandler with the default sample rate.
+   *
+   * @param handler
+   *        the buffer handler that does the real work
+   */
+  public LeakDetectingBufferHandler (final IBufferHandler handler)
+  {
+    this (handler, DEFAULT_SAMPLE_RATE);
+  }
+
+  /**
+   * Create a new LeakDetectingBufferHandler.
+   *
+   * @param handler
+   *        the buffer handler that does the real work
+   * @param sampleRate
+   *        record the allocation stack and the returned checksum for one
+   *        buffer in every sampleRate, 1 records every buffer
+   */
+  public LeakDetectingBufferHandler (final IBufferHandler handler, final int sampleRate)
+  {
+    if (sampleRate < 1)
+      throw new IllegalArgumentException ("sampleRate must be positive: " + sampleRate);
+    this.handler = handler;
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Get the buffer handler that does the real work.
+   *
+   * @return the wrapped buffer handler
+   */
+  public IBufferHandler getBufferHandler ()
+  {
+    return handler;
+  }
+
+  public ByteBuffer getBuffer ()
+  {
+    return handOut (handler.getBuffer ());
+  }
+
+  @Override
+  public ByteBuffer getBuffer (final int minSize)
+  {
+    return handOut (handler.getBuffer (minSize));
+  }
+
+  public void putBuffer (final ByteBuffer buffer)
+  {
+    if (buffer == null)
+      throw new IllegalArgumentException ("null buffer not allowed");
+    if (checkReturn (buffer))
+      handler.putBuffer (buffer);
+  }
+
+  public ByteBuffer growBuffer (final ByteBuffer buffer)
+  {
+    // Let the real handler give us an empty buffer so that the
+    // copy is not mistaken for a write after return.
+    final ByteBuffer lb = handOut (handler.growBuffer (null));
+    if (buffer != null)
+    {
+      lb.put (buffer);
+      putBuffer (buffer);
+    }
+    return lb;
+  }
+
+  public boolean isLarge (final ByteBuffer buffer)
+  {
+    return handler.isLarge (buffer);
+  }
+
+  /**
+   * Get the counters and the recent misuses.
+   *
+   * @return the statistics of this buffer handler
+   */
+  public BufferLeakStatistics getStatistics ()
+  {
+    expunge ();
+    return stats;
+  }
+
+  /**
+   * Get the number of buffers that are currently handed out.
+   *
+   * @return the number of outstanding buffers
+   */
+  public int getOutstandingCount ()
+  {
+    expunge ();
+    return outstanding.size ();
+  }
+
+  /**
+   * Get the oldest of the buffers that are currently handed out.
+   *
+   * @param max
+   *        the maximum number of buffers to return
+   * @return the outstanding buffers, oldest first
+   */
+  public List <BufferAllocation> getOldestOutstanding (final int max)
+  {
+    expunge ();
+    final List <BufferAllocation> ls = new ArrayList<> (outstanding.values ());
+    ls.sort (Comparator.comparingLong (BufferAllocation::getAllocated));
+    return ls.size () > max ? new ArrayList<> (ls.subList (0, max)) : ls;
+  }
+
+  private ByteBuffer handOut (final ByteBuffer buffer)
+  {
+    expunge ();
+    final BufferKey key = new BufferKey (buffer, outstandingQueue);
+    final Long checksum = returned.remove (key);
+    if (checksum != null && checksum.longValue () != NO_CHECKSUM && checksum.longValue () != checksum (buffer))
+      misuse (BufferMisuse.Kind.WRITE_AFTER_RETURN, buffer, null, getStack ());
+
+    final boolean sample = isSampled ();
+    final BufferAllocation ba = new BufferAllocation (buffer.capacity (),
+                                                      System.currentTimeMillis (),
+                                                      Thread.currentThread ().getName (),
+                                                      sample ? getStack () : null);
+    final BufferAllocation old = outstanding.put (key, ba);
+    if (old != null)
+    {
+      // The real handler gave out a buffer that is already in use.
+      // This is not a misuse by the caller so only log it.
+      logger.warning ("Buffer handed out twice by: " + handler + ", capacity: " + buffer.capacity ());
+    }
+    stats.allocated (sample);
+    return buffer;
+  }
+
+  /**
+   * Check a returned buffer.
+   *
+   * @return true if the buffer may be given to the real buffer handler
+   */
+  private boolean checkReturn (final ByteBuffer buffer)
+  {
+    expunge ();
+    final BufferKey lookup = new BufferKey (buffer, null);
+    final BufferAllocation ba = outstanding.remove (lookup);
+    if (ba == null)
+    {
+      if (returned.containsKey (lookup))
+      {
+        misuse (BufferMisuse.Kind.DOUBLE_RETURN, buffer, null, getStack ());
+        return false;
+      }
+      misuse (BufferMisuse.Kind.UNKNOWN_RETURN, buffer, null, getStack ());
+      return true;
+    }
+    // Register the return before the real handler can give the
+    // buffer to some other thread.
+    final long checksum = isSampled () ? checksum (buffer) : NO_CHECKSUM;
+    returned.put (new BufferKey (buffer, returnedQueue), Long.valueOf (checksum));
+    stats.returned ();
+    return true;
+  }
+
+  private void misuse (final BufferMisuse.Kind kind,
+                       final ByteBuffer buffer,
+                       final BufferAllocation ba,
+                       final StackTraceElement [] stack)
+  {
+    final int capacity = buffer != null ? buffer.capacity () : ba.getCapacity ();
+    stats.misuse (new BufferMisuse (kind, System.currentTimeMillis (), capacity, ba, stack));
+    logger.log (Level.WARNING, "Buffer misuse: " + kind + ", capacity: " + capacity);
+  }
+
+  /** Find buffers that the garbage collector has found. */
+  private void expunge ()
+  {
+    Reference <? extends ByteBuffer> ref;
+    while ((ref = outstandingQueue.poll ()) != null)
+    {
+      final BufferAllocation ba = outstanding.remove (ref);
+      if (ba != null)
+        misuse (BufferMisuse.Kind.LEAK, null, ba, null);
+    }
+    while ((ref = returnedQueue.poll ()) != null)
+      returned.remove (ref);
+  }
+
+  private boolean isSampled ()
+  {
+    return sampleRate == 1 || ThreadLocalRandom.current ().nextInt (sampleRate) == 0;
+  }
+
+  private static long checksum (final ByteBuffer buffer)
+  {
+    final ByteBuffer all = buffer.duplicate ();
+    all.clear ();
+    final CRC32 crc = new CRC32 ();
+    crc.update (all);
+    return crc.getValue ();
+  }
+
+  private static StackTraceElement [] getStack ()
+  {
+    final StackTraceElement [] st = new Throwable ().getStackTrace ();
+    int i = 0;
+    while (i < st.length && st[i].getClassName ().equals (LeakDetectingBufferHandler.class.getName ()))
+      i++;
+    return Arrays.copyOfRange (st, i, st.length);
+  }
+
+  /**
+   * A weak key that compares buffers by identity, ByteBuffer.equals compares
+   * the contents.
+   */
+  private static final class BufferKey extends WeakReference <ByteBuffer>
+  {
+    private final int hash;
+
+    public BufferKey (final ByteBuffer buffer, final ReferenceQueue <ByteBuffer> queue)
+    {
+      super (buffer, queue);
+      hash = System.identityHashCode (buffer);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (!(o instanceof BufferKey))
+        return false;
+      final ByteBuffer b = get ();
+      return b != null && b == ((BufferKey) o).get ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return getClass ().getSimpleName () + "[handler: " + handler + ", sampleRate: " + sampleRate + "]";
+  }
+}
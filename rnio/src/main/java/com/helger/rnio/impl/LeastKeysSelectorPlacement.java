@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.helger.rnio.ISelectorPlacementStrategy;
+import com.helger.rnio.statistics.SelectorStatistics;
+
+/**
+ * A placement strategy that picks the selector with the fewest registered
+ * channels.
+ * <p>
+ * Queued tasks are counted as well, so that a burst of new channels does not
+ * all end up on the same selector before it has registered them. Ties are
+ * broken by starting the search at a new selector each time.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class LeastKeysSelectorPlacement implements ISelectorPlacementStrategy
+{
+  private final AtomicInteger start = new AtomicInteger ();
+
+  public int selectSelector (final List <SelectorStatistics> selectors)
+  {
+    final int size = selectors.size ();
+    final int first = (start.getAndIncrement () & Integer.MAX_VALUE) % size;
+    int best = first;
+    long bestLoad = Long.MAX_VALUE;
+    for (int i = 0; i < size; i++)
+    {
+      final int index = (first + i) % size;
+      final SelectorStatistics ss = selectors.get (index);
+      final long load = (long) ss.getKeyCount () + ss.getQueuedTasks ();
+      if (load < bestLoad)
+      {
+        best = index;
+        bestLoad = load;
+      }
+    }
+    return best;
+  }
+}
@@ -34,8 +34,12 @@ package com.helger.rnio.impl;
 import java.io.IOException;
 import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,17 +48,20 @@ import com.helger.rnio.IAcceptHandler;
 import com.helger.rnio.IConnectHandler;
 import com.helger.rnio.INioHandler;
 import com.helger.rnio.IReadHandler;
+import com.helger.rnio.ISelectorPlacementStrategy;
 import com.helger.rnio.ISelectorVisitor;
 import com.helger.rnio.ISocketChannelHandler;
 import com.helger.rnio.IStatisticsHolder;
 import com.helger.rnio.ITaskIdentifier;
 import com.helger.rnio.IWriteHandler;
+import com.helger.rnio.statistics.SelectorStatistics;
 
 /**
  * An implementation of NioHandler that runs several selector threads.
  * <p>
  * Any tasks that should run on a background thread are passed to the
- * {@link ExecutorService} that was given in the constructor.
+ * {@link ExecutorService} that was given in the constructor. If that is a
+ * {@link LaneExecutor} the tasks are run in the lane of their task group.
  * <p>
  * This class will log using the "org.khelekore.rnio" {@link Logger}.
  *
@@ -65,10 +72,17 @@ public class MultiSelectorNioHandler implements INioHandler
   /** The executor service. */
   private final ExecutorService executorService;
   private final List <SingleSelectorRunner> selectorRunners;
+  /** The selector runner that handles each registered channel. */
+  private final ConcurrentMap <SelectableChannel, SingleSelectorRunner> channelOwners = new ConcurrentHashMap<> ();
   private final Logger logger = Logger.getLogger ("org.khelekore.rnio");
   private final IStatisticsHolder stats;
   private final Long defaultTimeout;
-  private int nextIndex = 0;
+  private final ISelectorPlacementStrategy placementStrategy;
+  /** The statistics of the selector runners, in the same order as the runners. */
+  private final List <SelectorStatistics> selectorStatistics;
+  private long balanceInterval = 0;
+  private double balanceThreshold = 0.25;
+  private SelectorBalancer balancer;
 
   /**
    * Create a new MultiSelectorNioHandler that runs background tasks on the
@@ -89,6 +103,33 @@ public class MultiSelectorNioHandler implements INioHandler
                                   final IStatisticsHolder stats,
                                   final int numSelectors,
                                   final Long defaultTimeout) throws IOException
+  {
+    this (executorService, stats, numSelectors, defaultTimeout, new RoundRobinSelectorPlacement ());
+  }
+
+  /**
+   * Create a new MultiSelectorNioHandler that runs background tasks on the
+   * given executor, has a specified number of selectors and uses the given
+   * strategy to place new channels on the selectors.
+   *
+   * @param executorService
+   *        the ExecutorService to use for this NioHandler
+   * @param stats
+   *        the StatisticsHolder to use for this NioHandler
+   * @param numSelectors
+   *        the number of threads that this NioHandler will use
+   * @param defaultTimeout
+   *        the default timeout value for this NioHandler
+   * @param placementStrategy
+   *        the strategy that picks the selector for new channels
+   * @throws IOException
+   *         if the selectors can not be started
+   */
+  public MultiSelectorNioHandler (final ExecutorService executorService,
+                                  final IStatisticsHolder stats,
+                                  final int numSelectors,
+                                  final Long defaultTimeout,
+                                  final ISelectorPlacementStrategy placementStrategy) throws IOException
   {
     this.executorService = executorService;
     this.stats = stats;
@@ -98,9 +139,18 @@ public class MultiSelectorNioHandler implements INioHandler
       final String err = "Must have at least one selector: " + numSelectors;
       throw new IllegalArgumentException (err);
     }
+    if (placementStrategy == null)
+      throw new IllegalArgumentException ("placementStrategy may not be null");
+    this.placementStrategy = placementStrategy;
     selectorRunners = new ArrayList<> (numSelectors);
+    final List <SelectorStatistics> ls = new ArrayList<> (numSelectors);
     for (int i = 0; i < numSelectors; i++)
-      selectorRunners.add (new SingleSelectorRunner (executorService));
+    {
+      final SingleSelectorRunner ssr = new SingleSelectorRunner (executorService, channelOwners);
+      selectorRunners.add (ssr);
+      ls.add (ssr.getStatistics ());
+    }
+    selectorStatistics = Collections.unmodifiableList (ls);
     if (defaultTimeout != null && defaultTimeout.longValue () <= 0)
     {
       final String err = "Default timeout may not be zero or negative";
@@ -109,14 +159,43 @@ public class MultiSelectorNioHandler implements INioHandler
     this.defaultTimeout = defaultTimeout;
   }
 
+  /**
+   * Make this NioHandler move busy channels between the selector threads when
+   * their load is uneven. This has to be called before {@link #start}.
+   *
+   * @param interval
+   *        the time in millis between each check, zero or less turns balancing
+   *        off
+   * @param threshold
+   *        the difference in utilisation, between 0 and 1, between the most
+   *        and the least busy selector that causes a channel to be moved
+   */
+  public void setBalancing (final long interval, final double threshold)
+  {
+    if (threshold <= 0 || threshold > 1)
+      throw new IllegalArgumentException ("Balance threshold must be in (0, 1]: " + threshold);
+    this.balanceInterval = interval;
+    this.balanceThreshold = threshold;
+  }
+
   public void start (final ThreadFactory tf)
   {
     for (final SingleSelectorRunner ssr : selectorRunners)
       ssr.start (tf);
+    if (balanceInterval > 0 && selectorRunners.size () > 1)
+    {
+      balancer = new SelectorBalancer (selectorRunners, balanceInterval, balanceThreshold);
+      final Thread t = tf.newThread (balancer);
+      t.setName (getClass ().getName () + " balancer");
+      t.setDaemon (true);
+      t.start ();
+    }
   }
 
   public void shutdown ()
   {
+    if (balancer != null)
+      balancer.shutdown ();
     final Thread t = new Thread ( () -> {
       executorService.shutdown ();
       for (final SingleSelectorRunner ssr : selectorRunners)
@@ -143,20 +222,57 @@ public class MultiSelectorNioHandler implements INioHandler
   public void runThreadTask (final Runnable r, final ITaskIdentifier ti)
   {
     stats.addPendingTask (ti);
-    executorService.execute (new StatisticsCollector (stats, r, ti));
+    final StatisticsCollector sc = new StatisticsCollector (stats, r, ti);
+    try
+    {
+      if (executorService instanceof LaneExecutor)
+        ((LaneExecutor) executorService).execute (sc, ti.getGroupId ());
+      else
+        executorService.execute (sc);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      stats.changeTaskStatusToRunning (ti);
+      stats.changeTaskStatusToFinished (ti, false, 0);
+      throw e;
+    }
   }
 
   private SingleSelectorRunner getSelectorRunner ()
   {
-    int index;
-    synchronized (this)
-    {
-      index = nextIndex++;
-      nextIndex %= selectorRunners.size ();
-    }
+    final int index = placementStrategy.selectSelector (selectorStatistics);
     return selectorRunners.get (index);
   }
 
+  /**
+   * Get the number of selector threads.
+   *
+   * @return the number of selectors used by this NioHandler
+   */
+  public int getNumSelectors ()
+  {
+    return selectorRunners.size ();
+  }
+
+  /**
+   * Make the given channel be handled by a specific selector. This has to be
+   * called before the channel is registered for any operation. Channels bound
+   * this way are never moved by the balancer if they are server channels.
+   *
+   * @param channel
+   *        the channel to place
+   * @param index
+   *        the index of the selector to use, 0 &lt;= index &lt;
+   *        {@link #getNumSelectors()}
+   */
+  public void bindToSelector (final SelectableChannel channel, final int index)
+  {
+    final SingleSelectorRunner ssr = selectorRunners.get (index);
+    final SingleSelectorRunner old = channelOwners.putIfAbsent (channel, ssr);
+    if (old != null && old != ssr)
+      throw new IllegalStateException ("Channel is already handled by another selector: " + channel);
+  }
+
   /**
    * Run a task on one of the selector threads. The task will be run sometime in
    * the future.
@@ -168,17 +284,16 @@ public class MultiSelectorNioHandler implements INioHandler
    */
   private void runSelectorTask (final SelectableChannel channel, final ISelectorRunnable sr)
   {
-    // If the channel is already being served by someone, favor that one.
-    for (final SingleSelectorRunner ssr : selectorRunners)
+    // If the channel is already being served by someone, use that one,
+    // otherwise put it on any selector.
+    SingleSelectorRunner ssr = channelOwners.get (channel);
+    if (ssr == null)
     {
-      if (ssr.handlesChannel (channel))
-      {
-        ssr.runSelectorTask (sr);
-        return;
-      }
+      final SingleSelectorRunner next = getSelectorRunner ();
+      ssr = channelOwners.putIfAbsent (channel, next);
+      if (ssr == null)
+        ssr = next;
     }
-    // Put it on any selector
-    final SingleSelectorRunner ssr = getSelectorRunner ();
     ssr.runSelectorTask (sr);
   }
 
@@ -210,18 +325,16 @@ public class MultiSelectorNioHandler implements INioHandler
 
   public void cancel (final SelectableChannel channel, final ISocketChannelHandler handler)
   {
-    for (final SingleSelectorRunner sr : selectorRunners)
-    {
+    final SingleSelectorRunner sr = channelOwners.get (channel);
+    if (sr != null)
       sr.runSelectorTask (ssr -> ssr.cancel (channel, handler));
-    }
   }
 
   public void close (final SelectableChannel channel)
   {
-    for (final SingleSelectorRunner sr : selectorRunners)
-    {
+    final SingleSelectorRunner sr = channelOwners.get (channel);
+    if (sr != null)
       sr.runSelectorTask (ssr -> ssr.close (channel));
-    }
   }
 
   public void visitSelectors (final ISelectorVisitor visitor)
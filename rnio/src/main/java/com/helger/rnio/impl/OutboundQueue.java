@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import com.helger.rnio.INioHandler;
+import com.helger.rnio.IOutboundListener;
+import com.helger.rnio.IWriteHandler;
+
+/**
+ * A queue of buffers to write to one channel.
+ * <p>
+ * Buffers, like headers, data blocks and framing, are added to the queue and
+ * nothing is written until the queue is flushed. A flush writes as many queued
+ * buffers as possible with each gathering write and waits for the channel to
+ * become writable when the socket buffer is full. The listener is told once
+ * everything queued has been written.
+ * <p>
+ * Queued buffers must not be changed until the flush they are part of has
+ * completed. Only one flush with a listener may be in progress at a time, a
+ * flush started by {@link #flushQueued()} takes the listener of a flush that
+ * is asked for before it is done.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class OutboundQueue implements IWriteHandler
+{
+  /** The maximum number of buffers to write with one call. */
+  public static final int MAX_BUFFERS_PER_WRITE = 64;
+
+  private final SocketChannel channel;
+  private final INioHandler nioHandler;
+  private final Deque <ByteBuffer> queue = new ArrayDeque<> ();
+  private final ByteBuffer [] iov = new ByteBuffer [MAX_BUFFERS_PER_WRITE];
+  private long queuedBytes = 0;
+  private IOutboundListener listener;
+  private boolean flushing = false;
+  private Long timeout;
+  private long bytesWritten = 0;
+  private long reportedBytes = 0;
+  private long writes = 0;
+
+  /**
+   * Create a new OutboundQueue for the given channel.
+   *
+   * @param channel
+   *        the channel to write to
+   * @param nioHandler
+   *        the NioHandler to use to wait for the channel to become writable
+   */
+  public OutboundQueue (final SocketChannel channel, final INioHandler nioHandler)
+  {
+    this.channel = channel;
+    this.nioHandler = nioHandler;
+  }
+
+  /**
+   * Get the channel this queue writes to.
+   *
+   * @return the channel
+   */
+  public SocketChannel getChannel ()
+  {
+    return channel;
+  }
+
+  /**
+   * Get the NioHandler this queue uses.
+   *
+   * @return the NioHandler
+   */
+  public INioHandler getNioHandler ()
+  {
+    return nioHandler;
+  }
+
+  /**
+   * Add a buffer to the end of the queue. The data between position and limit
+   * will be written. Empty buffers are ignored.
+   *
+   * @param buffer
+   *        the data to write
+   */
+  public synchronized void add (final ByteBuffer buffer)
+  {
+    if (!buffer.hasRemaining ())
+      return;
+    queue.add (buffer);
+    queuedBytes += buffer.remaining ();
+  }
+
+  /**
+   * Check if there is any data queued.
+   *
+   * @return true if nothing is queued
+   */
+  public synchronized boolean isEmpty ()
+  {
+    return queue.isEmpty ();
+  }
+
+  /**
+   * Get the number of bytes that are queued but not yet written.
+   *
+   * @return the number of queued bytes
+   */
+  public synchronized long getQueuedBytes ()
+  {
+    return queuedBytes;
+  }
+
+  /**
+   * Get the total number of bytes written by this queue.
+   *
+   * @return the number of bytes written
+   */
+  public synchronized long getBytesWritten ()
+  {
+    return bytesWritten;
+  }
+
+  /**
+   * Get the number of bytes written since the last call to this method. Data
+   * that is written by {@link #flushQueued()} is part of the next flush that
+   * asks for this, so every written byte is reported once.
+   *
+   * @return the number of bytes written since the last call
+   */
+  public synchronized long takeBytesWritten ()
+  {
+    final long ret = bytesWritten - reportedBytes;
+    reportedBytes = bytesWritten;
+    return ret;
+  }
+
+  /**
+   * Get the number of write calls made by this queue.
+   *
+   * @return the number of writes
+   */
+  public synchronized long getWrites ()
+  {
+    return writes;
+  }
+
+  /**
+   * Remove all queued data without writing it.
+   */
+  public synchronized void clear ()
+  {
+    queue.clear ();
+    queuedBytes = 0;
+  }
+
+  /**
+   * Write all the queued data. The listener is notified once all the data has
+   * been written or the write failed. If nothing is queued the listener is
+   * notified at once.
+   *
+   * @param listener
+   *        the listener to notify
+   * @throws IllegalStateException
+   *         if a flush is already in progress
+   */
+  public void flush (final IOutboundListener listener)
+  {
+    synchronized (this)
+    {
+      if (this.listener != null)
+        throw new IllegalStateException ("Flush already in progress: " + this);
+      this.listener = listener;
+      // a flush in progress writes the new data and tells the listener
+      if (flushing)
+        return;
+      flushing = true;
+    }
+    write ();
+  }
+
+  /**
+   * Start writing the queued data if no flush is in progress. Nobody is told
+   * when the data has been written, a failure is found by the next flush.
+   */
+  public void flushQueued ()
+  {
+    synchronized (this)
+    {
+      if (flushing || queue.isEmpty ())
+        return;
+      flushing = true;
+    }
+    write ();
+  }
+
+  /** Write as much as possible, called when the channel is writable. */
+  public void write ()
+  {
+    final IOutboundListener l;
+    IOException failure = null;
+    synchronized (this)
+    {
+      try
+      {
+        if (!writeQueued ())
+        {
+          timeout = nioHandler.getDefaultTimeout ();
+          nioHandler.waitForWrite (channel, this);
+          return;
+        }
+      }
+      catch (final IOException e)
+      {
+        failure = e;
+        clear ();
+      }
+      flushing = false;
+      l = listener;
+      listener = null;
+    }
+    if (l == null)
+      return;
+    if (failure != null)
+      l.failed (failure);
+    else
+      l.flushed ();
+  }
+
+  /**
+   * Write the queued buffers.
+   *
+   * @return true if the queue is empty, false if the socket buffer is full
+   */
+  private boolean writeQueued () throws IOException
+  {
+    while (!queue.isEmpty ())
+    {
+      int n = 0;
+      long wanted = 0;
+      for (final ByteBuffer b : queue)
+      {
+        iov[n++] = b;
+        wanted += b.remaining ();
+        if (n == iov.length)
+          break;
+      }
+      final long written = n == 1 ? channel.write (iov[0]) : channel.write (iov, 0, n);
+      Arrays.fill (iov, 0, n, null);
+      writes++;
+      bytesWritten += written;
+      queuedBytes -= written;
+      while (!queue.isEmpty () && !queue.peekFirst ().hasRemaining ())
+        queue.removeFirst ();
+      if (written < wanted)
+        return false;
+    }
+    return true;
+  }
+
+  private IOutboundListener takeListener ()
+  {
+    synchronized (this)
+    {
+      clear ();
+      flushing = false;
+      final IOutboundListener l = listener;
+      listener = null;
+      return l;
+    }
+  }
+
+  public void closed ()
+  {
+    final IOutboundListener l = takeListener ();
+    if (l != null)
+      l.failed (new IOException ("channel was closed"));
+  }
+
+  public void timeout ()
+  {
+    final IOutboundListener l = takeListener ();
+    if (l != null)
+      l.timeout ();
+  }
+
+  public boolean useSeparateThread ()
+  {
+    return false;
+  }
+
+  public String getDescription ()
+  {
+    return "OutboundQueue: channel: " + channel + ", queued: " + getQueuedBytes ();
+  }
+
+  public Long getTimeout ()
+  {
+    return timeout;
+  }
+
+  @Override
+  public synchronized String toString ()
+  {
+    return getClass ().getSimpleName () + "[channel: " + channel + ", buffers: " + queue.size () + ", bytes: " + queuedBytes + "]";
+  }
+}
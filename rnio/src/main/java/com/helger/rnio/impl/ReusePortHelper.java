@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Helper for opening several server channels on the same address using the
+ * SO_REUSEPORT socket option, so that the kernel spreads the incoming
+ * connections over the channels.
+ * <p>
+ * SO_REUSEPORT is only available from java 9 and only on some platforms, use
+ * {@link #isSupported()} to check if it can be used.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class ReusePortHelper
+{
+  private static final SocketOption <Boolean> SO_REUSEPORT = findReusePort ();
+
+  private ReusePortHelper ()
+  {}
+
+  @SuppressWarnings ("unchecked")
+  private static SocketOption <Boolean> findReusePort ()
+  {
+    try
+    {
+      return (SocketOption <Boolean>) StandardSocketOptions.class.getField ("SO_REUSEPORT").get (null);
+    }
+    catch (final ReflectiveOperationException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Check if SO_REUSEPORT can be used for server channels.
+   *
+   * @return true if the running jvm and the platform supports SO_REUSEPORT
+   */
+  public static boolean isSupported ()
+  {
+    if (SO_REUSEPORT == null)
+      return false;
+    try (final ServerSocketChannel ssc = ServerSocketChannel.open ())
+    {
+      return ssc.supportedOptions ().contains (SO_REUSEPORT);
+    }
+    catch (final IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Open a non blocking server channel with SO_REUSEPORT set and bind it to the
+   * given address.
+   *
+   * @param address
+   *        the address to bind to
+   * @return the new bound channel
+   * @throws IOException
+   *         if the channel can not be opened or bound
+   * @throws UnsupportedOperationException
+   *         if SO_REUSEPORT is not supported
+   */
+  public static ServerSocketChannel openAndBind (final SocketAddress address) throws IOException
+  {
+    if (SO_REUSEPORT == null)
+      throw new UnsupportedOperationException ("SO_REUSEPORT is not available");
+    final ServerSocketChannel ssc = ServerSocketChannel.open ();
+    try
+    {
+      ssc.configureBlocking (false);
+      ssc.setOption (SO_REUSEPORT, Boolean.TRUE);
+      ssc.bind (address);
+      return ssc;
+    }
+    catch (final IOException | RuntimeException e)
+    {
+      ssc.close ();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.helger.rnio.statistics.SelectorStatistics;
+
+/**
+ * A background task that evens out the load of the selector threads.
+ * <p>
+ * At each interval the utilisation of every selector, the share of the
+ * interval it spent working rather than waiting in select, is computed. If the
+ * most utilised selector is busier than the least utilised one by at least the
+ * threshold, the most active channel of the busy selector is moved to the idle
+ * one. At most one channel is moved per interval so that a move can show its
+ * effect before the next decision is made.
+ */
+class SelectorBalancer implements Runnable
+{
+  private final List <SingleSelectorRunner> selectorRunners;
+  private final long interval;
+  private final double threshold;
+  private final long [] lastBusy;
+  private volatile boolean running = true;
+  private final Logger logger = Logger.getLogger ("org.khelekore.rnio");
+
+  /**
+   * Create a new SelectorBalancer.
+   *
+   * @param selectorRunners
+   *        the selectors to balance
+   * @param interval
+   *        the time in millis between each check
+   * @param threshold
+   *        the minimum utilisation difference, between 0 and 1, that will
+   *        cause a channel to be moved
+   */
+  public SelectorBalancer (final List <SingleSelectorRunner> selectorRunners,
+                           final long interval,
+                           final double threshold)
+  {
+    this.selectorRunners = selectorRunners;
+    this.interval = interval;
+    this.threshold = threshold;
+    lastBusy = new long [selectorRunners.size ()];
+  }
+
+  public void run ()
+  {
+    long lastSample = sample ();
+    while (running)
+    {
+      try
+      {
+        Thread.sleep (interval);
+      }
+      catch (final InterruptedException e)
+      {
+        return;
+      }
+      lastSample = balance (lastSample);
+    }
+  }
+
+  public void shutdown ()
+  {
+    running = false;
+  }
+
+  private long sample ()
+  {
+    for (int i = 0; i < lastBusy.length; i++)
+      lastBusy[i] = selectorRunners.get (i).getStatistics ().getTotalBusyNanos ();
+    return System.nanoTime ();
+  }
+
+  private long balance (final long lastSample)
+  {
+    final long now = System.nanoTime ();
+    final double elapsed = Math.max (1, now - lastSample);
+    int hot = -1;
+    int cold = -1;
+    double hotUtil = -1;
+    double coldUtil = Double.MAX_VALUE;
+    for (int i = 0; i < lastBusy.length; i++)
+    {
+      final SelectorStatistics ss = selectorRunners.get (i).getStatistics ();
+      final long busy = ss.getTotalBusyNanos ();
+      final double util = (busy - lastBusy[i]) / elapsed;
+      lastBusy[i] = busy;
+      if (util > hotUtil)
+      {
+        hotUtil = util;
+        hot = i;
+      }
+      if (util < coldUtil)
+      {
+        coldUtil = util;
+        cold = i;
+      }
+    }
+    if (hot != cold && hotUtil - coldUtil >= threshold)
+    {
+      final SingleSelectorRunner from = selectorRunners.get (hot);
+      final SingleSelectorRunner to = selectorRunners.get (cold);
+      if (logger.isLoggable (Level.FINE))
+        logger.fine ("Selector utilisation: " + from + ": " + hotUtil + ", " + to + ": " + coldUtil);
+      from.runSelectorTask (ssr -> ssr.migrateBusiestChannel (to));
+    }
+    return now;
+  }
+}
@@ -34,13 +34,17 @@ package com.helger.rnio.impl;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -53,31 +57,56 @@ import com.helger.rnio.IReadHandler;
 import com.helger.rnio.ISelectorVisitor;
 import com.helger.rnio.ISocketChannelHandler;
 import com.helger.rnio.IWriteHandler;
+import com.helger.rnio.statistics.SelectorStatistics;
 
 /**
  * A selector handler.
  */
 class SingleSelectorRunner implements Runnable
 {
+  /** The resolution of the timeouts. */
+  private static final long TIMEOUT_TICK_MILLIS = 50;
+  /** The number of slots in the timing wheel, about 51 seconds per turn. */
+  private static final int TIMEOUT_SLOTS = 1024;
+  /** How often to forget channels that were closed without telling us. */
+  private static final long OWNER_PURGE_INTERVAL = 60 * 1000;
+
   private final Selector selector;
   private final AtomicBoolean running = new AtomicBoolean (false);
   private final Logger logger = Logger.getLogger ("org.khelekore.rnio");
   private final ExecutorService executorService;
 
   /** The queue to get back on the main thread. */
-  private final Object returnedTasksLock = new Object ();
-  private List <ISelectorRunnable> returnedTasks1 = new ArrayList<> ();
-  private List <ISelectorRunnable> returnedTasks2 = new ArrayList<> ();
+  private final Queue <ISelectorRunnable> returnedTasks = new ConcurrentLinkedQueue<> ();
+
+  /**
+   * False while the selector thread is in, or about to go into, select. Only
+   * the task adder that flips this back to true has to wake the selector up.
+   */
+  private final AtomicBoolean awake = new AtomicBoolean (true);
+  private final SelectorStatistics stats = new SelectorStatistics ();
+
+  /** The timeouts of the channels handled by this selector. */
+  private final TimingWheel timeouts = new TimingWheel (TIMEOUT_TICK_MILLIS,
+                                                        TIMEOUT_SLOTS,
+                                                        System.currentTimeMillis ());
+  private final List <TimingWheel.Entry> expiredTimeouts = new ArrayList<> ();
+
+  /** The channel to selector mapping, shared with the other selectors. */
+  private final ConcurrentMap <SelectableChannel, SingleSelectorRunner> channelOwners;
+  private long lastOwnerPurge = System.currentTimeMillis ();
 
   private Thread selectorThread;
 
   private int id = 0;
   private static int idSequence = 0;
 
-  public SingleSelectorRunner (final ExecutorService executorService) throws IOException
+  public SingleSelectorRunner (final ExecutorService executorService,
+                               final ConcurrentMap <SelectableChannel, SingleSelectorRunner> channelOwners) throws IOException
   {
     selector = Selector.open ();
     this.executorService = executorService;
+    this.channelOwners = channelOwners;
     id = idSequence++;
   }
 
@@ -157,6 +186,7 @@ class SingleSelectorRunner implements Runnable
                       handler +
                       ", updater: " +
                       updater);
+      channelOwners.remove (channel, this);
       if (sk != null && sk.isValid ())
       {
         final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
@@ -174,6 +204,7 @@ class SingleSelectorRunner implements Runnable
       final ChannelOpsHandler coh = new ChannelOpsHandler ();
       updater.addHandler (coh);
       sk = channel.register (selector, coh.getInterestOps (), coh);
+      updateTimeout (sk, coh);
     }
     else
     {
@@ -182,6 +213,7 @@ class SingleSelectorRunner implements Runnable
       {
         updater.addHandler (coh);
         sk.interestOps (coh.getInterestOps ());
+        updateTimeout (sk, coh);
       }
       else
       {
@@ -198,26 +230,35 @@ class SingleSelectorRunner implements Runnable
 
   public void waitForRead (final SelectableChannel channel, final IReadHandler handler) throws IOException
   {
+    if (forwardIfMoved (channel, ssr -> ssr.waitForRead (channel, handler)))
+      return;
     updateSelectionKey (channel, handler, coh -> coh.setReadHandler (handler));
   }
 
   public void waitForWrite (final SelectableChannel channel, final IWriteHandler handler) throws IOException
   {
+    if (forwardIfMoved (channel, ssr -> ssr.waitForWrite (channel, handler)))
+      return;
     updateSelectionKey (channel, handler, coh -> coh.setWriteHandler (handler));
   }
 
   public void waitForAccept (final SelectableChannel channel, final IAcceptHandler handler) throws IOException
   {
+    if (forwardIfMoved (channel, ssr -> ssr.waitForAccept (channel, handler)))
+      return;
     updateSelectionKey (channel, handler, coh -> coh.setAcceptHandler (handler));
   }
 
   public void waitForConnect (final SelectableChannel channel, final IConnectHandler handler) throws IOException
   {
+    if (forwardIfMoved (channel, ssr -> ssr.waitForConnect (channel, handler)))
+      return;
     updateSelectionKey (channel, handler, coh -> coh.setConnectHandler (handler));
   }
 
   public void run ()
   {
+    SizeClassedBufferHandler.setSelectorThread ();
     long lastRun = System.currentTimeMillis ();
     int counter = 0;
     long sleepTime = 100 * 1000; // 100 seconds
@@ -228,7 +269,14 @@ class SingleSelectorRunner implements Runnable
       {
         if (logger.isLoggable (Level.FINEST))
           logger.finest (id + ": going into select: " + sleepTime);
-        selector.select (sleepTime);
+        awake.set (false);
+        // A task may have been added before awake was cleared, do not block
+        if (returnedTasks.isEmpty ())
+          selector.select (sleepTime);
+        else
+          selector.selectNow ();
+        awake.set (true);
+        final long loopStart = System.nanoTime ();
         final long now = System.currentTimeMillis ();
         final long diff = now - lastRun;
         if (diff > 100)
@@ -253,13 +301,17 @@ class SingleSelectorRunner implements Runnable
           counter = 0;
         }
 
-        final Long nextTimeout = findNextTimeout ();
+        if (now - lastOwnerPurge > OWNER_PURGE_INTERVAL)
+          purgeClosedChannels (now);
+
+        final Long nextTimeout = timeouts.getNextTimeout ();
         if (nextTimeout != null)
-          sleepTime = nextTimeout.longValue () - now;
+          sleepTime = Math.max (1, nextTimeout.longValue () - now);
         else
           sleepTime = 100 * 1000;
 
         lastRun = now;
+        stats.loopDone (selector.keys ().size (), System.nanoTime () - loopStart);
       }
       catch (final IOException e)
       {
@@ -273,28 +325,14 @@ class SingleSelectorRunner implements Runnable
     }
   }
 
-  private Long findNextTimeout ()
+  /**
+   * Channels may be closed directly, without going through the NioHandler, so
+   * now and then remove the closed channels from the owner mapping.
+   */
+  private void purgeClosedChannels (final long now)
   {
-    Long min = null;
-    for (final SelectionKey sk : selector.keys ())
-    {
-      final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
-      if (coh == null)
-        continue;
-      final Long timeout = coh.getMinimumTimeout ();
-      if (timeout != null)
-      {
-        if (min != null)
-        {
-          min = min.longValue () < timeout.longValue () ? min : timeout;
-        }
-        else
-        {
-          min = timeout;
-        }
-      }
-    }
-    return min;
+    channelOwners.entrySet ().removeIf (e -> e.getValue () == this && !e.getKey ().isOpen ());
+    lastOwnerPurge = now;
   }
 
   private String getStackTrace (final Throwable t)
@@ -362,17 +400,49 @@ class SingleSelectorRunner implements Runnable
 
   private void cancelTimeouts (final long now)
   {
-    for (final SelectionKey sk : selector.keys ())
+    timeouts.expire (now, expiredTimeouts);
+    for (final TimingWheel.Entry e : expiredTimeouts)
     {
-      final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
-      if (coh == null)
+      final SelectionKey sk = e.getSelectionKey ();
+      // Channels closed behind our back are just dropped
+      if (!sk.isValid ())
         continue;
+      final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
       if (coh.doTimeouts (now))
       {
         if (sk.isValid ())
           sk.interestOps (coh.getInterestOps ());
       }
+      // Reschedule for any remaining handlers, or handlers that have a later timeout now
+      updateTimeout (sk, coh);
     }
+    expiredTimeouts.clear ();
+  }
+
+  /**
+   * Move the timeout entry of the given handler to its current minimum timeout.
+   *
+   * @param sk
+   *        the SelectionKey of the channel
+   * @param coh
+   *        the ChannelOpsHandler attached to the key
+   */
+  private void updateTimeout (final SelectionKey sk, final ChannelOpsHandler coh)
+  {
+    TimingWheel.Entry e = coh.getTimeoutEntry ();
+    final Long timeout = sk.isValid () ? coh.getMinimumTimeout () : null;
+    if (timeout == null)
+    {
+      if (e != null)
+        timeouts.cancel (e);
+      return;
+    }
+    if (e == null)
+    {
+      e = new TimingWheel.Entry (sk);
+      coh.setTimeoutEntry (e);
+    }
+    timeouts.schedule (e, timeout.longValue ());
   }
 
   /**
@@ -384,10 +454,14 @@ class SingleSelectorRunner implements Runnable
   private void cancelKeyAndCloseChannel (final SelectionKey sk)
   {
     sk.cancel ();
+    final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
+    if (coh != null && coh.getTimeoutEntry () != null)
+      timeouts.cancel (coh.getTimeoutEntry ());
+    @SuppressWarnings ("resource")
+    final SelectableChannel sc = sk.channel ();
+    channelOwners.remove (sc, this);
     try
     {
-      @SuppressWarnings ("resource")
-      final SelectableChannel sc = sk.channel ();
       sc.close ();
     }
     catch (final IOException e)
@@ -402,41 +476,50 @@ class SingleSelectorRunner implements Runnable
     final int ret = selected.size ();
     if (logger.isLoggable (Level.FINEST))
       logger.finest (id + ": Selector handling " + ret + " selected keys");
-    for (final SelectionKey sk : selected)
+    try
     {
-      final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
-      if (logger.isLoggable (Level.FINEST))
-        logger.finest (id + ": ChanneOpsHandler " + coh);
-      if (sk.isValid ())
-      {
-        coh.handle (executorService, sk);
-      }
-      else
+      for (final SelectionKey sk : selected)
       {
-        cancelKeyAndCloseChannel (sk);
-        coh.closed ();
+        final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
+        if (logger.isLoggable (Level.FINEST))
+          logger.finest (id + ": ChanneOpsHandler " + coh);
+        try
+        {
+          if (sk.isValid ())
+          {
+            coh.handle (executorService, sk);
+            updateTimeout (sk, coh);
+          }
+          else
+          {
+            cancelKeyAndCloseChannel (sk);
+            coh.closed ();
+          }
+        }
+        catch (final RuntimeException e)
+        {
+          // one broken handler must not stop the other selected keys
+          logger.warning (id + ": Failed to handle: " + coh + ": " + e + "\n" + getStackTrace (e));
+        }
       }
     }
-    selected.clear ();
+    finally
+    {
+      selected.clear ();
+    }
     return ret;
   }
 
   private int runReturnedTasks ()
   {
-    synchronized (returnedTasksLock)
-    {
-      final List <ISelectorRunnable> toRun = returnedTasks1;
-      returnedTasks1 = returnedTasks2;
-      returnedTasks2 = toRun;
-    }
-    final int s = returnedTasks2.size ();
-    if (s > 0 && logger.isLoggable (Level.FINEST))
-      logger.finest (id + ": Selector running " + s + " returned tasks");
-    for (int i = 0; i < s; i++)
+    int s = 0;
+    ISelectorRunnable sr;
+    while ((sr = returnedTasks.poll ()) != null)
     {
+      s++;
+      stats.taskDequeued ();
       try
       {
-        final ISelectorRunnable sr = returnedTasks2.get (i);
         if (logger.isLoggable (Level.FINEST))
           logger.finest (id + ": Selector running task " + sr);
         sr.run (this);
@@ -446,7 +529,8 @@ class SingleSelectorRunner implements Runnable
         logger.log (Level.WARNING, "Got exception when running returned task", e);
       }
     }
-    returnedTasks2.clear ();
+    if (s > 0 && logger.isLoggable (Level.FINEST))
+      logger.finest (id + ": Selector ran " + s + " returned tasks");
     return s;
   }
 
@@ -465,25 +549,25 @@ class SingleSelectorRunner implements Runnable
       }
     }
 
-    synchronized (returnedTasksLock)
-    {
-      returnedTasks1.add (sr);
-    }
+    returnedTasks.add (sr);
+    stats.taskEnqueued ();
 
-    synchronized (this)
+    // Only wake the selector if it is (about to be) blocked in select.
+    if (awake.compareAndSet (false, true))
     {
       selector.wakeup ();
+      stats.wakeupIssued ();
+    }
+    else
+    {
+      stats.wakeupSkipped ();
     }
-  }
-
-  public boolean handlesChannel (final SelectableChannel channel)
-  {
-    final SelectionKey sk = channel.keyFor (selector);
-    return sk != null;
   }
 
   public void cancel (final SelectableChannel channel, final ISocketChannelHandler handler)
   {
+    if (forwardIfMoved (channel, ssr -> ssr.cancel (channel, handler)))
+      return;
     final SelectionKey sk = channel.keyFor (selector);
     if (sk == null)
       return;
@@ -494,10 +578,13 @@ class SingleSelectorRunner implements Runnable
       if (sk.isValid ())
         sk.interestOps (coh.getInterestOps ());
     }
+    updateTimeout (sk, coh);
   }
 
   public void close (final SelectableChannel channel)
   {
+    if (forwardIfMoved (channel, ssr -> ssr.close (channel)))
+      return;
     final SelectionKey sk = channel.keyFor (selector);
     if (sk == null)
       return;
@@ -506,8 +593,120 @@ class SingleSelectorRunner implements Runnable
     coh.closed ();
   }
 
+  /**
+   * Channels that have been moved to another selector may still get tasks
+   * queued here, hand those over to the new owner.
+   *
+   * @param channel
+   *        the channel the task is for
+   * @param sr
+   *        the task to forward
+   * @return true if the task was forwarded, false if it should run here
+   */
+  private boolean forwardIfMoved (final SelectableChannel channel, final ISelectorRunnable sr)
+  {
+    final SingleSelectorRunner owner = channelOwners.get (channel);
+    if (owner == null || owner == this)
+      return false;
+    owner.runSelectorTask (sr);
+    return true;
+  }
+
+  /**
+   * Move the most active channel since the last call to another selector. Only
+   * channels that have been active since the last call are considered and
+   * nothing is moved unless at least two channels have been active, moving the
+   * only busy channel would just move the load.
+   *
+   * @param target
+   *        the selector to move the channel to
+   */
+  public void migrateBusiestChannel (final SingleSelectorRunner target)
+  {
+    SelectionKey busiest = null;
+    long maxEvents = 0;
+    int active = 0;
+    for (final SelectionKey sk : selector.keys ())
+    {
+      // Acceptors are placed on purpose, never move them
+      if (!sk.isValid () || sk.channel () instanceof ServerSocketChannel)
+        continue;
+      final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
+      final long events = coh.getAndResetEvents ();
+      if (events > 0)
+        active++;
+      if (events > maxEvents)
+      {
+        maxEvents = events;
+        busiest = sk;
+      }
+    }
+    if (busiest != null && active > 1)
+      migrate (busiest, target);
+  }
+
+  /**
+   * Hand over the channel of the given key, and its handlers, to another
+   * selector. This is only safe to call on the selector thread, between
+   * selects.
+   */
+  private void migrate (final SelectionKey sk, final SingleSelectorRunner target)
+  {
+    @SuppressWarnings ("resource")
+    final SelectableChannel channel = sk.channel ();
+    final ChannelOpsHandler coh = (ChannelOpsHandler) sk.attachment ();
+    if (logger.isLoggable (Level.FINE))
+      logger.fine (id + ": moving channel: " + channel + " to " + target);
+    final TimingWheel.Entry e = coh.getTimeoutEntry ();
+    if (e != null)
+    {
+      timeouts.cancel (e);
+      coh.setTimeoutEntry (null);
+    }
+    sk.cancel ();
+    // Queue the adoption before changing owner so that it is always the
+    // first task the target runs for the channel.
+    target.runSelectorTask (ssr -> ssr.adopt (channel, coh));
+    channelOwners.put (channel, target);
+    stats.channelMigrated ();
+  }
+
+  /**
+   * Take over a channel, and its handlers, from another selector.
+   *
+   * @param channel
+   *        the channel that has been moved here
+   * @param coh
+   *        the handlers of the channel
+   * @throws IOException
+   *         if the channel can not be registered
+   */
+  private void adopt (final SelectableChannel channel, final ChannelOpsHandler coh) throws IOException
+  {
+    if (!channel.isOpen ())
+    {
+      channelOwners.remove (channel, this);
+      coh.closed ();
+      return;
+    }
+    final SelectionKey old = channel.keyFor (selector);
+    if (old != null)
+    {
+      // The channel was moved away from here recently and the old key has not
+      // been removed from the selector yet.
+      selector.selectNow ();
+    }
+    final SelectionKey sk = channel.register (selector, coh.getInterestOps (), coh);
+    updateTimeout (sk, coh);
+  }
+
+  public SelectorStatistics getStatistics ()
+  {
+    return stats;
+  }
+
   public void visit (final ISelectorVisitor visitor)
   {
-    visitor.selector (selector);
+    visitor.selector (selector, stats);
   }
 }
@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.helger.rnio.IBufferHandler;
+import com.helger.rnio.statistics.BufferPoolStatistics;
+
+/**
+ * A buffer handler that pools direct buffers of a few different sizes.
+ * <p>
+ * Each size class has a shared depot that the magazines, small stacks of
+ * buffers, are refilled from and spill over to in batches. A selector thread
+ * has magazines of its own that only it uses, so it gets and returns buffers
+ * without taking a lock unless it has to go to the depot. The other threads
+ * share a number of striped magazines, a thread always uses the same one.
+ * Getting and returning a buffer does not allocate anything once the pool is
+ * warm.
+ * <p>
+ * The total amount of pooled memory is capped, buffers that are returned when
+ * the pool is full are dropped and left to the garbage collector.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SizeClassedBufferHandler implements IBufferHandler
+{
+  /** The default buffer sizes */
+  public static final int [] DEFAULT_SIZES = { 4096, 16 * 1024, 64 * 1024, 128 * 1024 };
+
+  /** The default limit for the pooled memory, 64 MiB */
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+  private static final int MAX_MAGAZINE_SIZE = 16;
+
+  /** Set on the selector threads, they get magazines of their own. */
+  private static final ThreadLocal <Boolean> SELECTOR_THREAD = new ThreadLocal<> ();
+
+  private final SizeClass [] classes;
+  private final int stripes;
+  private final int stripeMask;
+  /** The magazines of a selector thread, null for other threads. */
+  private final ThreadLocal <Magazine []> ownMagazines = ThreadLocal.withInitial (this::createOwnMagazines);
+  private final AtomicInteger ownMagazineSets = new AtomicInteger ();
+
+  /**
+   * Create a new SizeClassedBufferHandler with the default sizes and limit.
+   */
+  public SizeClassedBufferHandler ()
+  {
+    this (DEFAULT_SIZES, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  /**
+   * Create a new SizeClassedBufferHandler.
+   *
+   * @param sizes
+   *        the buffer sizes to use, the smallest is the normal buffer size and
+   *        the largest is the size used when growing buffers
+   * @param maxPooledBytes
+   *        the maximum number of bytes to keep in pooled buffers, the limit is
+   *        split evenly between the size classes
+   */
+  public SizeClassedBufferHandler (final int [] sizes, final long maxPooledBytes)
+  {
+    if (sizes.length == 0)
+      throw new IllegalArgumentException ("At least one buffer size is needed");
+    final int [] sorted = sizes.clone ();
+    Arrays.sort (sorted);
+    final int cpus = Runtime.getRuntime ().availableProcessors ();
+    stripes = Integer.highestOneBit (Math.max (1, cpus * 2 - 1)) << 1;
+    stripeMask = stripes - 1;
+    classes = new SizeClass [sorted.length];
+    final long budget = Math.max (0, maxPooledBytes) / sorted.length;
+    for (int i = 0; i < sorted.length; i++)
+    {
+      if (sorted[i] <= 0 || (i > 0 && sorted[i] == sorted[i - 1]))
+        throw new IllegalArgumentException ("Bad buffer sizes: " + Arrays.toString (sizes));
+      final int count = (int) Math.min (budget / sorted[i], Integer.MAX_VALUE / 2);
+      final int magazineSize = Math.min (MAX_MAGAZINE_SIZE, count / (2 * stripes));
+      classes[i] = new SizeClass (sorted[i], stripes, magazineSize, count - magazineSize * stripes);
+    }
+  }
+
+  /**
+   * Mark the calling thread as a selector thread. Each selector thread gets
+   * magazines of its own the first time it uses a buffer handler.
+   */
+  static void setSelectorThread ()
+  {
+    SELECTOR_THREAD.set (Boolean.TRUE);
+  }
+
+  /**
+   * Create the magazines of a selector thread. Their room is taken from the
+   * depots so the limit of pooled memory holds. The buffers in the magazines
+   * of a thread that ends are left to the garbage collector, so the number of
+   * threads with magazines of their own is limited to the number of stripes.
+   */
+  private Magazine [] createOwnMagazines ()
+  {
+    if (SELECTOR_THREAD.get () == null || ownMagazineSets.incrementAndGet () > stripes)
+      return null;
+    final Magazine [] ret = new Magazine [classes.length];
+    for (int i = 0; i < classes.length; i++)
+      ret[i] = classes[i].createOwnMagazine ();
+    return ret;
+  }
+
+  private ByteBuffer get (final int sizeClass)
+  {
+    final SizeClass sc = classes[sizeClass];
+    final Magazine [] own = ownMagazines.get ();
+    ByteBuffer b;
+    if (own != null)
+    {
+      b = sc.take (own[sizeClass]);
+    }
+    else
+    {
+      final Magazine m = sc.magazines[(int) Thread.currentThread ().getId () & stripeMask];
+      synchronized (m)
+      {
+        b = sc.take (m);
+      }
+    }
+    if (b == null)
+      b = ByteBuffer.allocateDirect (sc.size);
+    b.clear ();
+    return b;
+  }
+
+  private int getSizeClass (final int capacity)
+  {
+    for (int i = 0; i < classes.length; i++)
+      if (classes[i].size == capacity)
+        return i;
+    return -1;
+  }
+
+  public ByteBuffer getBuffer ()
+  {
+    return get (0);
+  }
+
+  /**
+   * Get a buffer that can hold at least the given number of bytes.
+   *
+   * @param minSize
+   *        the wanted size
+   * @return a cleared buffer from the smallest size class that is large enough,
+   *         or from the largest size class if none is
+   */
+  @Override
+  public ByteBuffer getBuffer (final int minSize)
+  {
+    for (int i = 0; i < classes.length; i++)
+      if (classes[i].size >= minSize)
+        return get (i);
+    return get (classes.length - 1);
+  }
+
+  public void putBuffer (final ByteBuffer buffer)
+  {
+    if (buffer == null)
+      throw new IllegalArgumentException ("null buffer not allowed");
+    final int sizeClass = getSizeClass (buffer.capacity ());
+    // Buffers that we did not hand out are left to the garbage collector
+    if (sizeClass == -1 || !buffer.isDirect ())
+      return;
+    final SizeClass sc = classes[sizeClass];
+    final Magazine [] own = ownMagazines.get ();
+    if (own != null)
+    {
+      sc.put (own[sizeClass], buffer);
+      return;
+    }
+    final Magazine m = sc.magazines[(int) Thread.currentThread ().getId () & stripeMask];
+    synchronized (m)
+    {
+      sc.put (m, buffer);
+    }
+  }
+
+  public ByteBuffer growBuffer (final ByteBuffer buffer)
+  {
+    final ByteBuffer lb = get (classes.length - 1);
+    if (buffer != null)
+    {
+      lb.put (buffer);
+      putBuffer (buffer);
+    }
+    return lb;
+  }
+
+  /**
+   * Check if the given buffer is from the largest size class. Buffers from
+   * the middle size classes are not large, so growing them gives a buffer from
+   * the largest size class.
+   *
+   * @param buffer
+   *        the ByteBuffer to check
+   * @return true if the buffer is at least as large as the largest size class
+   */
+  public boolean isLarge (final ByteBuffer buffer)
+  {
+    return buffer.capacity () >= classes[classes.length - 1].size;
+  }
+
+  /**
+   * Get the statistics for the size classes, smallest size first.
+   *
+   * @return a list of the buffer pool statistics
+   */
+  public List <BufferPoolStatistics> getStatistics ()
+  {
+    final List <BufferPoolStatistics> ret = new ArrayList<> (classes.length);
+    for (final SizeClass sc : classes)
+      ret.add (sc.stats);
+    return ret;
+  }
+
+  /** A fixed size stack of buffers. */
+  private static final class Magazine
+  {
+    private final ByteBuffer [] buffers;
+    private int count;
+    private int limit;
+
+    public Magazine (final int size)
+    {
+      buffers = new ByteBuffer [size];
+      limit = size;
+    }
+
+    /** Lower the number of buffers this magazine may hold. */
+    public void reserve (final int n)
+    {
+      limit = Math.max (0, limit - n);
+    }
+
+    public boolean isEmpty ()
+    {
+      return count == 0;
+    }
+
+    public boolean isFull ()
+    {
+      return count >= limit;
+    }
+
+    public ByteBuffer pop ()
+    {
+      if (count == 0)
+        return null;
+      final ByteBuffer b = buffers[--count];
+      buffers[count] = null;
+      return b;
+    }
+
+    public boolean push (final ByteBuffer buffer)
+    {
+      if (count >= limit)
+        return false;
+      buffers[count++] = buffer;
+      return true;
+    }
+  }
+
+  private static final class SizeClass
+  {
+    private final int size;
+    private final int magazineSize;
+    private final Magazine [] magazines;
+    private final Magazine depot;
+    private final BufferPoolStatistics stats;
+
+    public SizeClass (final int size, final int stripes, final int magazineSize, final int depotSize)
+    {
+      this.size = size;
+      this.magazineSize = magazineSize;
+      magazines = new Magazine [stripes];
+      for (int i = 0; i < stripes; i++)
+        magazines[i] = new Magazine (magazineSize);
+      depot = new Magazine (depotSize);
+      stats = new BufferPoolStatistics (size, magazineSize * stripes + depotSize);
+    }
+
+    public Magazine createOwnMagazine ()
+    {
+      synchronized (depot)
+      {
+        final int n = Math.min (magazineSize, depot.limit);
+        depot.reserve (n);
+        return new Magazine (n);
+      }
+    }
+
+    /**
+     * Take a buffer from a magazine, the caller must hold the lock of the
+     * magazine if it is shared.
+     *
+     * @return the buffer or null if the pool is empty
+     */
+    public ByteBuffer take (final Magazine m)
+    {
+      ByteBuffer b = m.pop ();
+      if (b != null)
+      {
+        stats.hit ();
+      }
+      else
+      {
+        // Refill half the magazine so the next gets are local
+        boolean fromDepot;
+        synchronized (depot)
+        {
+          fromDepot = !depot.isEmpty ();
+          for (int i = m.buffers.length / 2; i > 0 && !depot.isEmpty (); i--)
+            m.push (depot.pop ());
+          b = depot.pop ();
+        }
+        if (b == null)
+          b = m.pop ();
+        if (fromDepot)
+          stats.depotHit ();
+        else
+          stats.miss ();
+      }
+      return b;
+    }
+
+    /**
+     * Return a buffer, the caller must hold the lock of the magazine if it is
+     * shared.
+     */
+    public void put (final Magazine m, final ByteBuffer buffer)
+    {
+      stats.returned ();
+      if (m.push (buffer))
+        return;
+      // Magazine is full, move half of it and the buffer to the depot
+      synchronized (depot)
+      {
+        for (int i = m.buffers.length / 2; i > 0 && !depot.isFull (); i--)
+          depot.push (m.pop ());
+        if (depot.push (buffer))
+          return;
+      }
+      if (m.push (buffer))
+        return;
+      stats.trimmed ();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.nio.channels.SelectionKey;
+import java.util.List;
+
+/**
+ * A hashed timing wheel that keeps track of the channel timeouts of one
+ * selector.
+ * <p>
+ * Each entry is hashed into a slot by the tick it expires in, so scheduling
+ * and cancelling is O(1) and expiring only touches the slots that have passed
+ * since the last call. Timeouts are rounded up to the next tick, so they may
+ * fire up to one tick late.
+ * <p>
+ * This class uses no synchronization, it should only be used from the selector
+ * thread.
+ */
+class TimingWheel
+{
+  /**
+   * An entry in the wheel. Each ChannelOpsHandler owns at most one entry that is
+   * moved around in the wheel when its minimum timeout changes.
+   */
+  static final class Entry
+  {
+    private final SelectionKey sk;
+    private long tick;
+    private Entry prev;
+    private Entry next;
+    private boolean scheduled = false;
+
+    Entry (final SelectionKey sk)
+    {
+      this.sk = sk;
+    }
+
+    SelectionKey getSelectionKey ()
+    {
+      return sk;
+    }
+  }
+
+  private final long tickMillis;
+  private final Entry [] slots;
+  private final int mask;
+  /** All ticks up to and including this one have been expired. */
+  private long currentTick;
+  private int size = 0;
+
+  /**
+   * Create a new TimingWheel.
+   *
+   * @param tickMillis
+   *        the number of millis for each tick
+   * @param numSlots
+   *        the number of slots in the wheel, must be a power of two
+   * @param now
+   *        the current time in millis
+   */
+  public TimingWheel (final long tickMillis, final int numSlots, final long now)
+  {
+    if (tickMillis <= 0)
+      throw new IllegalArgumentException ("tickMillis must be positive: " + tickMillis);
+    if (numSlots <= 0 || (numSlots & (numSlots - 1)) != 0)
+      throw new IllegalArgumentException ("numSlots must be a power of two: " + numSlots);
+    this.tickMillis = tickMillis;
+    slots = new Entry [numSlots];
+    mask = numSlots - 1;
+    currentTick = now / tickMillis;
+  }
+
+  /**
+   * Schedule, or reschedule, the given entry.
+   *
+   * @param e
+   *        the entry to schedule
+   * @param deadline
+   *        the time in millis when the entry times out
+   */
+  public void schedule (final Entry e, final long deadline)
+  {
+    long tick = (deadline + tickMillis - 1) / tickMillis;
+    if (tick <= currentTick)
+      tick = currentTick + 1;
+    if (e.scheduled)
+    {
+      if (e.tick == tick)
+        return;
+      unlink (e);
+    }
+    e.tick = tick;
+    link (e);
+  }
+
+  /**
+   * Remove the given entry from the wheel, does nothing if the entry is not
+   * scheduled.
+   *
+   * @param e
+   *        the entry to cancel
+   */
+  public void cancel (final Entry e)
+  {
+    if (e.scheduled)
+      unlink (e);
+  }
+
+  /**
+   * Remove all the entries that have timed out.
+   *
+   * @param now
+   *        the current time in millis
+   * @param expired
+   *        the list that the expired entries will be added to
+   */
+  public void expire (final long now, final List <Entry> expired)
+  {
+    final long nowTick = now / tickMillis;
+    if (nowTick <= currentTick)
+      return;
+    if (size > 0)
+    {
+      // If we have been away for more than a revolution each slot is visited once
+      final long ticks = Math.min (nowTick - currentTick, slots.length);
+      for (long i = 1; i <= ticks; i++)
+      {
+        Entry e = slots[(int) ((currentTick + i) & mask)];
+        while (e != null)
+        {
+          final Entry next = e.next;
+          if (e.tick <= nowTick)
+          {
+            unlink (e);
+            expired.add (e);
+          }
+          e = next;
+        }
+      }
+    }
+    currentTick = nowTick;
+  }
+
+  /**
+   * Find the time when the next tick with any entries will expire. Only one
+   * revolution of the wheel is scanned, if no entry is found in it the time of
+   * the last tick in the revolution is returned.
+   *
+   * @return the time in millis of the next expiring tick, or null if the wheel
+   *         is empty
+   */
+  public Long getNextTimeout ()
+  {
+    if (size == 0)
+      return null;
+    for (long i = 1; i <= slots.length; i++)
+    {
+      final long tick = currentTick + i;
+      for (Entry e = slots[(int) (tick & mask)]; e != null; e = e.next)
+      {
+        if (e.tick == tick)
+          return Long.valueOf (tick * tickMillis);
+      }
+    }
+    return Long.valueOf ((currentTick + slots.length) * tickMillis);
+  }
+
+  /**
+   * Get the number of scheduled entries.
+   *
+   * @return the number of entries in the wheel
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  private void link (final Entry e)
+  {
+    final int slot = (int) (e.tick & mask);
+    final Entry head = slots[slot];
+    e.prev = null;
+    e.next = head;
+    if (head != null)
+      head.prev = e;
+    slots[slot] = e;
+    e.scheduled = true;
+    size++;
+  }
+
+  private void unlink (final Entry e)
+  {
+    if (e.prev != null)
+      e.prev.next = e.next;
+    else
+      slots[(int) (e.tick & mask)] = e.next;
+    if (e.next != null)
+      e.next.prev = e.prev;
+    e.prev = null;
+    e.next = null;
+    e.scheduled = false;
+    size--;
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Helper for creating an executor that runs each task in its own virtual
+ * thread. Virtual threads are cheap to block, so this suits the blocking
+ * tasks given to INioHandler.runThreadTask, like dns lookups and file reads.
+ * <p>
+ * Virtual threads are only available from java 21, use {@link #isSupported()}
+ * to check if they can be used.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class VirtualThreads
+{
+  private static final Method NEW_EXECUTOR = findNewExecutor ();
+
+  private VirtualThreads ()
+  {}
+
+  private static Method findNewExecutor ()
+  {
+    try
+    {
+      return Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+    }
+    catch (final ReflectiveOperationException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Check if virtual threads can be used.
+   *
+   * @return true if the running jvm has virtual threads
+   */
+  public static boolean isSupported ()
+  {
+    return NEW_EXECUTOR != null;
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for each task.
+   *
+   * @return a new ExecutorService
+   * @throws UnsupportedOperationException
+   *         if virtual threads are not available
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor ()
+  {
+    if (NEW_EXECUTOR == null)
+      throw new UnsupportedOperationException ("Virtual threads are not available");
+    try
+    {
+      return (ExecutorService) NEW_EXECUTOR.invoke (null);
+    }
+    catch (final IllegalAccessException e)
+    {
+      throw new UnsupportedOperationException ("Virtual threads are not available", e);
+    }
+    catch (final InvocationTargetException e)
+    {
+      // Virtual threads may be a preview feature that is not enabled
+      throw new UnsupportedOperationException ("Virtual threads are not available", e.getCause ());
+    }
+  }
+}
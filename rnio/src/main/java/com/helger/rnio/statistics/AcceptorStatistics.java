@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics for one or more acceptors.
+ * <p>
+ * The accept latency of a connection is the time from when the acceptor was
+ * woken up until the connection had been accepted and handed to the listener,
+ * so it grows when many connections are waiting in the backlog.
+ * <p>
+ * This class is thread safe and uses no locking.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class AcceptorStatistics
+{
+  /** The number of buckets in the accepts per wakeup distribution. */
+  public static final int NUM_BUCKETS = 8;
+
+  private final LongAdder wakeups = new LongAdder ();
+  private final LongAdder accepts = new LongAdder ();
+  private final LongAdder totalLatencyNanos = new LongAdder ();
+  private final LongAccumulator maxLatencyNanos = new LongAccumulator (Math::max, 0);
+  private final LongAdder [] acceptsPerWakeup = new LongAdder [NUM_BUCKETS];
+
+  /**
+   * Create a new empty AcceptorStatistics.
+   */
+  public AcceptorStatistics ()
+  {
+    for (int i = 0; i < NUM_BUCKETS; i++)
+      acceptsPerWakeup[i] = new LongAdder ();
+  }
+
+  /**
+   * One connection has been accepted.
+   *
+   * @param latencyNanos
+   *        the time since the acceptor was woken up
+   */
+  public void accepted (final long latencyNanos)
+  {
+    accepts.increment ();
+    totalLatencyNanos.add (latencyNanos);
+    maxLatencyNanos.accumulate (latencyNanos);
+  }
+
+  /**
+   * An acceptor has handled one wakeup.
+   *
+   * @param accepted
+   *        the number of connections accepted during the wakeup
+   */
+  public void wakeup (final int accepted)
+  {
+    wakeups.increment ();
+    acceptsPerWakeup[getBucket (accepted)].increment ();
+  }
+
+  /**
+   * Get the bucket for the given number of accepts. Bucket 0 is for wakeups
+   * that did not accept anything, bucket 1 is for exactly one accept, bucket 2
+   * for 2-3 accepts, bucket 3 for 4-7 and so on, the last bucket takes all
+   * larger values.
+   *
+   * @param accepted
+   *        the number of accepts in one wakeup
+   * @return the bucket index
+   */
+  public static int getBucket (final int accepted)
+  {
+    if (accepted <= 0)
+      return 0;
+    final int b = 32 - Integer.numberOfLeadingZeros (accepted);
+    return Math.min (b, NUM_BUCKETS - 1);
+  }
+
+  /**
+   * Get the smallest number of accepts that is counted in the given bucket.
+   *
+   * @param bucket
+   *        the bucket index
+   * @return the lower bound of the bucket
+   */
+  public static int getBucketLowerBound (final int bucket)
+  {
+    return bucket == 0 ? 0 : 1 << (bucket - 1);
+  }
+
+  /**
+   * Get the number of wakeups.
+   *
+   * @return the number of times any acceptor was woken up
+   */
+  public long getWakeups ()
+  {
+    return wakeups.sum ();
+  }
+
+  /**
+   * Get the number of accepted connections.
+   *
+   * @return the number of accepts
+   */
+  public long getAccepts ()
+  {
+    return accepts.sum ();
+  }
+
+  /**
+   * Get the total accept latency.
+   *
+   * @return the sum of the latency of all accepts, in nanos
+   */
+  public long getTotalLatencyNanos ()
+  {
+    return totalLatencyNanos.sum ();
+  }
+
+  /**
+   * Get the largest accept latency seen.
+   *
+   * @return the max latency in nanos
+   */
+  public long getMaxLatencyNanos ()
+  {
+    return maxLatencyNanos.get ();
+  }
+
+  /**
+   * Get the number of wakeups in the given bucket.
+   *
+   * @param bucket
+   *        the bucket index, see {@link #getBucket(int)}
+   * @return the number of wakeups that accepted a number of connections in the
+   *         range of the bucket
+   */
+  public long getAcceptsPerWakeup (final int bucket)
+  {
+    return acceptsPerWakeup[bucket].sum ();
+  }
+}
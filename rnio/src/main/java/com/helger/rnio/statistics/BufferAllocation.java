@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+/**
+ * Information about a buffer that was handed out by a leak detecting buffer
+ * handler.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class BufferAllocation
+{
+  private final int capacity;
+  private final long allocated;
+  private final String thread;
+  private final StackTraceElement [] stack;
+
+  /**
+   * Create a new BufferAllocation.
+   *
+   * @param capacity
+   *        the capacity of the buffer
+   * @param allocated
+   *        the time, in millis, when the buffer was handed out
+   * @param thread
+   *        the name of the thread that got the buffer
+   * @param stack
+   *        the stack of the caller, null if this allocation was not sampled
+   */
+  public BufferAllocation (final int capacity,
+                           final long allocated,
+                           final String thread,
+                           final StackTraceElement [] stack)
+  {
+    this.capacity = capacity;
+    this.allocated = allocated;
+    this.thread = thread;
+    this.stack = stack;
+  }
+
+  /**
+   * Get the capacity of the buffer.
+   *
+   * @return the buffer capacity in bytes
+   */
+  public int getCapacity ()
+  {
+    return capacity;
+  }
+
+  /**
+   * Get the time the buffer was handed out.
+   *
+   * @return the allocation time in millis
+   */
+  public long getAllocated ()
+  {
+    return allocated;
+  }
+
+  /**
+   * Get the name of the thread that got the buffer.
+   *
+   * @return the thread name
+   */
+  public String getThread ()
+  {
+    return thread;
+  }
+
+  /**
+   * Get the stack of the caller that got the buffer.
+   *
+   * @return the allocation stack or null if this allocation was not sampled
+   */
+  public StackTraceElement [] getStackTrace ()
+  {
+    return stack;
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and recent findings of a leak detecting buffer handler.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class BufferLeakStatistics
+{
+  private final int maxMisuses;
+  private final LongAdder allocations = new LongAdder ();
+  private final LongAdder sampled = new LongAdder ();
+  private final LongAdder returns = new LongAdder ();
+  private final LongAdder [] misuses = new LongAdder [BufferMisuse.Kind.values ().length];
+  private final Deque <BufferMisuse> recent = new ArrayDeque<> ();
+
+  /**
+   * Create a new BufferLeakStatistics.
+   *
+   * @param maxMisuses
+   *        the number of recent misuses to keep
+   */
+  public BufferLeakStatistics (final int maxMisuses)
+  {
+    this.maxMisuses = maxMisuses;
+    for (int i = 0; i < misuses.length; i++)
+      misuses[i] = new LongAdder ();
+  }
+
+  /**
+   * A buffer was handed out.
+   *
+   * @param wasSampled
+   *        true if the allocation stack was recorded
+   */
+  public void allocated (final boolean wasSampled)
+  {
+    allocations.increment ();
+    if (wasSampled)
+      sampled.increment ();
+  }
+
+  /**
+   * A buffer was correctly returned.
+   */
+  public void returned ()
+  {
+    returns.increment ();
+  }
+
+  /**
+   * A buffer misuse was detected.
+   *
+   * @param misuse
+   *        the misuse
+   */
+  public void misuse (final BufferMisuse misuse)
+  {
+    misuses[misuse.getKind ().ordinal ()].increment ();
+    synchronized (recent)
+    {
+      if (recent.size () == maxMisuses)
+        recent.removeFirst ();
+      recent.addLast (misuse);
+    }
+  }
+
+  /**
+   * Get the number of buffers handed out.
+   *
+   * @return the number of allocations
+   */
+  public long getAllocations ()
+  {
+    return allocations.sum ();
+  }
+
+  /**
+   * Get the number of allocations that had their stack recorded.
+   *
+   * @return the number of sampled allocations
+   */
+  public long getSampled ()
+  {
+    return sampled.sum ();
+  }
+
+  /**
+   * Get the number of correctly returned buffers.
+   *
+   * @return the number of returns
+   */
+  public long getReturns ()
+  {
+    return returns.sum ();
+  }
+
+  /**
+   * Get the number of detected misuses of the given kind.
+   *
+   * @param kind
+   *        the kind of misuse
+   * @return the number of misuses
+   */
+  public long getMisuses (final BufferMisuse.Kind kind)
+  {
+    return misuses[kind.ordinal ()].sum ();
+  }
+
+  /**
+   * Get the most recent misuses, oldest first.
+   *
+   * @return a copy of the recent misuses
+   */
+  public List <BufferMisuse> getRecentMisuses ()
+  {
+    synchronized (recent)
+    {
+      return new ArrayList<> (recent);
+    }
+  }
+}
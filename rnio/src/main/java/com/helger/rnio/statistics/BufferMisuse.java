@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+/**
+ * A detected misuse of a pooled buffer.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class BufferMisuse
+{
+  /** The different kinds of misuse. */
+  public enum Kind
+  {
+    /** A buffer was returned a second time. */
+    DOUBLE_RETURN,
+    /** A buffer that was never handed out was returned. */
+    UNKNOWN_RETURN,
+    /** A buffer was garbage collected without being returned. */
+    LEAK,
+    /** A buffer was written to after it had been returned. */
+    WRITE_AFTER_RETURN
+  }
+
+  private final Kind kind;
+  private final long detected;
+  private final int capacity;
+  private final BufferAllocation allocation;
+  private final StackTraceElement [] stack;
+
+  /**
+   * Create a new BufferMisuse.
+   *
+   * @param kind
+   *        the kind of misuse
+   * @param detected
+   *        the time, in millis, when the misuse was detected
+   * @param capacity
+   *        the capacity of the buffer
+   * @param allocation
+   *        the last allocation of the buffer, may be null if it is not known
+   * @param stack
+   *        the stack where the misuse was detected, may be null
+   */
+  public BufferMisuse (final Kind kind,
+                       final long detected,
+                       final int capacity,
+                       final BufferAllocation allocation,
+                       final StackTraceElement [] stack)
+  {
+    this.kind = kind;
+    this.detected = detected;
+    this.capacity = capacity;
+    this.allocation = allocation;
+    this.stack = stack;
+  }
+
+  /**
+   * Get the kind of misuse.
+   *
+   * @return the kind of misuse
+   */
+  public Kind getKind ()
+  {
+    return kind;
+  }
+
+  /**
+   * Get the time the misuse was detected.
+   *
+   * @return the detection time in millis
+   */
+  public long getDetected ()
+  {
+    return detected;
+  }
+
+  /**
+   * Get the capacity of the buffer.
+   *
+   * @return the buffer capacity in bytes
+   */
+  public int getCapacity ()
+  {
+    return capacity;
+  }
+
+  /**
+   * Get the last allocation of the buffer.
+   *
+   * @return the allocation or null if it is not known
+   */
+  public BufferAllocation getAllocation ()
+  {
+    return allocation;
+  }
+
+  /**
+   * Get the stack where the misuse was detected. For leaks this is null since
+   * they are found by the garbage collector.
+   *
+   * @return the detection stack or null
+   */
+  public StackTraceElement [] getStackTrace ()
+  {
+    return stack;
+  }
+}
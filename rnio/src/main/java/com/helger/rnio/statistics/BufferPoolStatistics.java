@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one size class of a buffer pool.
+ * <p>
+ * This class is thread safe, the counters may be updated and read from any
+ * thread without locking.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class BufferPoolStatistics
+{
+  private final int bufferSize;
+  private final int maxPooled;
+  private final LongAdder hits = new LongAdder ();
+  private final LongAdder depotHits = new LongAdder ();
+  private final LongAdder misses = new LongAdder ();
+  private final LongAdder returns = new LongAdder ();
+  private final LongAdder trims = new LongAdder ();
+
+  /**
+   * Create a new BufferPoolStatistics.
+   *
+   * @param bufferSize
+   *        the size of the buffers in this size class
+   * @param maxPooled
+   *        the maximum number of buffers of this size class that are pooled
+   */
+  public BufferPoolStatistics (final int bufferSize, final int maxPooled)
+  {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * A buffer was taken from the local magazine.
+   */
+  public void hit ()
+  {
+    hits.increment ();
+  }
+
+  /**
+   * A buffer was taken from the shared depot.
+   */
+  public void depotHit ()
+  {
+    depotHits.increment ();
+  }
+
+  /**
+   * No pooled buffer was available so a new one was allocated.
+   */
+  public void miss ()
+  {
+    misses.increment ();
+  }
+
+  /**
+   * A buffer was returned to the pool.
+   */
+  public void returned ()
+  {
+    returns.increment ();
+  }
+
+  /**
+   * A returned buffer was dropped since the pool was full.
+   */
+  public void trimmed ()
+  {
+    trims.increment ();
+  }
+
+  /**
+   * Get the size of the buffers in this size class.
+   *
+   * @return the buffer size in bytes
+   */
+  public int getBufferSize ()
+  {
+    return bufferSize;
+  }
+
+  /**
+   * Get the maximum number of buffers of this size class that are pooled.
+   *
+   * @return the pool limit
+   */
+  public int getMaxPooled ()
+  {
+    return maxPooled;
+  }
+
+  /**
+   * Get the number of buffers taken from a local magazine.
+   *
+   * @return the number of magazine hits
+   */
+  public long getHits ()
+  {
+    return hits.sum ();
+  }
+
+  /**
+   * Get the number of buffers taken from the shared depot.
+   *
+   * @return the number of depot hits
+   */
+  public long getDepotHits ()
+  {
+    return depotHits.sum ();
+  }
+
+  /**
+   * Get the number of buffers that had to be allocated.
+   *
+   * @return the number of misses
+   */
+  public long getMisses ()
+  {
+    return misses.sum ();
+  }
+
+  /**
+   * Get the number of buffers returned to the pool.
+   *
+   * @return the number of returned buffers
+   */
+  public long getReturns ()
+  {
+    return returns.sum ();
+  }
+
+  /**
+   * Get the number of returned buffers that were dropped since the pool was
+   * full.
+   *
+   * @return the number of trimmed buffers
+   */
+  public long getTrims ()
+  {
+    return trims.sum ();
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one lane of a lane executor. A lane runs the tasks of one or
+ * more task groups with its own threads and its own bounded queue.
+ * <p>
+ * This class is thread safe, the counters may be updated and read from any
+ * thread without locking.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class LaneStatistics
+{
+  private final String name;
+  private final int maxThreads;
+  private final int maxQueued;
+  private final String policy;
+  private final AtomicInteger queued = new AtomicInteger ();
+  private final LongAccumulator maxQueueDepth = new LongAccumulator (Math::max, 0);
+  private final LongAdder submitted = new LongAdder ();
+  private final LongAdder completed = new LongAdder ();
+  private final LongAdder rejected = new LongAdder ();
+  private final LongAdder callerRuns = new LongAdder ();
+  private final LongAdder totalWaitNanos = new LongAdder ();
+  private final LongAccumulator maxWaitNanos = new LongAccumulator (Math::max, 0);
+
+  /**
+   * Create a new LaneStatistics.
+   *
+   * @param name
+   *        the name of the lane
+   * @param maxThreads
+   *        the maximum number of threads of the lane
+   * @param maxQueued
+   *        the maximum number of tasks that may wait in the lane
+   * @param policy
+   *        the name of the policy used when the lane is full
+   */
+  public LaneStatistics (final String name, final int maxThreads, final int maxQueued, final String policy)
+  {
+    this.name = name;
+    this.maxThreads = maxThreads;
+    this.maxQueued = maxQueued;
+    this.policy = policy;
+  }
+
+  /**
+   * A task was handed to the lane.
+   */
+  public void taskSubmitted ()
+  {
+    submitted.increment ();
+    maxQueueDepth.accumulate (queued.incrementAndGet ());
+  }
+
+  /**
+   * A task was taken from the queue and is about to run.
+   *
+   * @param waitNanos
+   *        the time the task waited in the queue
+   */
+  public void taskStarted (final long waitNanos)
+  {
+    queued.decrementAndGet ();
+    totalWaitNanos.add (waitNanos);
+    maxWaitNanos.accumulate (waitNanos);
+  }
+
+  /**
+   * A task has finished running.
+   */
+  public void taskCompleted ()
+  {
+    completed.increment ();
+  }
+
+  /**
+   * A task was rejected since the lane was full.
+   */
+  public void taskRejected ()
+  {
+    queued.decrementAndGet ();
+    rejected.increment ();
+  }
+
+  /**
+   * A task was run by the submitting thread since the lane was full.
+   */
+  public void taskRunByCaller ()
+  {
+    callerRuns.increment ();
+  }
+
+  /**
+   * Get the name of the lane.
+   *
+   * @return the lane name
+   */
+  public String getName ()
+  {
+    return name;
+  }
+
+  /**
+   * Get the maximum number of threads of the lane.
+   *
+   * @return the thread limit
+   */
+  public int getMaxThreads ()
+  {
+    return maxThreads;
+  }
+
+  /**
+   * Get the maximum number of tasks that may wait in the lane.
+   *
+   * @return the queue limit
+   */
+  public int getMaxQueued ()
+  {
+    return maxQueued;
+  }
+
+  /**
+   * Get the policy used when the lane is full.
+   *
+   * @return the name of the rejection policy
+   */
+  public String getPolicy ()
+  {
+    return policy;
+  }
+
+  /**
+   * Get the number of tasks that have been submitted but not yet started.
+   *
+   * @return the current queue depth
+   */
+  public int getQueueDepth ()
+  {
+    return queued.get ();
+  }
+
+  /**
+   * Get the largest queue depth seen.
+   *
+   * @return the maximum queue depth
+   */
+  public long getMaxQueueDepth ()
+  {
+    return maxQueueDepth.get ();
+  }
+
+  /**
+   * Get the number of tasks handed to the lane.
+   *
+   * @return the number of submitted tasks
+   */
+  public long getSubmitted ()
+  {
+    return submitted.sum ();
+  }
+
+  /**
+   * Get the number of tasks that have finished.
+   *
+   * @return the number of completed tasks
+   */
+  public long getCompleted ()
+  {
+    return completed.sum ();
+  }
+
+  /**
+   * Get the number of tasks that were rejected.
+   *
+   * @return the number of rejected tasks
+   */
+  public long getRejected ()
+  {
+    return rejected.sum ();
+  }
+
+  /**
+   * Get the number of tasks that were run by the submitting thread.
+   *
+   * @return the number of tasks run by the caller
+   */
+  public long getCallerRuns ()
+  {
+    return callerRuns.sum ();
+  }
+
+  /**
+   * Get the total time tasks have spent waiting in the queue.
+   *
+   * @return the total wait time in nanos
+   */
+  public long getTotalWaitNanos ()
+  {
+    return totalWaitNanos.sum ();
+  }
+
+  /**
+   * Get the longest time a task has spent waiting in the queue.
+   *
+   * @return the maximum wait time in nanos
+   */
+  public long getMaxWaitNanos ()
+  {
+    return maxWaitNanos.get ();
+  }
+}
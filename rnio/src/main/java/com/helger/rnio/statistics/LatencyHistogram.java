@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A fixed size histogram of task times that can be used to find percentiles.
+ * <p>
+ * Values below 16 are counted exactly, larger values are counted in 16 buckets
+ * for each power of two, so the error of a percentile is at most about 6%.
+ * Values up to 2^40 are handled, larger values are counted in the last bucket.
+ * <p>
+ * This class is thread safe, values can be recorded and percentiles read from
+ * any thread without locking.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray (NUM_BUCKETS);
+  private final LongAccumulator max = new LongAccumulator (Math::max, 0);
+
+  /**
+   * Record one value.
+   *
+   * @param value
+   *        the value to record, negative values are counted as 0
+   */
+  public void record (final long value)
+  {
+    final long v = Math.max (0, value);
+    counts.incrementAndGet (getBucket (v));
+    max.accumulate (v);
+  }
+
+  static int getBucket (final long value)
+  {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    final int exponent = 63 - Long.numberOfLeadingZeros (value);
+    if (exponent > MAX_EXPONENT)
+      return NUM_BUCKETS - 1;
+    final int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long getBucketUpperBound (final int bucket)
+  {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final long sub = bucket % SUB_BUCKETS;
+    final long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + sub * width + width - 1;
+  }
+
+  /**
+   * Get the number of recorded values.
+   *
+   * @return the number of values
+   */
+  public long getCount ()
+  {
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++)
+      total += counts.get (i);
+    return total;
+  }
+
+  /**
+   * Get the largest recorded value.
+   *
+   * @return the maximum value
+   */
+  public long getMax ()
+  {
+    return max.get ();
+  }
+
+  /**
+   * Get a percentile of the recorded values.
+   *
+   * @param percentile
+   *        the percentile to get, between 0 and 100, like 99.9
+   * @return the value that the given percentage of the recorded values are at
+   *         or below, 0 if no values have been recorded
+   */
+  public long getPercentile (final double percentile)
+  {
+    final long [] snapshot = new long [NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++)
+    {
+      snapshot[i] = counts.get (i);
+      total += snapshot[i];
+    }
+    if (total == 0)
+      return 0;
+    final long wanted = Math.max (1, (long) Math.ceil (total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= wanted)
+        return Math.min (getBucketUpperBound (i), getMax ());
+    }
+    return getMax ();
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.statistics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and load gauges for the work done by one selector thread.
+ * <p>
+ * This class is thread safe, the counters may be updated and read from any
+ * thread without locking. The gauges are only written by the selector thread.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SelectorStatistics
+{
+  private final LongAdder tasksEnqueued = new LongAdder ();
+  private final LongAdder wakeupsIssued = new LongAdder ();
+  private final LongAdder wakeupsSkipped = new LongAdder ();
+  private final LongAdder channelsMigrated = new LongAdder ();
+  private final AtomicInteger queuedTasks = new AtomicInteger ();
+  private volatile int keyCount = 0;
+  private volatile long lastLoopNanos = 0;
+  private volatile long lastLoopEnd = System.nanoTime ();
+  private volatile long totalBusyNanos = 0;
+
+  /**
+   * A task was added to the queue of the selector thread.
+   */
+  public void taskEnqueued ()
+  {
+    tasksEnqueued.increment ();
+    queuedTasks.incrementAndGet ();
+  }
+
+  /**
+   * A queued task has been taken by the selector thread.
+   */
+  public void taskDequeued ()
+  {
+    queuedTasks.decrementAndGet ();
+  }
+
+  /**
+   * Update the load gauges at the end of one selector loop.
+   *
+   * @param keyCount
+   *        the number of keys registered with the selector
+   * @param loopNanos
+   *        the time spent handling selected keys, tasks and timeouts, not
+   *        counting the time blocked in select
+   */
+  public void loopDone (final int keyCount, final long loopNanos)
+  {
+    this.keyCount = keyCount;
+    this.lastLoopNanos = loopNanos;
+    this.lastLoopEnd = System.nanoTime ();
+    // Only the selector thread writes this
+    totalBusyNanos += loopNanos;
+  }
+
+  /**
+   * A channel was moved from this selector to another one.
+   */
+  public void channelMigrated ()
+  {
+    channelsMigrated.increment ();
+  }
+
+  /**
+   * The selector was woken up because it was blocked in select.
+   */
+  public void wakeupIssued ()
+  {
+    wakeupsIssued.increment ();
+  }
+
+  /**
+   * No wakeup was needed since the selector thread was already awake.
+   */
+  public void wakeupSkipped ()
+  {
+    wakeupsSkipped.increment ();
+  }
+
+  /**
+   * Get the number of tasks that have been queued for the selector thread.
+   *
+   * @return the number of queued tasks
+   */
+  public long getTasksEnqueued ()
+  {
+    return tasksEnqueued.sum ();
+  }
+
+  /**
+   * Get the number of times the selector has been woken up.
+   *
+   * @return the number of selector wakeups
+   */
+  public long getWakeupsIssued ()
+  {
+    return wakeupsIssued.sum ();
+  }
+
+  /**
+   * Get the number of times a wakeup could be skipped.
+   *
+   * @return the number of avoided selector wakeups
+   */
+  public long getWakeupsSkipped ()
+  {
+    return wakeupsSkipped.sum ();
+  }
+
+  /**
+   * Get the number of tasks that are waiting to be run on the selector thread.
+   *
+   * @return the current task queue length
+   */
+  public int getQueuedTasks ()
+  {
+    return queuedTasks.get ();
+  }
+
+  /**
+   * Get the number of keys registered with the selector at the end of the last
+   * loop.
+   *
+   * @return the number of registered keys
+   */
+  public int getKeyCount ()
+  {
+    return keyCount;
+  }
+
+  /**
+   * Get the time the last selector loop spent working.
+   *
+   * @return the busy time of the last loop in nanos
+   */
+  public long getLastLoopNanos ()
+  {
+    return lastLoopNanos;
+  }
+
+  /**
+   * Get the time the last selector loop ended.
+   *
+   * @return the end of the last loop, as given by System.nanoTime ()
+   */
+  public long getLastLoopEnd ()
+  {
+    return lastLoopEnd;
+  }
+
+  /**
+   * Get the total time the selector thread has spent working. The utilisation
+   * of the selector is the change of this value divided by the wall clock time
+   * between two samples.
+   *
+   * @return the total busy time in nanos
+   */
+  public long getTotalBusyNanos ()
+  {
+    return totalBusyNanos;
+  }
+
+  /**
+   * Get the number of channels that have been moved away from this selector.
+   *
+   * @return the number of migrated channels
+   */
+  public long getChannelsMigrated ()
+  {
+    return channelsMigrated.sum ();
+  }
+}
@@ -60,6 +60,20 @@ public class TotalTimeSpent
     totalMillis += ce.timeSpent;
   }
 
+  /**
+   * Create a copy of the current values.
+   *
+   * @return a new TotalTimeSpent with the same values as this one
+   */
+  public TotalTimeSpent copy ()
+  {
+    final TotalTimeSpent ret = new TotalTimeSpent ();
+    ret.successful = successful;
+    ret.failures = failures;
+    ret.totalMillis = totalMillis;
+    return ret;
+  }
+
   /**
    * Get the number of successfully completed jobs.
    *
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.samples;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.helger.rnio.INioHandler;
+import com.helger.rnio.IReadHandler;
+import com.helger.rnio.IWriteHandler;
+import com.helger.rnio.impl.BasicStatisticsHolder;
+import com.helger.rnio.impl.MultiSelectorNioHandler;
+import com.helger.rnio.impl.SimpleThreadFactory;
+
+/**
+ * A small benchmark of the registration, cancel and close paths of
+ * {@link MultiSelectorNioHandler} for a growing number of selectors.
+ * <p>
+ * Each run opens a number of pipes, keeps the source ends registered for read
+ * and then lets every sink end re-register for write a number of times. At the
+ * end all the source ends are closed through the NioHandler. The time per
+ * operation should stay flat as the number of selectors grows.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class SelectorAffinityBenchmark
+{
+  private static final int [] SELECTOR_COUNTS = { 1, 2, 4, 8, 16, 32 };
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *        the command line arguments, the number of pipes and the number of
+   *        write registrations per pipe.
+   */
+  public static void main (final String [] args)
+  {
+    final int channels = args.length > 0 ? Integer.parseInt (args[0]) : 400;
+    final int rounds = args.length > 1 ? Integer.parseInt (args[1]) : 100;
+    try
+    {
+      // Warm up once
+      run (4, channels, rounds);
+      for (final int selectors : SELECTOR_COUNTS)
+        run (selectors, channels, rounds);
+    }
+    catch (final IOException | InterruptedException e)
+    {
+      e.printStackTrace ();
+    }
+  }
+
+  private static void run (final int selectors, final int channels, final int rounds) throws IOException,
+                                                                                        InterruptedException
+  {
+    final ExecutorService es = Executors.newCachedThreadPool ();
+    final INioHandler nioHandler = new MultiSelectorNioHandler (es,
+                                                                new BasicStatisticsHolder (),
+                                                                selectors,
+                                                                null);
+    nioHandler.start (new SimpleThreadFactory ());
+    final List <Pipe> pipes = new ArrayList<> (channels);
+    final CountDownLatch writesDone = new CountDownLatch (channels);
+    final CountDownLatch closesDone = new CountDownLatch (channels);
+    try
+    {
+      for (int i = 0; i < channels; i++)
+      {
+        final Pipe p = Pipe.open ();
+        p.source ().configureBlocking (false);
+        p.sink ().configureBlocking (false);
+        pipes.add (p);
+        nioHandler.waitForRead (p.source (), new IdleReader (closesDone));
+      }
+
+      final long writeStart = System.nanoTime ();
+      for (final Pipe p : pipes)
+        new Rewriter (nioHandler, p.sink (), rounds, writesDone).register ();
+      if (!writesDone.await (2, TimeUnit.MINUTES))
+        throw new IllegalStateException ("Write registrations did not finish");
+      final long writeNanos = System.nanoTime () - writeStart;
+
+      final long closeStart = System.nanoTime ();
+      for (final Pipe p : pipes)
+        nioHandler.close (p.source ());
+      if (!closesDone.await (2, TimeUnit.MINUTES))
+        throw new IllegalStateException ("Closes did not finish");
+      final long closeNanos = System.nanoTime () - closeStart;
+
+      final long registrations = (long) channels * rounds;
+      System.out.println ("selectors: " +
+                          selectors +
+                          ", registrations: " +
+                          registrations +
+                          ", ns/registration: " +
+                          writeNanos / registrations +
+                          ", closes: " +
+                          channels +
+                          ", ns/close: " +
+                          closeNanos / channels);
+    }
+    finally
+    {
+      for (final Pipe p : pipes)
+      {
+        p.sink ().close ();
+        p.source ().close ();
+      }
+      nioHandler.shutdown ();
+    }
+  }
+
+  private static class IdleReader implements IReadHandler
+  {
+    private final CountDownLatch closesDone;
+
+    public IdleReader (final CountDownLatch closesDone)
+    {
+      this.closesDone = closesDone;
+    }
+
+    public void read ()
+    { /* nothing is ever written */ }
+
+    public void closed ()
+    {
+      closesDone.countDown ();
+    }
+
+    public void timeout ()
+    { /* no timeout */ }
+
+    public boolean useSeparateThread ()
+    {
+      return false;
+    }
+
+    public String getDescription ()
+    {
+      return "IdleReader";
+    }
+
+    public Long getTimeout ()
+    {
+      return null;
+    }
+  }
+
+  private static class Rewriter implements IWriteHandler
+  {
+    private final INioHandler nioHandler;
+    private final Pipe.SinkChannel sink;
+    private final CountDownLatch writesDone;
+    private int roundsLeft;
+
+    public Rewriter (final INioHandler nioHandler,
+                     final Pipe.SinkChannel sink,
+                     final int rounds,
+                     final CountDownLatch writesDone)
+    {
+      this.nioHandler = nioHandler;
+      this.sink = sink;
+      this.roundsLeft = rounds;
+      this.writesDone = writesDone;
+    }
+
+    public void register ()
+    {
+      nioHandler.waitForWrite (sink, this);
+    }
+
+    public void write ()
+    {
+      if (--roundsLeft > 0)
+        register ();
+      else
+        writesDone.countDown ();
+    }
+
+    public void closed ()
+    { /* empty */ }
+
+    public void timeout ()
+    { /* no timeout */ }
+
+    public boolean useSeparateThread ()
+    {
+      return false;
+    }
+
+    public String getDescription ()
+    {
+      return "Rewriter";
+    }
+
+    public Long getTimeout ()
+    {
+      return null;
+    }
+  }
+}
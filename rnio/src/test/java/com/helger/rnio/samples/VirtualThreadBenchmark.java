@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2010 Robert Olofsson.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the authors nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHORS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHORS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.helger.rnio.samples;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.helger.rnio.INioHandler;
+import com.helger.rnio.impl.BasicStatisticsHolder;
+import com.helger.rnio.impl.DefaultTaskIdentifier;
+import com.helger.rnio.impl.MultiSelectorNioHandler;
+import com.helger.rnio.impl.SimpleThreadFactory;
+import com.helger.rnio.impl.VirtualThreads;
+
+/**
+ * A small benchmark that runs many blocking thread tasks at the same time
+ * through {@link INioHandler#runThreadTask}, once with a cached thread pool and
+ * once with a virtual thread per task, if the running jvm has virtual threads.
+ * <p>
+ * Every task sleeps for a while to simulate blocking io, so the time to run
+ * them all mostly depends on how cheap it is to have them all blocked at the
+ * same time.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class VirtualThreadBenchmark
+{
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *        the command line arguments, the number of tasks and the number of
+   *        millis each task blocks.
+   */
+  public static void main (final String [] args)
+  {
+    final int tasks = args.length > 0 ? Integer.parseInt (args[0]) : 10000;
+    final int blockMillis = args.length > 1 ? Integer.parseInt (args[1]) : 100;
+    try
+    {
+      run ("cached pool", Executors.newCachedThreadPool (), tasks, blockMillis);
+      if (VirtualThreads.isSupported ())
+        run ("virtual threads", VirtualThreads.newVirtualThreadPerTaskExecutor (), tasks, blockMillis);
+      else
+        System.out.println ("virtual threads are not available in this jvm");
+    }
+    catch (final IOException | InterruptedException e)
+    {
+      e.printStackTrace ();
+    }
+  }
+
+  private static void run (final String name,
+                           final ExecutorService es,
+                           final int tasks,
+                           final int blockMillis) throws IOException, InterruptedException
+  {
+    final INioHandler nioHandler = new MultiSelectorNioHandler (es, new BasicStatisticsHolder (), 1, null);
+    nioHandler.start (new SimpleThreadFactory ());
+    final ThreadMXBean tmx = ManagementFactory.getThreadMXBean ();
+    tmx.resetPeakThreadCount ();
+    final CountDownLatch done = new CountDownLatch (tasks);
+    try
+    {
+      final long start = System.nanoTime ();
+      for (int i = 0; i < tasks; i++)
+      {
+        nioHandler.runThreadTask ( () -> {
+          try
+          {
+            Thread.sleep (blockMillis);
+          }
+          catch (final InterruptedException e)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+          finally
+          {
+            done.countDown ();
+          }
+        }, new DefaultTaskIdentifier ("VirtualThreadBenchmark", "task " + i));
+      }
+      if (!done.await (5, TimeUnit.MINUTES))
+        throw new IllegalStateException ("Tasks did not finish");
+      final long millis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start);
+      System.out.println (name +
+                          ": tasks: " +
+                          tasks +
+                          ", total ms: " +
+                          millis +
+                          ", peak platform threads: " +
+                          tmx.getPeakThreadCount ());
+    }
+    finally
+    {
+      nioHandler.shutdown ();
+    }
+  }
+}